@@ -0,0 +1,459 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.assembler.BuildCache;
+import com.minesnap.dcpu.assembler.CompileError;
+import com.minesnap.dcpu.assembler.Disassembler;
+import com.minesnap.dcpu.assembler.SourceCache;
+import com.minesnap.dcpu.assembler.ValueType;
+import com.minesnap.dcpu.emulator.Emulator;
+import com.minesnap.dcpu.emulator.IllegalInstructionException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Checks that the ways of getting the same result still agree, on
+// made up programs drawn from a seed:
+//
+// - running code translated to JVM bytecode leaves the machine just
+//   as interpreting it does,
+// - a program assembles to the same bytes with includes read ahead on
+//   other threads, through a SourceCache and back out of a BuildCache,
+//   and to the same bytes as a release of the assembler given as a jar
+//   or classes directory, with every combination of options,
+// - linking the object files of a program's files gives the same
+//   bytes as assembling them all as one program,
+// - the disassembly of a program, or of any words at all, assembles
+//   back to the same bytes in either byte order.
+//
+// Run it as BehaviorSuite [SEED [BASELINE]]. Every failure is printed
+// along with what tells it apart, and the suite throws at the end if
+// there were any, so that running it with the same seed repeats them.
+
+public class BehaviorSuite {
+    private static final int MACHINE_PROGRAMS = 300;
+    private static final int SOURCE_PROGRAMS = 40;
+    private static final int LINKED_PROGRAMS = 20;
+    private static final int RANDOM_IMAGES = 200;
+    // Failures printed for each check before the rest are only counted.
+    private static final int FAILURES_SHOWN = 5;
+
+    private static final ValueType[] REGISTERS = {
+        ValueType.A, ValueType.B, ValueType.C, ValueType.X,
+        ValueType.Y, ValueType.Z, ValueType.I, ValueType.J
+    };
+
+    // The options that change what a program assembles into.
+    private static class Options {
+        private final boolean littleEndian;
+        private final boolean optimize;
+        private final boolean positionIndependent;
+
+        public Options(boolean littleEndian, boolean optimize, boolean positionIndependent) {
+            this.littleEndian = littleEndian;
+            this.optimize = optimize;
+            this.positionIndependent = positionIndependent;
+        }
+
+        public String toString() {
+            return (littleEndian ? "little endian" : "big endian")
+                + (optimize ? "" : ", no optimizations")
+                + (positionIndependent ? ", position independent" : "");
+        }
+    }
+
+    private static final Options[] OPTIONS;
+    static {
+        List<Options> options = new ArrayList<Options>();
+        for(int i=0; i<8; i++)
+            options.add(new Options((i & 1) == 0, (i & 2) == 0, (i & 4) != 0));
+        OPTIONS = options.toArray(new Options[options.size()]);
+    }
+
+    // What assembling gave: the bytes written, or the error's message.
+    private static class Output {
+        private final byte[] bytes;
+        private final String error;
+
+        public Output(byte[] bytes, String error) {
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        public boolean sameAs(Output other) {
+            if(error != null || other.error != null)
+                return error != null && error.equals(other.error);
+            return Arrays.equals(bytes, other.bytes);
+        }
+
+        public String toString() {
+            if(error != null)
+                return "error \""+error+"\"";
+            return bytes.length+" bytes";
+        }
+    }
+
+    private int checks = 0;
+    private int failures = 0;
+    // Failures of the check being run.
+    private int sectionFailures = 0;
+
+    public static void main(String[] args)
+        throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        File baseline = args.length > 1 && !args[1].isEmpty() ? new File(args[1]) : null;
+
+        BehaviorSuite suite = new BehaviorSuite();
+        File dir = Files.createTempDirectory("dcpu-behavior").toFile();
+        try {
+            List<byte[]> images = new ArrayList<byte[]>();
+            suite.checkTranslator(seed);
+            suite.checkAssembler(seed, dir, baseline, images);
+            suite.checkLinker(seed, dir);
+            suite.checkDisassembler(seed, images);
+        } finally {
+            delete(dir);
+        }
+        System.out.println(suite.checks+" checks with seed "+seed+", "+suite.failures+" failed");
+        if(suite.failures > 0)
+            throw new IllegalStateException("Some checks failed. Run the suite with seed "+seed+" to repeat them.");
+    }
+
+    private void begin(String name) {
+        System.out.println(name+":");
+        sectionFailures = 0;
+    }
+
+    private void check(boolean passed, String description) {
+        checks++;
+        if(passed)
+            return;
+        failures++;
+        if(sectionFailures++ < FAILURES_SHOWN)
+            System.out.println("  FAILED: "+description);
+    }
+
+    private void end(int count, String what) {
+        System.out.println("  "+count+" "+what+(sectionFailures > 0 ? ", "+sectionFailures+" failed" : ", ok"));
+    }
+
+    // Runs random machine code both ways, including the instructions
+    // that IF* skips, code that writes over itself and illegal
+    // instructions, and compares the machines afterwards.
+    private void checkTranslator(long seed) {
+        begin("Translated code against the interpreter");
+        Random random = new Random(seed);
+        for(int t=0; t<MACHINE_PROGRAMS; t++) {
+            short[] program = randomMachineCode(random);
+            String interpreted = runMachineCode(program, false);
+            String translated = runMachineCode(program, true);
+            check(interpreted.equals(translated), "program "+t+" "+Arrays.toString(program)
+                  +"\n    interpreted: "+interpreted+"\n    translated:  "+translated);
+        }
+        end(MACHINE_PROGRAMS, "programs");
+    }
+
+    private static short[] randomMachineCode(Random random) {
+        List<Integer> words = new ArrayList<Integer>();
+        int count = 1 + random.nextInt(30);
+        for(int i=0; i<count; i++) {
+            int a = randomValue(random, true);
+            int b = randomValue(random, false);
+            words.add((1 + random.nextInt(15)) | a << 4 | b << 10);
+            // Next word values. Destinations are mostly past the
+            // program, but some write over its own code.
+            if(hasNextWord(a))
+                words.add(random.nextInt(4) == 0 ? random.nextInt(0x10000) : (random.nextInt(3) == 0 ? 0 : 0x1000) + random.nextInt(64));
+            if(hasNextWord(b))
+                words.add(random.nextInt(4) == 0 ? random.nextInt(0x10000) : random.nextInt(64));
+        }
+        // JSR to a short literal address.
+        if(random.nextInt(5) == 0)
+            words.add(0x10 | (0x20 + count%8) << 10);
+        // SET PC, 0 with the address in the next word, so the program
+        // loops.
+        words.add(0x7dc1);
+        words.add(0);
+        short[] program = new short[words.size()];
+        for(int i=0; i<program.length; i++)
+            program[i] = (short)(int)words.get(i);
+        return program;
+    }
+
+    private static boolean hasNextWord(int value) {
+        return value >= 0x10 && value < 0x18 || value == 0x1e || value == 0x1f;
+    }
+
+    private static int randomValue(Random random, boolean destination) {
+        switch(random.nextInt(10)) {
+        case 0: case 1: case 2:
+            return random.nextInt(8);
+        case 3:
+            return 0x08 + random.nextInt(8);
+        case 4:
+            return 0x10 + random.nextInt(8);
+        case 5:
+            return 0x18 + random.nextInt(3);
+        case 6:
+            // SP, PC and O, with PC written to less often as a
+            // destination so that programs run for a while.
+            if(destination)
+                return random.nextInt(4) == 0 ? 0x1c : 0x1b + 2*random.nextInt(2);
+            return 0x1b + random.nextInt(3);
+        case 7:
+            return 0x1e + random.nextInt(2);
+        default:
+            return 0x20 + random.nextInt(32);
+        }
+    }
+
+    private static String runMachineCode(short[] program, boolean translating) {
+        Emulator emulator = new Emulator();
+        emulator.load(program, 0);
+        emulator.setTranslating(translating);
+        String error = "none";
+        try {
+            for(int i=0; i<50 && !emulator.isHalted(); i++)
+                emulator.run(5000);
+        } catch (IllegalInstructionException e) {
+            error = e.getMessage();
+        }
+        StringBuilder state = new StringBuilder();
+        for(ValueType register : REGISTERS)
+            state.append(register).append('=').append(emulator.getRegister(register)).append(' ');
+        state.append("PC=").append(emulator.getPC())
+            .append(" SP=").append(emulator.getSP())
+            .append(" O=").append(emulator.getO())
+            .append(" cycles=").append(emulator.getCycles())
+            .append(" instructions=").append(emulator.getInstructionCount())
+            .append(" halted=").append(emulator.isHalted())
+            .append(" error=").append(error);
+        long memory = 0;
+        for(int address=0; address<Emulator.MEMORY_SIZE; address++)
+            memory = memory*31 + emulator.read(address);
+        return state.append(" memory=").append(Long.toHexString(memory)).toString();
+    }
+
+    // Assembles random programs every way there is to assemble them,
+    // with every combination of options, and adds each one's image to
+    // images.
+    private void checkAssembler(long seed, File dir, File baseline, List<byte[]> images)
+        throws Exception {
+        begin("Assembling the same program different ways");
+        Random random = new Random(seed);
+        Baseline reference = baseline != null ? new Baseline(baseline) : null;
+        int errors = 0;
+        for(int p=0; p<SOURCE_PROGRAMS; p++) {
+            File programDir = new File(dir, "program"+p);
+            programDir.mkdir();
+            File root = RandomProgram.write(random.nextLong(), programDir, p%8 == 7);
+            for(Options options : OPTIONS) {
+                String what = "program "+p+" ("+options+")";
+                Output output = assemble(root, options, 0, null, null);
+                if(output.error != null)
+                    errors++;
+                else if(options.optimize && !options.positionIndependent)
+                    images.add(output.bytes);
+
+                Output threaded = assemble(root, options, 4, null, null);
+                check(threaded.sameAs(output), what+" gave "+threaded+" with includes read ahead instead of "+output);
+
+                SourceCache sourceCache = new SourceCache();
+                assemble(root, options, 0, sourceCache, null);
+                Output cachedSources = assemble(root, options, 0, sourceCache, null);
+                check(cachedSources.sameAs(output), what+" gave "+cachedSources+" from cached tokens instead of "+output);
+
+                BuildCache buildCache = new BuildCache(new File(programDir, "cache"));
+                Output stored = assemble(root, options, 0, null, buildCache);
+                Output loaded = assemble(root, options, 0, null, buildCache);
+                check(stored.sameAs(output) && loaded.sameAs(output),
+                      what+" gave "+stored+" and "+loaded+" through the build cache instead of "+output);
+                check(output.error != null || buildCache.getHits() == 1,
+                      what+" wasn't found in the build cache right after it was stored");
+
+                if(reference != null) {
+                    Output released = reference.assemble(root, options);
+                    check(released.sameAs(output), what+" gave "+output+" where "+baseline.getName()+" gave "+released);
+                }
+            }
+        }
+        end(SOURCE_PROGRAMS*OPTIONS.length, "programs and options, "+errors+" of them errors"
+            +(reference != null ? ", compared with "+baseline.getName() : ""));
+    }
+
+    private static Output assemble(File root, Options options, int includeThreads,
+                                   SourceCache sourceCache, BuildCache buildCache)
+        throws IOException {
+        Assembler as = new Assembler();
+        as.setLittleEndian(options.littleEndian);
+        as.setOptimizations(options.optimize);
+        as.setPositionIndependent(options.positionIndependent);
+        as.setIncludeThreads(includeThreads);
+        as.setSourceCache(sourceCache);
+        as.setBuildCache(buildCache);
+        File out = new File(root.getParentFile(), "out.dcpu16");
+        try {
+            as.assemble(root, root.getPath());
+            as.writeTo(out);
+        } catch (CompileError e) {
+            return new Output(null, e.getMessage());
+        }
+        return new Output(Files.readAllBytes(out.toPath()), null);
+    }
+
+    // A release of the assembler, loaded apart from this one. It's
+    // driven through the methods the assembler has always had.
+    private static class Baseline {
+        private final Class<?> assembler;
+
+        public Baseline(File file)
+            throws Exception {
+            if(!file.exists())
+                throw new IOException("No baseline assembler at "+file);
+            // No parent, so that it can't load this assembler's classes
+            // instead of its own.
+            ClassLoader loader = new URLClassLoader(new URL[] { file.toURI().toURL() }, null);
+            assembler = loader.loadClass(Assembler.class.getName());
+        }
+
+        public Output assemble(File root, Options options)
+            throws Exception {
+            Object as = assembler.getConstructor().newInstance();
+            assembler.getMethod("setLittleEndian", boolean.class).invoke(as, options.littleEndian);
+            assembler.getMethod("setOptimizations", boolean.class).invoke(as, options.optimize);
+            assembler.getMethod("setPositionIndependent", boolean.class).invoke(as, options.positionIndependent);
+            File out = new File(root.getParentFile(), "baseline.dcpu16");
+            try {
+                assembler.getMethod("assemble", String.class).invoke(as, root.getPath());
+                assembler.getMethod("writeTo", String.class).invoke(as, out.getPath());
+            } catch (InvocationTargetException e) {
+                if(e.getCause() instanceof Exception && !(e.getCause() instanceof IOException))
+                    return new Output(null, e.getCause().getMessage());
+                throw e;
+            }
+            return new Output(Files.readAllBytes(out.toPath()), null);
+        }
+    }
+
+    // Assembles two files that use each other's labels both as object
+    // files linked together and as one program that includes them.
+    private void checkLinker(long seed, File dir)
+        throws Exception {
+        begin("Linked object files against whole programs");
+        Random random = new Random(seed);
+        int errors = 0;
+        for(int p=0; p<LINKED_PROGRAMS; p++) {
+            File programDir = new File(dir, "linked"+p);
+            programDir.mkdir();
+            File[] sources = RandomProgram.writeUnits(random.nextLong(), programDir);
+            File whole = new File(programDir, "whole.dasm16");
+            Writer out = new OutputStreamWriter(new FileOutputStream(whole), "UTF-8");
+            try {
+                for(File source : sources)
+                    out.write(".INCLUDE \""+source.getName()+"\"\n");
+            } finally {
+                out.close();
+            }
+
+            for(Options options : OPTIONS) {
+                Output expected = assemble(whole, options, 0, null, null);
+                Output linked = link(sources, options);
+                if(expected.error != null)
+                    errors++;
+                boolean same = expected.error != null ? linked.error != null : linked.sameAs(expected);
+                check(same, "program "+p+" ("+options+") linked into "+linked+" instead of "+expected);
+            }
+        }
+        end(LINKED_PROGRAMS*OPTIONS.length, "programs and options, "+errors+" of them errors");
+    }
+
+    private static Output link(File[] sources, Options options)
+        throws IOException {
+        List<File> objects = new ArrayList<File>();
+        File out = new File(sources[0].getParentFile(), "linked.dcpu16");
+        try {
+            for(File source : sources) {
+                Assembler as = new Assembler();
+                as.setLittleEndian(options.littleEndian);
+                as.setOptimizations(options.optimize);
+                as.setPositionIndependent(options.positionIndependent);
+                as.setIncludeThreads(0);
+                as.assembleObject(source, source.getPath());
+                File object = new File(source.getPath()+".o");
+                as.writeObjectTo(object);
+                objects.add(object);
+            }
+            Assembler as = new Assembler();
+            as.setLittleEndian(options.littleEndian);
+            as.setOptimizations(options.optimize);
+            as.setPositionIndependent(options.positionIndependent);
+            as.link(objects);
+            as.writeTo(out);
+        } catch (CompileError e) {
+            return new Output(null, e.getMessage());
+        }
+        return new Output(Files.readAllBytes(out.toPath()), null);
+    }
+
+    // Disassembles the assembled programs and random words in both
+    // byte orders and assembles the result again.
+    private void checkDisassembler(long seed, List<byte[]> programs)
+        throws IOException {
+        begin("Disassembling and assembling again");
+        Random random = new Random(seed);
+        List<byte[]> images = new ArrayList<byte[]>(programs);
+        for(int i=0; i<RANDOM_IMAGES; i++) {
+            byte[] image = new byte[2 + 2*random.nextInt(400)];
+            random.nextBytes(image);
+            images.add(image);
+        }
+        for(int i=0; i<images.size(); i++) {
+            String what = i < programs.size() ? "program image "+i : "random image "+(i - programs.size());
+            for(boolean littleEndian : new boolean[] { true, false }) {
+                ByteBuffer image = ByteBuffer.wrap(images.get(i));
+                Disassembler disassembler = new Disassembler();
+                disassembler.setLittleEndian(littleEndian);
+                StringBuilder source = new StringBuilder();
+                disassembler.disassemble(image, source);
+
+                Assembler as = new Assembler();
+                as.setOptimizations(false);
+                as.setLittleEndian(littleEndian);
+                as.setIncludeThreads(0);
+                String result;
+                try {
+                    as.assemble(source, "disassembly", null);
+                    ShortBuffer words = image.duplicate().order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asShortBuffer();
+                    result = as.getImage().equals(words) ? null : "different words";
+                } catch (CompileError e) {
+                    result = e.getMessage();
+                }
+                check(result == null, what+" ("+(littleEndian ? "little" : "big")+" endian) didn't assemble back: "+result);
+            }
+        }
+        end(images.size()*2, "images and byte orders");
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,78 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.CompileError;
+import com.minesnap.dcpu.assembler.ResolverList;
+import com.minesnap.dcpu.assembler.WordWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Writing a laid out program through WordWriter, into a buffer the
+// way the assembler does and into a stream.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmissionBenchmark {
+    @State(Scope.Thread)
+    public static class Prepared {
+        public ResolverList resolvables;
+        public ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void prepare(Program program)
+            throws CompileError, IOException {
+            resolvables = Program.readObject(program.objectFile());
+            resolvables.prepare();
+            buffer = ByteBuffer.allocate(resolvables.getWordCount()*2);
+        }
+    }
+
+    // Counts what's written to it and throws it away.
+    private static class CountingStream extends OutputStream {
+        public long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer toBuffer(Prepared prepared)
+        throws IOException {
+        ByteBuffer buffer = prepared.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        prepared.resolvables.writeTo(new WordWriter(buffer));
+        return buffer;
+    }
+
+    @Benchmark
+    public long toStream(Prepared prepared)
+        throws IOException {
+        CountingStream out = new CountingStream();
+        prepared.resolvables.writeTo(new WordWriter(out, true));
+        return out.count;
+    }
+}
@@ -0,0 +1,66 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.emulator.Emulator;
+import com.minesnap.dcpu.emulator.IllegalInstructionException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Running a loop that sums and copies a block of memory in the
+// emulator, interpreted or translated to JVM classes. Each call runs a
+// million cycles, so the score times a million is the emulated clock
+// rate.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmulatorBenchmark {
+    private static final String PROGRAM =
+        ":start SET I, 0\n"
+        + ":loop ADD A, [0x1000+I]\n"
+        + "SET [0x2000+I], A\n"
+        + "ADD I, 1\n"
+        + "IFN I, 0x1000\n"
+        + "SET PC, loop\n"
+        + "SET PC, start\n";
+
+    @State(Scope.Thread)
+    public static class Loaded {
+        @Param({"false", "true"})
+        public boolean translating;
+
+        public Emulator emulator;
+
+        @Setup(Level.Trial)
+        public void load()
+            throws Exception {
+            Assembler assembler = new Assembler();
+            assembler.setIncludeThreads(0);
+            assembler.assemble(PROGRAM, "loop.dasm16", null);
+            emulator = new Emulator();
+            emulator.load(assembler.getImage());
+            emulator.setTranslating(translating);
+        }
+    }
+
+    @Benchmark
+    public long run(Loaded loaded)
+        throws IllegalInstructionException {
+        return loaded.emulator.run(1000000);
+    }
+}
@@ -0,0 +1,58 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.assembler.CompileError;
+import com.minesnap.dcpu.assembler.SourceCache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing tokens into resolvables, which is mostly the assembler's
+// parseValueTokens and parseLiteralExpression. Those are private, so
+// this parses the whole program with assembleObject, with every file
+// already tokenized in a SourceCache so that tokenizing isn't
+// measured again.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @State(Scope.Benchmark)
+    public static class Tokenized {
+        public SourceCache cache;
+
+        @Setup(Level.Trial)
+        public void tokenize(Program program)
+            throws CompileError, IOException {
+            cache = new SourceCache(Long.MAX_VALUE);
+            Assembler as = new Assembler();
+            as.setIncludeThreads(0);
+            as.setSourceCache(cache);
+            as.assembleObject(program.root, program.root.getName());
+        }
+    }
+
+    @Benchmark
+    public Assembler parse(Program program, Tokenized tokenized)
+        throws CompileError, IOException {
+        Assembler as = new Assembler();
+        as.setIncludeThreads(0);
+        as.setSourceCache(tokenized.cache);
+        as.assembleObject(program.root, program.root.getName());
+        return as;
+    }
+}
@@ -0,0 +1,101 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.assembler.ByteTokenizer;
+import com.minesnap.dcpu.assembler.CompileError;
+import com.minesnap.dcpu.assembler.ObjectFile;
+import com.minesnap.dcpu.assembler.ResolverList;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// The generated program that a benchmark runs on, one for every shape
+// and size.
+
+@State(Scope.Benchmark)
+public class Program {
+    @Param({"DAT", "JUMP", "LABEL", "INCLUDE"})
+    public ProgramGenerator.Shape shape;
+
+    @Param({"500", "2000", "8000"})
+    public int lines;
+
+    public File dir;
+    public File root;
+    // Every source file of the program, the root file first.
+    public File[] files;
+    // The contents of the files, read ahead of time.
+    public ByteBuffer[] contents;
+
+    @Setup(Level.Trial)
+    public void generate()
+        throws IOException {
+        dir = File.createTempFile("dcpu-bench", "");
+        dir.delete();
+        dir.mkdir();
+        root = ProgramGenerator.generate(shape, lines, dir);
+
+        File[] others = dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) {
+                    return name.endsWith(".dasm16") && !name.equals(root.getName());
+                }
+            });
+        Arrays.sort(others);
+        files = new File[others.length+1];
+        files[0] = root;
+        System.arraycopy(others, 0, files, 1, others.length);
+
+        contents = new ByteBuffer[files.length];
+        for(int i=0; i<files.length; i++) {
+            FileInputStream in = new FileInputStream(files[i]);
+            try {
+                contents[i] = ByteTokenizer.readFully(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        for(File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    // Parses the program into an object file, so that it can be read
+    // back into a fresh ResolverList that hasn't been laid out yet.
+    public byte[] objectFile()
+        throws CompileError, IOException {
+        Assembler as = new Assembler();
+        as.setIncludeThreads(0);
+        as.assembleObject(root, root.getName());
+        File object = new File(dir, "main.o");
+        as.writeObjectTo(object);
+        FileInputStream in = new FileInputStream(object);
+        try {
+            return ByteTokenizer.readFully(in).array();
+        } finally {
+            in.close();
+        }
+    }
+
+    public static ResolverList readObject(byte[] object)
+        throws CompileError, IOException {
+        ResolverList resolvables = new ResolverList();
+        ObjectFile.read(new ByteArrayInputStream(object), "main.o", resolvables);
+        return resolvables;
+    }
+}
@@ -0,0 +1,283 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import com.minesnap.dcpu.assembler.JumpEncoding;
+
+// Writes made up programs of a given size and shape for the
+// benchmarks and the scaling suite. The same arguments always give the
+// same program. It can also be run on its own:
+//
+//     ProgramGenerator SHAPE LINES DIRECTORY
+
+public class ProgramGenerator {
+    public enum Shape {
+        // Mostly DAT lines of strings, numbers and label addresses.
+        DAT,
+        // Branches and jumps to labels near and far, so that many
+        // jumps change size while laying out the program.
+        JUMP,
+        // A label on every line, with most instructions referencing
+        // other labels.
+        LABEL,
+        // A root file that does nothing but include many small files.
+        INCLUDE,
+        // A chain of forward jumps where each one only needs its long
+        // form once the one after it does, so that laying the program
+        // out takes a pass for every jump. The size is the number of
+        // jumps.
+        JUMP_CHAIN,
+        // Small files that each include the next one from their
+        // middle, so that includes nest as deep as there are files.
+        // Each one also includes a shared file with .INCLUDEONCE.
+        INCLUDE_TREE,
+        // A table of long DAT strings.
+        STRING_TABLE,
+        // Instructions that each reference two labels.
+        LABEL_REFS
+    }
+
+    // The number of lines in each included file of an INCLUDE program.
+    private static final int INCLUDE_LINES = 32;
+    // The number of lines in each file of an INCLUDE_TREE program.
+    private static final int TREE_LINES = 8;
+    // The words between jumps of a JUMP_CHAIN program. Each jump's
+    // target is just within reach of the short form, as long as the
+    // jump after it is short too.
+    private static final int CHAIN_GAP = (JumpEncoding.MAX_SHORT_LITERAL-1)/2;
+    private static final String[] REGISTERS = {"A", "B", "C", "X", "Y", "Z", "I", "J"};
+    private static final String[] OPS = {"SET", "ADD", "SUB", "MUL", "AND", "BOR", "XOR", "SHL"};
+
+    private final Random random;
+    private final int lines;
+
+    private ProgramGenerator(long seed, int lines) {
+        this.random = new Random(seed);
+        this.lines = lines;
+    }
+
+    // Writes a program of about the given number of lines into the
+    // directory and returns its root file. Programs of up to about
+    // 10000 lines fit in the DCPU-16's memory.
+    public static File generate(Shape shape, int lines, File dir)
+        throws IOException {
+        return new ProgramGenerator(shape.ordinal()*31+lines, lines).write(shape, dir);
+    }
+
+    private File write(Shape shape, File dir)
+        throws IOException {
+        File root = new File(dir, "main.dasm16");
+        StringBuilder sb = new StringBuilder();
+        switch(shape) {
+        case DAT:
+            for(int i=0; i<lines; i++)
+                datLine(sb, i);
+            break;
+        case JUMP:
+            for(int i=0; i<lines; i++)
+                jumpLine(sb, i);
+            break;
+        case LABEL:
+            for(int i=0; i<lines; i++)
+                labelLine(sb, i);
+            break;
+        case INCLUDE:
+        {
+            int files = Math.max(1, lines/INCLUDE_LINES);
+            for(int f=0; f<files; f++) {
+                String name = "inc"+f+".dasm16";
+                sb.append(".INCLUDE \"").append(name).append("\"\n");
+                StringBuilder inc = new StringBuilder();
+                int base = f*INCLUDE_LINES;
+                for(int i=0; i<INCLUDE_LINES; i++)
+                    mixedLine(inc, base+i, base, base+INCLUDE_LINES);
+                writeFile(new File(dir, name), inc);
+            }
+            break;
+        }
+        case JUMP_CHAIN:
+            // Keep every target away from the start, where a jump can
+            // use a short literal no matter how far it is.
+            sb.append(".RESERVE ").append(JumpEncoding.MAX_SHORT_LITERAL+1).append('\n');
+            for(int i=0; i<lines; i++) {
+                sb.append(":c").append(i).append(" JMP c").append(i+2).append('\n');
+                sb.append(".RESERVE ").append(CHAIN_GAP).append('\n');
+            }
+            // The last two jumps are too far from their targets for the
+            // short form, which starts the chain.
+            sb.append(".RESERVE ").append(2*JumpEncoding.MAX_SHORT_LITERAL).append('\n');
+            sb.append(":c").append(lines).append(" SET A, 1\n");
+            sb.append(":c").append(lines+1).append(" SET B, 1\n");
+            break;
+        case INCLUDE_TREE:
+        {
+            StringBuilder shared = new StringBuilder();
+            shared.append(":shared SET PC, POP\n");
+            writeFile(new File(dir, "shared.dasm16"), shared);
+            int files = Math.max(1, lines/TREE_LINES);
+            sb.append(".INCLUDE \"tree0.dasm16\"\n");
+            for(int f=0; f<files; f++) {
+                StringBuilder inc = new StringBuilder();
+                int base = f*TREE_LINES;
+                inc.append(".INCLUDEONCE \"shared.dasm16\"\n");
+                for(int i=0; i<TREE_LINES; i++) {
+                    if(i == TREE_LINES/2 && f+1 < files)
+                        inc.append(".INCLUDE \"tree").append(f+1).append(".dasm16\"\n");
+                    mixedLine(inc, base+i, base, base+TREE_LINES);
+                }
+                writeFile(new File(dir, "tree"+f+".dasm16"), inc);
+            }
+            break;
+        }
+        case STRING_TABLE:
+            for(int i=0; i<lines; i++) {
+                sb.append(":s").append(i).append(" DAT \"");
+                for(int k=0; k<32; k++)
+                    sb.append((char)('a' + random.nextInt(26)));
+                sb.append(" \\\"").append(i).append("\\\"\", 0\n");
+            }
+            break;
+        case LABEL_REFS:
+            for(int i=0; i<lines; i++) {
+                sb.append(":l").append(i).append(" SET [l").append(random.nextInt(lines))
+                    .append("+").append(register()).append("], l").append(random.nextInt(lines)).append('\n');
+            }
+            break;
+        }
+        sb.append(":end SET PC, end\n");
+        writeFile(root, sb);
+        return root;
+    }
+
+    private void datLine(StringBuilder sb, int i) {
+        sb.append(":l").append(i).append(" DAT ");
+        switch(random.nextInt(3)) {
+        case 0:
+            sb.append("\"str").append(i).append("\", 0");
+            break;
+        case 1:
+            for(int k=0; k<4; k++) {
+                if(k != 0)
+                    sb.append(", ");
+                sb.append("0x").append(Integer.toHexString(random.nextInt(0x10000)));
+            }
+            break;
+        default:
+            sb.append("l").append(random.nextInt(lines)).append(", end, ").append(random.nextInt(1000));
+        }
+        sb.append('\n');
+    }
+
+    private void jumpLine(StringBuilder sb, int i) {
+        int group = i/4;
+        if(i % 4 == 0) {
+            // Every label is followed by something that isn't a jump,
+            // so that no jump ever goes to the instruction right after
+            // it and disappears.
+            sb.append(":l").append(group).append(" ADD ").append(register())
+                .append(", ").append(random.nextInt(64)).append('\n');
+            return;
+        }
+        int labels = (lines+3)/4;
+        // Mostly short jumps, which can use the short encodings, with
+        // some far ones that can't.
+        int target;
+        if(random.nextInt(4) == 0)
+            target = random.nextInt(labels);
+        else
+            target = group + random.nextInt(17) - 8;
+        if(Math.abs(target - group) < 2)
+            target = group + (target < group ? -2 : 2);
+        if(target < 0 || target >= labels)
+            target = group >= 2 ? group-2 : Math.min(labels-1, group+2);
+        switch(random.nextInt(3)) {
+        case 0:
+            sb.append("IFE ").append(register()).append(", ").append(random.nextInt(64)).append('\n');
+            sb.append("    SET PC, l").append(target);
+            break;
+        case 1:
+            sb.append("BRA l").append(target);
+            break;
+        default:
+            sb.append("JMP l").append(target);
+        }
+        sb.append('\n');
+    }
+
+    private void labelLine(StringBuilder sb, int i) {
+        sb.append(":l").append(i).append(' ');
+        String label = "l"+random.nextInt(lines);
+        switch(random.nextInt(4)) {
+        case 0:
+            sb.append("SET ").append(register()).append(", [").append(label).append('+').append(register()).append(']');
+            break;
+        case 1:
+            sb.append("ADD [").append(label).append("], 1");
+            break;
+        case 2:
+            sb.append("SET ").append(register()).append(", ").append(label).append('+').append(random.nextInt(8));
+            break;
+        default:
+            sb.append("JSR ").append(label);
+        }
+        sb.append('\n');
+    }
+
+    // Ordinary instructions, with labels and jumps kept within
+    // [from, to) so that each included file stands on its own.
+    private void mixedLine(StringBuilder sb, int i, int from, int to) {
+        sb.append(":l").append(i).append(' ');
+        String label = "l"+(from+random.nextInt(to-from));
+        switch(random.nextInt(5)) {
+        case 0:
+            // Only backward jumps. Short forward jumps over each other
+            // can keep the layout from ever settling.
+            if(i > from) {
+                sb.append("SET PC, l").append(from+random.nextInt(i-from));
+                break;
+            }
+            // Fall through
+        case 1:
+            sb.append("DAT \"text\", ").append(label);
+            break;
+        case 2:
+            sb.append("SET ").append(register()).append(", [").append(label).append(']');
+            break;
+        default:
+            sb.append(OPS[random.nextInt(OPS.length)]).append(' ').append(register())
+                .append(", ").append(random.nextInt(0x10000));
+        }
+        sb.append('\n');
+    }
+
+    public static void main(String[] args)
+        throws IOException {
+        if(args.length != 3) {
+            System.err.println("Parameters: SHAPE LINES DIRECTORY");
+            System.exit(1);
+        }
+        File dir = new File(args[2]);
+        dir.mkdirs();
+        File root = generate(Shape.valueOf(args[0].toUpperCase()), Integer.parseInt(args[1]), dir);
+        System.out.println("Wrote "+root);
+    }
+
+    private String register() {
+        return REGISTERS[random.nextInt(REGISTERS.length)];
+    }
+
+    private static void writeFile(File file, CharSequence content)
+        throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.append(content);
+        } finally {
+            out.close();
+        }
+    }
+}
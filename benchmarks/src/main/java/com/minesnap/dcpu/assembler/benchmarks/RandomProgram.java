@@ -0,0 +1,264 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Writes random programs for the behavior suite. They only use what
+// the assembler has always understood, so that any release of it can
+// assemble them too: every kind of operand, labels defined before and
+// after they're used, jumps near and far, DAT, TIMES and RESERVE, and
+// .INCLUDE and .INCBIN. The same seed always gives the same program.
+
+public class RandomProgram {
+    private static final String[] REGISTERS = {"A", "B", "C", "X", "Y", "Z", "I", "J"};
+    private static final String[] OPS = {"SET", "ADD", "SUB", "MUL", "DIV", "MOD", "SHL", "SHR", "AND", "BOR", "XOR"};
+    private static final String[] IFS = {"IFE", "IFN", "IFG", "IFB"};
+    private static final String[] ERRORS = {
+        "SET A, nowhere",
+        "FROB A, B",
+        "SET A, B, C",
+        "SET A, \"unterminated",
+        "JMP"
+    };
+
+    private final Random random;
+    private final String prefix;
+    private final int labelCount;
+    // The labels the program may use, its own and those of the files
+    // it's assembled with.
+    private final List<String> references = new ArrayList<String>();
+    private final StringBuilder out = new StringBuilder();
+    private int defined = 0;
+
+    private RandomProgram(Random random, String prefix, int labelCount) {
+        this.random = random;
+        this.prefix = prefix;
+        this.labelCount = labelCount;
+        for(int i=0; i<labelCount; i++)
+            references.add(prefix+i);
+    }
+
+    // Writes a program whose root file includes another file and a
+    // binary file, and returns the root file. With an error, one line
+    // of it doesn't assemble.
+    public static File write(long seed, File dir, boolean error)
+        throws IOException {
+        Random random = new Random(seed);
+        RandomProgram root = new RandomProgram(random, "r", 1 + random.nextInt(12));
+        RandomProgram included = new RandomProgram(random, "i", 1 + random.nextInt(6));
+        root.references.addAll(included.references);
+        included.references.addAll(root.references.subList(0, root.labelCount));
+
+        byte[] blob = new byte[2*random.nextInt(32)];
+        random.nextBytes(blob);
+        write(new File(dir, "blob.bin"), blob);
+        write(new File(dir, "inc.dasm16"), included.lines(10 + random.nextInt(40), null).getBytes("UTF-8"));
+        List<String> extra = new ArrayList<String>();
+        extra.add(".INCLUDE \"inc.dasm16\"");
+        extra.add(random.nextBoolean() ? ".INCBIN \"blob.bin\"" : ".INCBIN \"blob.bin\" be");
+        if(error)
+            extra.add(ERRORS[random.nextInt(ERRORS.length)]);
+        File file = new File(dir, "root.dasm16");
+        write(file, root.lines(20 + random.nextInt(100), extra).getBytes("UTF-8"));
+        return file;
+    }
+
+    // Writes two files that use each other's labels, to be assembled
+    // separately and linked, and returns them in the order to link
+    // them.
+    public static File[] writeUnits(long seed, File dir)
+        throws IOException {
+        Random random = new Random(seed);
+        RandomProgram main = new RandomProgram(random, "m", 1 + random.nextInt(12));
+        RandomProgram lib = new RandomProgram(random, "l", 1 + random.nextInt(12));
+        List<String> mainLabels = new ArrayList<String>(main.references);
+        main.references.addAll(lib.references);
+        lib.references.addAll(mainLabels);
+
+        byte[] blob = new byte[2*random.nextInt(32)];
+        random.nextBytes(blob);
+        write(new File(dir, "blob.bin"), blob);
+        List<String> extra = new ArrayList<String>();
+        extra.add(".INCBIN \"blob.bin\"");
+        File[] files = { new File(dir, "main.dasm16"), new File(dir, "lib.dasm16") };
+        write(files[0], main.lines(20 + random.nextInt(100), extra).getBytes("UTF-8"));
+        write(files[1], lib.lines(20 + random.nextInt(100), null).getBytes("UTF-8"));
+        return files;
+    }
+
+    private static void write(File file, byte[] content)
+        throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Writes the given number of random lines, with the extra lines at
+    // random places among them, and defines every label.
+    private String lines(int count, List<String> extra) {
+        List<String> pending = extra != null ? new ArrayList<String>(extra) : new ArrayList<String>();
+        for(int line=0; line<count; line++) {
+            if(!pending.isEmpty() && random.nextInt(count) < pending.size())
+                out.append(pending.remove(random.nextInt(pending.size()))).append('\n');
+            if(defined < labelCount && random.nextInt(count) < labelCount*2)
+                defineLabel();
+            line();
+        }
+        for(String line : pending)
+            out.append(line).append('\n');
+        while(defined < labelCount)
+            defineLabel();
+        out.append("BRK\n");
+        return out.toString();
+    }
+
+    private void defineLabel() {
+        String label = prefix+(defined++);
+        if(random.nextBoolean())
+            out.append(':').append(label);
+        else
+            out.append(label).append(':');
+        // A label on a line of its own, or before an instruction.
+        if(random.nextBoolean())
+            out.append('\n');
+        else
+            out.append(' ');
+    }
+
+    private void line() {
+        int kind = random.nextInt(100);
+        if(kind < 40) {
+            instruction();
+        } else if(kind < 50) {
+            out.append(pick(IFS)).append(' ').append(source()).append(", ").append(source()).append('\n');
+            instruction();
+        } else if(kind < 60) {
+            out.append(random.nextBoolean() ? "JMP " : "BRA ").append(label()).append('\n');
+        } else if(kind < 65) {
+            out.append("JSR ").append(source()).append('\n');
+        } else if(kind < 78) {
+            out.append(pick("DAT", "DATA", ".DAT", ".DW")).append(' ');
+            int items = 1 + random.nextInt(5);
+            for(int i=0; i<items; i++) {
+                if(i > 0)
+                    out.append(", ");
+                out.append(datum());
+            }
+            out.append('\n');
+        } else if(kind < 83) {
+            // Long stretches that put some jumps out of reach of
+            // their short forms.
+            out.append(pick(".DS", ".RESERVE", "RESERVE")).append(' ').append(random.nextInt(200)).append('\n');
+        } else if(kind < 86) {
+            out.append(pick("TIMES", "DUP")).append(' ').append(1 + random.nextInt(20))
+                .append(" DAT ").append(datum()).append('\n');
+        } else if(kind < 88) {
+            out.append("BRK\n");
+        } else if(kind < 92) {
+            out.append("; ").append(label()).append('\n');
+        } else {
+            // Lowercase, which the assembler accepts just the same.
+            int start = out.length();
+            instruction();
+            String line = out.substring(start);
+            out.setLength(start);
+            out.append(line.toLowerCase());
+        }
+    }
+
+    private void instruction() {
+        out.append(pick(OPS)).append(' ').append(destination()).append(", ").append(source()).append('\n');
+    }
+
+    private String destination() {
+        switch(random.nextInt(12)) {
+        case 0: case 1: case 2: case 3:
+            return pick(REGISTERS);
+        case 4:
+            return "["+pick(REGISTERS)+"]";
+        case 5:
+            return "["+pick(REGISTERS)+"+"+random.nextInt(0x10000)+"]";
+        case 6:
+            return "["+hex(random.nextInt(0x10000))+"]";
+        case 7:
+            return "["+label()+"]";
+        case 8:
+            return "["+label()+"+"+pick(REGISTERS)+"]";
+        case 9:
+            return pick("PUSH", "[--SP]");
+        case 10:
+            return pick("PEEK", "[SP]");
+        default:
+            return pick("SP", "O");
+        }
+    }
+
+    private String source() {
+        switch(random.nextInt(14)) {
+        case 0: case 1: case 2:
+            return pick(REGISTERS);
+        case 3:
+            return Integer.toString(random.nextInt(32));
+        case 4:
+            return Integer.toString(random.nextInt(0x10000));
+        case 5:
+            return "-"+(1 + random.nextInt(100));
+        case 6:
+            return hex(random.nextInt(0x10000));
+        case 7:
+            return "'"+(char)('a' + random.nextInt(26))+"'";
+        case 8: case 9:
+            return label();
+        case 10:
+            return label()+"+"+random.nextInt(40);
+        case 11:
+            return "["+pick(REGISTERS)+"+"+label()+"]";
+        case 12:
+            return pick("POP", "[SP++]", "PEEK");
+        default:
+            return pick("SP", "PC", "O");
+        }
+    }
+
+    private String datum() {
+        switch(random.nextInt(5)) {
+        case 0:
+            return Integer.toString(random.nextInt(0x10000));
+        case 1:
+            StringBuilder text = new StringBuilder("\"");
+            int length = random.nextInt(12);
+            for(int i=0; i<length; i++) {
+                char c = (char)('!' + random.nextInt(90));
+                // Without the characters that would need escaping.
+                text.append(c == '"' || c == '\\' ? 'q' : c);
+            }
+            return text.append('"').toString();
+        case 2:
+            return label();
+        case 3:
+            return label()+"+"+random.nextInt(40);
+        default:
+            return hex(random.nextInt(0x10000));
+        }
+    }
+
+    private String label() {
+        return references.get(random.nextInt(references.size()));
+    }
+
+    private static String hex(int value) {
+        return "0x"+Integer.toHexString(value);
+    }
+
+    private String pick(String... choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+}
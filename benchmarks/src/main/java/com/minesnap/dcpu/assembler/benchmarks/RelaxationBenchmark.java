@@ -0,0 +1,55 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.CompileError;
+import com.minesnap.dcpu.assembler.ResolverList;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Laying out the program with ResolverList.prepare. Every invocation
+// needs a list that hasn't been laid out yet, so one is read from an
+// object file of the program before each, outside of the measurement.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelaxationBenchmark {
+    @State(Scope.Thread)
+    public static class Unprepared {
+        private byte[] object;
+        public ResolverList resolvables;
+
+        @Setup(Level.Trial)
+        public void parse(Program program)
+            throws CompileError, IOException {
+            object = program.objectFile();
+        }
+
+        @Setup(Level.Invocation)
+        public void read()
+            throws CompileError, IOException {
+            resolvables = Program.readObject(object);
+        }
+    }
+
+    @Benchmark
+    public int prepare(Unprepared unprepared)
+        throws CompileError {
+        unprepared.resolvables.prepare();
+        return unprepared.resolvables.getPassCount();
+    }
+}
@@ -0,0 +1,216 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.assembler.CompileError;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Assembles generated programs of growing size and fails if the time
+// or the memory allocated grows faster than the bound stated for the
+// shape of program. Growth is measured as the slope of a line fitted
+// to the logarithms of size and cost, so a slope of 1 is linear and a
+// slope of 2 is quadratic.
+//
+// Allocation is measured exactly, so its bounds are tight, and it's
+// what catches a linear phase turning quadratic. Time is measured in
+// several rounds that each give a slope, and the median one is
+// checked, so that one round slowed down by the machine can't fail
+// the suite. Time bounds still leave plenty of room for noise and for
+// caches working less well on bigger programs.
+//
+// Runs every shape, or only the ones named on the command line, and
+// throws if any of them grew too fast. That fails the build whether
+// the suite runs in a JVM of its own or in Maven's.
+
+public class ScalingSuite {
+    private static final int WARMUP_REPEATS = 10;
+    private static final int ROUNDS = 5;
+    // The fastest of this many runs is each round's time for a size.
+    private static final int REPEATS = 2;
+    // The sizes of each shape go from the base size up to 8 times it,
+    // each the last one times the square root of 2.
+    private static final int STEPS = 7;
+
+    private static final double LINEAR = 1.7;
+    private static final double QUADRATIC = 2.5;
+
+    private static class Case {
+        private final ProgramGenerator.Shape shape;
+        private final int baseSize;
+        private final double timeBound;
+        private final double allocationBound;
+
+        public Case(ProgramGenerator.Shape shape, int baseSize, double timeBound, double allocationBound) {
+            this.shape = shape;
+            this.baseSize = baseSize;
+            this.timeBound = timeBound;
+            this.allocationBound = allocationBound;
+        }
+    }
+
+    // The largest size of each shape still fits in the DCPU-16's 64K
+    // words.
+    private static final Case[] CASES = {
+        new Case(ProgramGenerator.Shape.DAT, 1000, LINEAR, 1.2),
+        new Case(ProgramGenerator.Shape.JUMP, 1000, LINEAR, 1.2),
+        new Case(ProgramGenerator.Shape.LABEL, 1000, LINEAR, 1.2),
+        new Case(ProgramGenerator.Shape.INCLUDE, 1000, LINEAR, 1.2),
+        // Laying out takes a pass per jump, and each pass evaluates
+        // the jumps after the one that grew again, so this one is
+        // quadratic by nature. The passes themselves shouldn't
+        // allocate.
+        new Case(ProgramGenerator.Shape.JUMP_CHAIN, 250, QUADRATIC, 1.2),
+        new Case(ProgramGenerator.Shape.INCLUDE_TREE, 1000, LINEAR, 1.2),
+        new Case(ProgramGenerator.Shape.STRING_TABLE, 150, LINEAR, 1.2),
+        new Case(ProgramGenerator.Shape.LABEL_REFS, 1500, LINEAR, 1.2)
+    };
+
+    public static void main(String[] args)
+        throws CompileError, IOException {
+        List<Case> cases = new ArrayList<Case>();
+        for(Case c : CASES) {
+            if(args.length == 0)
+                cases.add(c);
+            for(String arg : args) {
+                if(c.shape.name().equalsIgnoreCase(arg))
+                    cases.add(c);
+            }
+        }
+
+        boolean failed = false;
+        for(Case c : cases) {
+            if(!run(c))
+                failed = true;
+        }
+        if(failed)
+            throw new IllegalStateException("Some shapes grew faster than their bounds.");
+    }
+
+    private static boolean run(Case c)
+        throws CompileError, IOException {
+        File[] roots = new File[STEPS];
+        File[] dirs = new File[STEPS];
+        double[] sizes = new double[STEPS];
+        int[] runs = new int[STEPS];
+        int largest = c.baseSize * (1 << ((STEPS-1)/2));
+        for(int i=0; i<STEPS; i++) {
+            int size = (int)Math.round(c.baseSize * Math.pow(2, i/2.0));
+            dirs[i] = File.createTempFile("dcpu-scaling", "");
+            dirs[i].delete();
+            dirs[i].mkdir();
+            roots[i] = ProgramGenerator.generate(c.shape, size, dirs[i]);
+            sizes[i] = size;
+            // Smaller programs are assembled several times in a row so
+            // that every measurement takes about as long, and timer and
+            // scheduling noise matters as little for the smallest size
+            // as for the largest.
+            runs[i] = Math.max(1, Math.round((float)largest/size));
+        }
+
+        try {
+            // Warm up the JIT on every size before measuring any.
+            for(int i=0; i<STEPS; i++) {
+                for(int r=0; r<WARMUP_REPEATS; r++)
+                    assemble(roots[i], runs[i], null);
+            }
+
+            double[][] times = new double[ROUNDS][STEPS];
+            double[] bestTimes = new double[STEPS];
+            double[] allocations = new double[STEPS];
+            Arrays.fill(bestTimes, Double.MAX_VALUE);
+            Arrays.fill(allocations, Double.MAX_VALUE);
+            double[] timeSlopes = new double[ROUNDS];
+            long[] cost = new long[2];
+            for(int round=0; round<ROUNDS; round++) {
+                for(int i=0; i<STEPS; i++) {
+                    times[round][i] = Double.MAX_VALUE;
+                    for(int r=0; r<REPEATS; r++) {
+                        // Keep collecting the last run's garbage out of
+                        // this one.
+                        System.gc();
+                        assemble(roots[i], runs[i], cost);
+                        times[round][i] = Math.min(times[round][i], (double)cost[0]/runs[i]);
+                        allocations[i] = Math.min(allocations[i], (double)cost[1]/runs[i]);
+                    }
+                    bestTimes[i] = Math.min(bestTimes[i], times[round][i]);
+                }
+                timeSlopes[round] = slope(sizes, times[round]);
+            }
+
+            System.out.println(c.shape+":");
+            for(int i=0; i<STEPS; i++)
+                System.out.printf("  %6d lines %10.2f ms %10d KB%n", (int)sizes[i],
+                                  bestTimes[i]/1e6, (long)allocations[i]/1024);
+            StringBuilder rounds = new StringBuilder();
+            for(double timeSlope : timeSlopes)
+                rounds.append(String.format(" %.2f", timeSlope));
+            System.out.println("  time slope of each round:"+rounds);
+
+            Arrays.sort(timeSlopes);
+            double timeSlope = timeSlopes[ROUNDS/2];
+            double allocationSlope = slope(sizes, allocations);
+            boolean passed = true;
+            if(timeSlope > c.timeBound)
+                passed = false;
+            if(allocationSlope > c.allocationBound)
+                passed = false;
+            System.out.printf("  time grows as n^%.2f (bound %.2f), allocation as n^%.2f (bound %.2f): %s%n",
+                              timeSlope, c.timeBound, allocationSlope, c.allocationBound,
+                              passed ? "ok" : "FAILED");
+            return passed;
+        } finally {
+            for(File dir : dirs) {
+                for(File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    // Assembles and encodes the program on this thread the given number
+    // of times, and stores the nanoseconds and bytes allocated it took
+    // in cost if it's given.
+    private static void assemble(File root, int runs, long[] cost)
+        throws CompileError, IOException {
+        long allocatedBefore = allocatedBytes();
+        long before = System.nanoTime();
+        for(int r=0; r<runs; r++) {
+            Assembler as = new Assembler();
+            as.setIncludeThreads(0);
+            as.assemble(root, root.getName());
+            as.getImage();
+        }
+        long after = System.nanoTime();
+        long allocatedAfter = allocatedBytes();
+        if(cost != null) {
+            cost[0] = after - before;
+            cost[1] = allocatedAfter - allocatedBefore;
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // The slope of the least squares line through the points on a
+    // log-log scale.
+    private static double slope(double[] x, double[] y) {
+        int n = x.length;
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        for(int i=0; i<n; i++) {
+            double lx = Math.log(x[i]);
+            double ly = Math.log(y[i]);
+            sumX += lx;
+            sumY += ly;
+            sumXY += lx*ly;
+            sumXX += lx*lx;
+        }
+        return (n*sumXY - sumX*sumY) / (n*sumXX - sumX*sumX);
+    }
+}
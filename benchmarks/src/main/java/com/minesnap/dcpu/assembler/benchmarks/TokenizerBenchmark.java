@@ -0,0 +1,54 @@
+package com.minesnap.dcpu.assembler.benchmarks;
+
+import com.minesnap.dcpu.assembler.ASMTokenizer;
+import com.minesnap.dcpu.assembler.ByteTokenizer;
+import com.minesnap.dcpu.assembler.Token;
+import com.minesnap.dcpu.assembler.TokenTable;
+import com.minesnap.dcpu.assembler.TokenizeError;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Tokenizing every file of the program from memory, with the byte
+// tokenizer the assembler uses and with the older ASMTokenizer.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+    @Benchmark
+    public int byteTokenizer(Program program)
+        throws TokenizeError {
+        TokenTable tokens = new TokenTable();
+        for(int i=0; i<program.files.length; i++) {
+            ByteTokenizer.tokenize(program.contents[i].duplicate(), program.dir,
+                                   program.files[i].getName(), tokens);
+        }
+        return tokens.size();
+    }
+
+    @Benchmark
+    public void asmTokenizer(Program program, Blackhole blackhole)
+        throws TokenizeError, IOException {
+        for(int i=0; i<program.files.length; i++) {
+            byte[] content = program.contents[i].array();
+            List<Token> tokens = ASMTokenizer.tokenize(new InputStreamReader(new ByteArrayInputStream(content), "UTF-8"),
+                                                       program.dir, program.files[i].getName());
+            blackhole.consume(tokens);
+        }
+    }
+}
@@ -11,30 +11,52 @@ public class ASMTokenizer {
     private ASMTokenizer() {}
 
     // These characters separate tokens but aren't tokens themselves.
-    private static final String spaces = " \t\r\n";
-    private static boolean is_space(char c) {
-        return spaces.indexOf(c) != -1;
+    static final String spaces = " \t\r\n";
+    static boolean is_space(char c) {
+        return c < 0x80 && (CHAR_CLASS[c] & SPACE) != 0;
     }
 
     // These characters separate tokens and are tokens themselves.
-    private static final String borders = "[],+-*";
-    private static boolean is_border(char c) {
-        return borders.indexOf(c) != -1;
+    static final String borders = "[],+-*";
+    static boolean is_border(char c) {
+        return c < 0x80 && (CHAR_CLASS[c] & BORDER) != 0;
     }
 
-    private static final String digits = "0123456789";
-    private static boolean is_digit(char c) {
-        return digits.indexOf(c) != -1;
+    static final String digits = "0123456789";
+    static boolean is_digit(char c) {
+        return c < 0x80 && (CHAR_CLASS[c] & DIGIT) != 0;
+    }
+
+    static final String label_bad_chars = "+*-/\\,:; \r\t\n[](){}\"`'";
+
+    // Character class bits for every 7-bit character, so the checks
+    // above are a single table lookup instead of a String search.
+    // Shared with ByteTokenizer, which indexes it with raw bytes.
+    static final byte SPACE = 0x1;
+    static final byte BORDER = 0x2;
+    static final byte DIGIT = 0x4;
+    static final byte LABEL_BAD = 0x8;
+    static final byte[] CHAR_CLASS = new byte[0x80];
+
+    static {
+        for(int i=0; i<spaces.length(); i++)
+            CHAR_CLASS[spaces.charAt(i)] |= SPACE;
+        for(int i=0; i<borders.length(); i++)
+            CHAR_CLASS[borders.charAt(i)] |= BORDER;
+        for(int i=0; i<digits.length(); i++)
+            CHAR_CLASS[digits.charAt(i)] |= DIGIT;
+        for(int i=0; i<label_bad_chars.length(); i++)
+            CHAR_CLASS[label_bad_chars.charAt(i)] |= LABEL_BAD;
     }
 
-    private static final String label_bad_chars = "+*-/\\,:; \r\t\n[](){}\"`'";
     public static boolean is_legal_label(String label) {
         if(label == null)
             throw new IllegalArgumentException("Label can't be null");
 
         int len = label.length();
         for(int i=0; i<len; i++) {
-            if(label_bad_chars.indexOf(label.charAt(i)) != -1)
+            char c = label.charAt(i);
+            if(c < 0x80 && (CHAR_CLASS[c] & LABEL_BAD) != 0)
                 return false;
         }
         return true;
@@ -1,37 +1,128 @@
 package com.minesnap.dcpu.assembler;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.InputStreamReader;
-import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.ListIterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 public class Assembler {
     private boolean littleEndian = true;
     private boolean optimize = true;
     private boolean positionIndependent = false;
     private Map<String, Integer> newNBOpcodes = null;
+    private RewriteDatabase rewrites = null;
     private ResolverList resolvables = null;
     private boolean assembled = false;
+    private boolean mappedOutput = false;
+    // The encoded program, in the output byte order. Built the first
+    // time it's needed after assembling.
+    private ByteBuffer image = null;
+    private int includeThreads = Runtime.getRuntime().availableProcessors();
+    private Executor includeExecutor = null;
+    private SourceCache sourceCache = null;
+    private BuildCache buildCache = null;
+    private IOException buildCacheError = null;
+    // The files that the last parse read, the root file among them.
+    private List<BuildCache.Dependency> dependencies = null;
+    private boolean collectStats = false;
+    private boolean recordSourceMap = false;
+    private AssemblerStats stats = null;
+    // The name of what's being assembled, for profiling events.
+    private String sourceName = null;
+    private int tokenCount = 0;
+    private static final AssemblerEvents EVENTS = AssemblerEvents.get();
+
+    // Sources assembled from memory without a resolver can't include
+    // anything.
+    private static final IncludeResolver NO_INCLUDES = new IncludeResolver() {
+            public ByteBuffer resolve(String path) {
+                return null;
+            }
+        };
+
+    // Included files are read on pools shared by every Assembler, one
+    // for each thread count, so that assembling doesn't start and stop
+    // threads every time. A pool only starts its threads once there's
+    // something to read, and they're daemons so they never keep the
+    // JVM running.
+    private static final ConcurrentMap<Integer, ForkJoinPool> INCLUDE_POOLS
+        = new ConcurrentHashMap<Integer, ForkJoinPool>();
+    private static final ForkJoinPool.ForkJoinWorkerThreadFactory INCLUDE_THREAD_FACTORY
+        = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("include-reader-"+thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
 
     public Assembler() {
     }
 
+    // Returns the shared pool with the given number of threads that
+    // included files are read on.
+    static ForkJoinPool getIncludePool(int threads) {
+        ForkJoinPool pool = INCLUDE_POOLS.get(threads);
+        if(pool == null) {
+            // Tasks are never joined, so they're run in the order
+            // they're found, like the includes themselves.
+            pool = new ForkJoinPool(threads, INCLUDE_THREAD_FACTORY, null, true);
+            ForkJoinPool raced = INCLUDE_POOLS.putIfAbsent(threads, pool);
+            if(raced != null) {
+                pool.shutdown();
+                pool = raced;
+            }
+        }
+        return pool;
+    }
+
     public void setLittleEndian(boolean littleEndian) {
         this.littleEndian = littleEndian;
+        image = null;
+        // An image from the build cache can't be encoded again.
+        if(resolvables == null)
+            assembled = false;
     }
 
     public void setOptimizations(boolean optimize) {
         this.optimize = optimize;
     }
 
+    // The superoptimizer's rules to rewrite instructions with while
+    // optimizations are on, or null for none.
+    public void setRewrites(RewriteDatabase rewrites) {
+        this.rewrites = rewrites;
+    }
+
+    // Writes output files through a memory mapping instead of a
+    // channel write. Doesn't apply to standard output.
+    public void setMappedOutput(boolean mappedOutput) {
+        this.mappedOutput = mappedOutput;
+    }
+
     public void setPositionIndependent(boolean positionIndependent) {
         this.positionIndependent = positionIndependent;
     }
@@ -45,44 +136,317 @@ public class Assembler {
         this.newNBOpcodes = newNBOpcodes;
     }
 
+    // Included files are read and tokenized ahead of time by this many
+    // threads. Zero reads each one only when it's reached.
+    public void setIncludeThreads(int includeThreads) {
+        if(includeThreads < 0)
+            throw new IllegalArgumentException("Thread count can't be negative");
+        this.includeThreads = includeThreads;
+    }
+
+    // Reads included files ahead of time on the given executor instead
+    // of on threads of the assembler's own.
+    public void setIncludeExecutor(Executor includeExecutor) {
+        this.includeExecutor = includeExecutor;
+    }
+
+    // Keeps tokenized source files in the cache between assemblies.
+    public void setSourceCache(SourceCache sourceCache) {
+        this.sourceCache = sourceCache;
+    }
+
+    // Reads programs back from the cache instead of assembling them
+    // again when none of their files or settings have changed, and
+    // stores the ones that do get assembled.
+    public void setBuildCache(BuildCache buildCache) {
+        this.buildCache = buildCache;
+    }
+
+    // Measures every assembly, which costs a little time per included
+    // file.
+    public void setCollectStats(boolean collectStats) {
+        this.collectStats = collectStats;
+    }
+
+    // Keeps where every word came from, so that getSourceMap can be
+    // called after assembling. Programs that aren't mapped don't pay
+    // for it.
+    public void setRecordSourceMap(boolean recordSourceMap) {
+        this.recordSourceMap = recordSourceMap;
+    }
+
+    // The statistics of the last assembly, link or object file, or
+    // null if they weren't being collected. Emission is only counted
+    // once the program has been written or asked for.
+    public AssemblerStats getStats() {
+        return stats;
+    }
+
     public void assemble(String filename)
         throws FileNotFoundException, CompileError, IOException {
-        File sourceDir;
-        Reader in;
         if(filename.equals("-")) {
-            sourceDir = new File(".");
-            in = new InputStreamReader(System.in, "UTF-8");
+            assemble(null, filename);
+        } else {
+            assemble(new File(filename), filename);
+        }
+    }
+
+    // Assembles the given file, using filename as its name in
+    // messages. Reads standard input if the file is null.
+    public void assemble(File sourcefile, String filename)
+        throws FileNotFoundException, CompileError, IOException {
+        sourceName = filename;
+        stats = collectStats ? new AssemblerStats(filename) : null;
+        buildCacheError = null;
+        String settings = null;
+        if(buildCache != null && sourcefile != null) {
+            settings = buildSettings();
+            // The cache only has the image, not where it came from.
+            ByteBuffer cached = recordSourceMap ? null : buildCache.get(sourcefile, settings);
+            if(cached != null) {
+                resolvables = null;
+                image = cached.order(byteOrder());
+                assembled = true;
+                if(stats != null)
+                    stats.setFromBuildCache(true);
+                return;
+            }
+        }
+        parse(sourcefile, filename);
+        prepare();
+        assembled = true;
+        if(settings != null) {
+            try {
+                buildCache.put(sourcefile, settings, dependencies, getImageBytes());
+            } catch (IOException e) {
+                // The program was still assembled.
+                buildCacheError = e;
+            }
+        }
+    }
+
+    // The error that kept the last assembly from being stored in the
+    // build cache, or null if there was none.
+    public IOException getBuildCacheError() {
+        return buildCacheError;
+    }
+
+    // Assembles source text that isn't in a file, using filename as
+    // its name in messages. Included files are taken from the
+    // resolver, which may be null if the source includes nothing, and
+    // nothing is read from the filesystem.
+    public void assemble(CharSequence source, String filename, IncludeResolver resolver)
+        throws CompileError, IOException {
+        assemble(Charset.forName("UTF-8").encode(CharBuffer.wrap(source)), filename, resolver);
+    }
+
+    // Assembles UTF-8 source that isn't in a file.
+    public void assemble(ByteBuffer source, String filename, IncludeResolver resolver)
+        throws CompileError, IOException {
+        sourceName = filename;
+        stats = collectStats ? new AssemblerStats(filename) : null;
+        parse(null, source, filename, resolver != null ? resolver : NO_INCLUDES);
+        prepare();
+        assembled = true;
+    }
+
+    // Everything besides the sources that decides what the program
+    // assembles into.
+    private String buildSettings() {
+        StringBuilder settings = new StringBuilder();
+        settings.append(littleEndian ? "LE" : "BE");
+        if(optimize)
+            settings.append(" optimize");
+        if(optimize && rewrites != null)
+            settings.append(" rewrites=").append(rewrites.getDigest());
+        if(positionIndependent)
+            settings.append(" pic");
+        if(newNBOpcodes != null) {
+            for(Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(newNBOpcodes).entrySet())
+                settings.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return settings.toString();
+    }
+
+    // Parses the file without laying it out, so that it can be written
+    // as an object file. Labels that it doesn't define are left for
+    // the linker to find.
+    public void assembleObject(String filename)
+        throws FileNotFoundException, CompileError, IOException {
+        if(filename.equals("-")) {
+            assembleObject(null, filename);
         } else {
-            File sourcefile = new File(filename);
-            sourceDir = sourcefile.getParentFile();
-            in = new InputStreamReader(new FileInputStream(sourcefile), "UTF-8");
+            assembleObject(new File(filename), filename);
+        }
+    }
+
+    public void assembleObject(File sourcefile, String filename)
+        throws FileNotFoundException, CompileError, IOException {
+        sourceName = filename;
+        stats = collectStats ? new AssemblerStats(filename) : null;
+        parse(sourcefile, filename);
+    }
+
+    // Links object files into a program, as if the sources they were
+    // assembled from had been included one after another. A null file
+    // is read from standard input.
+    public void link(List<File> objects)
+        throws FileNotFoundException, CompileError, IOException {
+        assembled = false;
+        image = null;
+        resolvables = new ResolverList();
+        // Object files don't say where their code came from.
+        if(recordSourceMap)
+            resolvables.recordSources(null);
+        tokenCount = 0;
+        StringBuilder names = new StringBuilder();
+        for(File object : objects) {
+            if(names.length() != 0)
+                names.append(' ');
+            names.append(object == null ? "-" : object.getPath());
+        }
+        sourceName = names.toString();
+        stats = collectStats ? new AssemblerStats(sourceName) : null;
+        // Reading object files counts as parsing.
+        long startNanos = System.nanoTime();
+        long startAllocated = stats != null ? AssemblerStats.allocatedBytes() : 0;
+        Object event = EVENTS.beginPhase();
+        for(File object : objects) {
+            if(object == null) {
+                ObjectFile.read(System.in, "-", resolvables);
+                continue;
+            }
+            FileInputStream in = new FileInputStream(object);
+            try {
+                ObjectFile.read(in, object.getPath(), resolvables);
+            } finally {
+                in.close();
+            }
+        }
+        EVENTS.endPhase(event, "link", sourceName, 0, resolvableCount(), resolvables.getWordCount());
+        if(stats != null) {
+            stats.add(AssemblerStats.Phase.PARSE, System.nanoTime() - startNanos,
+                      AssemblerStats.allocatedBytes() - startAllocated);
+            countResolvables();
+        }
+        prepare();
+        assembled = true;
+    }
+
+    private void prepare()
+        throws CompileError {
+        long startNanos = System.nanoTime();
+        long startAllocated = stats != null ? AssemblerStats.allocatedBytes() : 0;
+        Object event = EVENTS.beginPhase();
+        resolvables.prepare();
+        EVENTS.endPhase(event, "relaxation", sourceName, tokenCount, resolvableCount(), resolvables.getWordCount());
+        if(stats != null) {
+            stats.add(AssemblerStats.Phase.RELAXATION, System.nanoTime() - startNanos,
+                      AssemblerStats.allocatedBytes() - startAllocated);
+            stats.setPasses(resolvables.getPassCount(), resolvables.getResizedJumps());
+        }
+    }
+
+    private void countResolvables() {
+        stats.setLabelCount(resolvables.getLabelCount());
+        stats.setResolvableCount(resolvableCount());
+    }
+
+    private int resolvableCount() {
+        return resolvables.getEntryCount() - resolvables.getLabelCount();
+    }
+
+    private void parse(File sourcefile, String filename)
+        throws FileNotFoundException, CompileError, IOException {
+        parse(sourcefile, null, filename, null);
+    }
+
+    // Parses the given content if there is any, with its includes
+    // taken from the resolver. Otherwise parses the file, or standard
+    // input if the file is null.
+    private void parse(File sourcefile, ByteBuffer content, String filename, IncludeResolver resolver)
+        throws FileNotFoundException, CompileError, IOException {
+        long startNanos = System.nanoTime();
+        long startAllocated = stats != null ? AssemblerStats.allocatedBytes() : 0;
+        Object event = EVENTS.beginPhase();
+        TokenTable tokens = new TokenTable();
+        IncludeGraph sources = new IncludeGraph(tokens);
+        sources.setStats(stats);
+        IncludePrefetcher prefetcher = null;
+        if(resolver != null) {
+            sources.setIncludeResolver(resolver);
+        } else if(includeExecutor != null) {
+            prefetcher = new IncludePrefetcher(includeExecutor, sourceCache);
+        } else if(includeThreads > 0) {
+            prefetcher = new IncludePrefetcher(getIncludePool(includeThreads), sourceCache);
         }
-        List<Token> tokens;
-	try {
-            tokens = ASMTokenizer.tokenize(in, sourceDir, filename);
+        if(resolver == null)
+            sources.setSourceCache(sourceCache);
+        if(prefetcher != null) {
+            prefetcher.setStats(stats);
+            sources.setPrefetcher(prefetcher);
+        }
+        try {
+            int root;
+            if(content != null) {
+                root = sources.addSource(content, new File(filename).getParentFile(), filename, IncludeGraph.normalize(filename));
+            } else if(sourcefile == null) {
+                root = sources.addSource(ByteTokenizer.readFully(System.in), new File("."), filename, null);
+            } else {
+                root = sources.addSource(sourcefile, filename);
+            }
+            parse(sources, root);
         } finally {
-            in.close();
+            // Whatever is left was never included, say after an error.
+            if(prefetcher != null)
+                prefetcher.cancel();
+        }
+        tokenCount = tokens.size();
+        tokens.trimToSize();
+        EVENTS.endPhase(event, "parse", sourceName, tokenCount, resolvableCount(), resolvables.getWordCount());
+        if(stats != null) {
+            // The tokenizing done on this thread happened in the
+            // middle of parsing.
+            long tokenizeNanos = sources.getTokenizeNanos();
+            long tokenizeAllocated = sources.getTokenizeAllocatedBytes();
+            stats.add(AssemblerStats.Phase.TOKENIZE, tokenizeNanos, tokenizeAllocated);
+            stats.add(AssemblerStats.Phase.PARSE, System.nanoTime() - startNanos - tokenizeNanos,
+                      AssemblerStats.allocatedBytes() - startAllocated - tokenizeAllocated);
+            stats.setTokenCount(tokens.size());
+            countResolvables();
         }
+    }
+
+    private void parse(IncludeGraph sources, int root)
+        throws FileNotFoundException, CompileError, IOException {
+        TokenTable tokens = sources.getTokens();
+        sources.markIncluded(root);
 
         assembled = false;
+        image = null;
         resolvables = new ResolverList();
-        ListIterator<Token> tokensI = tokens.listIterator();
+        if(recordSourceMap)
+            resolvables.recordSources(tokens);
+        dependencies = new ArrayList<BuildCache.Dependency>();
+        TokenCursor tokensI = new TokenCursor(tokens, sources.getStart(root), sources.getEnd(root), root);
         boolean newlineRequired = false;
         while(tokensI.hasNext()) {
-            Token opToken = tokensI.next();
+            int opToken = tokensI.next();
 
-            if(opToken.getText().equals("\n")) {
+            if(tokens.isNewline(opToken)) {
                 newlineRequired = false;
                 continue;
             }
 
+            if(recordSourceMap)
+                resolvables.setSource(opToken);
+
             // Handle labels
-            String opterm = opToken.getText();
-            if(opToken instanceof LabelToken) {
+            if(tokens.getKind(opToken) == TokenTable.LABEL) {
                 try {
-                    resolvables.addLabel(((LabelToken)opToken).getName());
+                    resolvables.addLabel(tokens.getLabelName(opToken));
                 } catch (LabelAlreadyExistsError e) {
-                    throw new TokenCompileError("Duplicate label found", opToken);
+                    throw new TokenCompileError("Duplicate label found", tokens.getToken(opToken));
                 }
                 continue;
             }
@@ -90,14 +454,15 @@ public class Assembler {
             // A newline is required after an instruction before
             // another instruction can be read.
             if(newlineRequired) {
-                throw new TokenCompileError("Expected newline", opToken);
+                throw new TokenCompileError("Expected newline", tokens.getToken(opToken));
             }
             newlineRequired = true;
 
+            String opterm = tokens.getText(opToken);
             Opcode opcode = Opcode.getByName(opterm, newNBOpcodes);
             if(opcode == null) {
                 // Turns out that token wasn't a real opcode
-                throw new TokenCompileError("Unknown opcode", opToken);
+                throw new TokenCompileError("Unknown opcode", tokens.getToken(opToken));
             }
 
             int datRepeat = 1;
@@ -105,12 +470,12 @@ public class Assembler {
             switch(opcode.getType()) {
             case RESERVE:
             {
-                Token countToken = tokensI.next();
+                int countToken = tokensI.next();
                 int count;
-                if(countToken instanceof IntToken) {
-                    count = ((IntToken)countToken).getValue();
+                if(tokens.getKind(countToken) == TokenTable.INT) {
+                    count = tokens.getIntValue(countToken);
                 } else {
-                    throw new TokenCompileError("Expected integer", countToken);
+                    throw new TokenCompileError("Expected integer", tokens.getToken(countToken));
                 }
 
                 List<UnresolvedData> dataList = new ArrayList<UnresolvedData>(1);
@@ -121,21 +486,21 @@ public class Assembler {
             }
             case TIMES:
             {
-                Token countToken = tokensI.next();
-                if(countToken instanceof IntToken) {
-                    datRepeat = ((IntToken)countToken).getValue();
+                int countToken = tokensI.next();
+                if(tokens.getKind(countToken) == TokenTable.INT) {
+                    datRepeat = tokens.getIntValue(countToken);
                 } else {
-                    throw new TokenCompileError("Expected integer", countToken);
+                    throw new TokenCompileError("Expected integer", tokens.getToken(countToken));
                 }
 
                 opToken = tokensI.next();
-                opterm = opToken.getText();
+                opterm = tokens.getText(opToken);
                 opcode = Opcode.getByName(opterm, newNBOpcodes);
                 if(opcode == null) {
-                    throw new TokenCompileError("Unknown opcode", opToken);
+                    throw new TokenCompileError("Unknown opcode", tokens.getToken(opToken));
                 }
                 if(opcode.getType() != OpcodeType.DAT) {
-                    throw new TokenCompileError("Expected DAT opcode after TIMES/DUP opcode", opToken);
+                    throw new TokenCompileError("Expected DAT opcode after TIMES/DUP opcode", tokens.getToken(opToken));
                 }
 
                 // Fall through to DAT
@@ -147,25 +512,24 @@ public class Assembler {
 
                 while(tokensI.hasNext()) {
                     if(!isFirst) {
-                        Token comma = tokensI.next();
-                        if(comma.getText().equals("\n")) {
+                        int comma = tokensI.next();
+                        if(tokens.isNewline(comma)) {
                             // Put the newline back so that way it's
                             // detected later properly.
                             tokensI.previous();
                             break;
-                        } else if(!comma.getText().equals(",")) {
-                            throw new TokenCompileError("Expected comma", comma);
+                        } else if(!tokens.isSymbol(comma, ',')) {
+                            throw new TokenCompileError("Expected comma", tokens.getToken(comma));
                         }
                     } else {
                         isFirst = false;
                     }
-                    Token dataToken = tokensI.next();
-                    if(dataToken instanceof StringToken) {
-                        StringToken sdataToken = (StringToken)dataToken;
-                        byte[] bytes = sdataToken.getValue().getBytes(Charset.forName("UTF-16LE"));
+                    int dataIndex = tokensI.next();
+                    if(tokens.getKind(dataIndex) == TokenTable.STRING) {
+                        byte[] bytes = tokens.getStringValue(dataIndex).getBytes(Charset.forName("UTF-16LE"));
                         assert(bytes.length%2 == 0);
                         for(int k=0; k<bytes.length; k+=2) {
-                            dataList.add(new UnresolvedData(dataToken, bytes[k] | (bytes[k+1]<<8)));
+                            dataList.add(new UnresolvedData(tokens, dataIndex, bytes[k] | (bytes[k+1]<<8)));
                         }
                     } else {
                         tokensI.previous();
@@ -201,17 +565,17 @@ public class Assembler {
             }
             case INCBIN:
             {
-                Token incfilenameToken = tokensI.next();
-                if(!(incfilenameToken instanceof StringToken)) {
-                    throw new TokenCompileError("Expected string for filename", incfilenameToken);
+                int incfilenameToken = tokensI.next();
+                if(tokens.getKind(incfilenameToken) != TokenTable.STRING) {
+                    throw new TokenCompileError("Expected string for filename", tokens.getToken(incfilenameToken));
                 }
-                String incfilename = ((StringToken)incfilenameToken).getValue();
-                File incfile = new File(incfilenameToken.getSourceDir(), incfilename);
+                String incfilename = tokens.getStringValue(incfilenameToken);
+                File incfile = new File(tokens.getSourceDir(incfilenameToken), incfilename);
 
-                Token typeToken = tokensI.next();
-                String typeS = typeToken.getText();
+                int typeToken = tokensI.next();
+                String typeS = tokens.getText(typeToken);
                 boolean incLittleEndian;
-                if(typeS.equals("\n")) {
+                if(tokens.isNewline(typeToken)) {
                     // Put the newline back so that way it's detected
                     // later properly.
                     tokensI.previous();
@@ -225,38 +589,54 @@ public class Assembler {
                 } else if(typeS.equals("LE")) {
                     incLittleEndian = true;
                 } else {
-                    throw new TokenCompileError("Unknown endian type", typeToken);
+                    throw new TokenCompileError("Unknown endian type", tokens.getToken(typeToken));
                 }
 
                 try {
-                    resolvables.add(new BinInclude(incfile, incLittleEndian));
+                    Object event = EVENTS.beginSource();
+                    BinInclude bin;
+                    FileStamp stamp = null;
+                    IncludeResolver resolver = sources.getIncludeResolver();
+                    if(resolver != null) {
+                        ByteBuffer content = resolver.resolve(IncludeGraph.normalize(incfile.getPath()));
+                        if(content == null)
+                            throw new IllegalIncludeException("File "+incfile+" does not exist");
+                        bin = new BinInclude(incfile, content, incLittleEndian);
+                    } else {
+                        stamp = new FileStamp(incfile);
+                        bin = new BinInclude(incfile, incLittleEndian);
+                    }
+                    if(event != null)
+                        EVENTS.endSource(event, incfile.getPath(), true, bin.wordCount()*2L, 0);
+                    resolvables.add(bin);
+                    dependencies.add(new BuildCache.Dependency(incfile, null, stamp));
+                    if(stats != null)
+                        stats.addBinaryIncludeBytes(bin.wordCount()*2L);
                 } catch(IllegalIncludeException e) {
-                    throw new TokenCompileError(e.getMessage(), incfilenameToken);
+                    throw new TokenCompileError(e.getMessage(), tokens.getToken(incfilenameToken));
                 }
                 break;
             }
             case INCLUDE:
+            case INCLUDEONCE:
             {
-                Token incfilenameToken = tokensI.next();
-                if(!(incfilenameToken instanceof StringToken)) {
-                    throw new TokenCompileError("Expected string for filename", incfilenameToken);
+                int incfilenameToken = tokensI.next();
+                if(tokens.getKind(incfilenameToken) != TokenTable.STRING) {
+                    throw new TokenCompileError("Expected string for filename", tokens.getToken(incfilenameToken));
                 }
-                String incfilename = ((StringToken)incfilenameToken).getValue();
-                File incfile = new File(incfilenameToken.getSourceDir(), incfilename);
+                String incfilename = tokens.getStringValue(incfilenameToken);
+                File incfile = new File(tokens.getSourceDir(incfilenameToken), incfilename);
 
-                Reader incIn = new InputStreamReader(new FileInputStream(incfile), "UTF-8");
-                List<Token> incTokens;
-                try {
-                    incTokens = ASMTokenizer.tokenize(incIn, incfile.getParentFile(), incfile.getName());
-                } finally {
-                    incIn.close();
+                int source = sources.getSource(incfile);
+                if(tokensI.isReading(source)) {
+                    throw new TokenCompileError("Circular include of "+incfile, tokens.getToken(incfilenameToken));
+                }
+                boolean first = sources.markIncluded(source);
+                if(first || opcode.getType() == OpcodeType.INCLUDE) {
+                    // Read the included tokens after what should be the
+                    // newline following this directive.
+                    tokensI.insertAfterNext(sources.getStart(source), sources.getEnd(source), source);
                 }
-                // Add the included tokens after what should be the
-                // newline following this directive.
-                tokens.addAll(tokensI.nextIndex()+1, incTokens);
-                // Reset the tokensI iterator or else it will complain
-                // about a concurrent modification.
-                tokensI = tokens.listIterator(tokensI.nextIndex());
                 break;
             }
             default:
@@ -265,9 +645,9 @@ public class Assembler {
                 instr.setValueA(parseValueTokens(tokensI));
                 // If this opcode has 2 arguments
                 if(opcode.isBasic()) {
-                    Token comma = tokensI.next();
-                    if(!comma.getText().equals(","))
-                        throw new TokenCompileError("Expected comma", comma);
+                    int comma = tokensI.next();
+                    if(!tokens.isSymbol(comma, ','))
+                        throw new TokenCompileError("Expected comma", tokens.getToken(comma));
                     instr.setValueB(parseValueTokens(tokensI));
                 }
                 if(optimize) {
@@ -285,57 +665,213 @@ public class Assembler {
                 // added the optimized version.
                 if(instr != null) {
                     resolvables.add(instr);
+                    if(optimize && rewrites != null)
+                        rewrites.apply(resolvables);
                 }
             }
             }
         }
-        resolvables.prepare();
-        assembled = true;
+
+        for(int source=0; source<sources.size(); source++) {
+            String path = sources.getPath(source);
+            if(path != null)
+                dependencies.add(new BuildCache.Dependency(new File(path), sources.getContent(source),
+                                                           sources.getStamp(source)));
+        }
+    }
+
+    public void writeObjectTo(String outname)
+        throws IOException {
+        if(outname.equals("-")) {
+            writeObjectTo((File)null);
+        } else {
+            writeObjectTo(new File(outname));
+        }
+    }
+
+    // Writes to standard output if the file is null.
+    public void writeObjectTo(File outfile)
+        throws IOException {
+        if(resolvables == null) {
+            throw new IllegalStateException("assembleObject method must be called before writeObjectTo");
+        }
+
+        OutputStream out;
+        if(outfile == null)
+            out = System.out;
+        else
+            out = new FileOutputStream(outfile, false);
+        try {
+            ObjectFile.write(resolvables, out);
+        } finally {
+            out.close();
+        }
     }
 
     public void writeTo(String outname)
+        throws IOException {
+        if(outname.equals("-")) {
+            writeTo((File)null);
+        } else {
+            writeTo(new File(outname));
+        }
+    }
+
+    // Writes to standard output if the file is null.
+    public void writeTo(File outfile)
         throws IOException {
         if(!assembled) {
             throw new IllegalStateException("assemble method must be called before writeTo");
         }
 
-        WordWriter out;
-        if(outname.equals("-")) {
-            out = new WordWriter(System.out, littleEndian);
+        if(outfile == null) {
+            ByteBuffer image = getImageBytes().duplicate();
+            WritableByteChannel out = Channels.newChannel(System.out);
+            try {
+                while(image.hasRemaining())
+                    out.write(image);
+            } finally {
+                out.close();
+            }
+        } else if(mappedOutput) {
+            writeMapped(outfile);
         } else {
-            out = new WordWriter(new FileOutputStream(outname, false), littleEndian);
+            ByteBuffer image = getImageBytes().duplicate();
+            FileOutputStream out = new FileOutputStream(outfile, false);
+            try {
+                FileChannel channel = out.getChannel();
+                while(image.hasRemaining())
+                    channel.write(image);
+            } finally {
+                out.close();
+            }
         }
+    }
+
+    // Encodes the program straight into a mapping of the output file,
+    // which then also serves as the image.
+    private void writeMapped(File outfile)
+        throws IOException {
+        int size = image != null ? image.remaining() : resolvables.getWordCount()*2;
+        RandomAccessFile out = new RandomAccessFile(outfile, "rw");
         try {
-            resolvables.writeTo(out);
+            out.setLength(size);
+            MappedByteBuffer mapped = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapped.order(byteOrder());
+            if(image != null) {
+                mapped.put(image.duplicate());
+                mapped.flip();
+            } else {
+                emit(mapped);
+            }
+            mapped.force();
+            image = mapped;
         } finally {
             out.close();
         }
     }
 
-    private static UnresolvedData parseLiteralExpression(ListIterator<Token> tokensI)
+    // Returns the assembled program, one element per word.
+    public ShortBuffer getImage()
+        throws IOException {
+        if(!assembled) {
+            throw new IllegalStateException("assemble method must be called before getImage");
+        }
+        return getImageBytes().asShortBuffer().asReadOnlyBuffer();
+    }
+
+    // Returns a copy of the assembled program, one element per word.
+    public short[] getImageWords()
+        throws IOException {
+        ShortBuffer words = getImage();
+        short[] array = new short[words.remaining()];
+        words.get(array);
+        return array;
+    }
+
+    // Returns the address of every label the program defines, in the
+    // order they're defined.
+    public Map<String, Integer> getLabels() {
+        if(!assembled) {
+            throw new IllegalStateException("assemble method must be called before getLabels");
+        }
+        if(resolvables == null) {
+            throw new IllegalStateException("Labels aren't kept for programs from the build cache");
+        }
+        return Collections.unmodifiableMap(resolvables.getLabelPositions());
+    }
+
+    // Returns the source file and line of every word of the program.
+    // Words linked from object files have no source.
+    public SourceMap getSourceMap() {
+        if(!assembled) {
+            throw new IllegalStateException("assemble method must be called before getSourceMap");
+        }
+        if(resolvables == null || !resolvables.isRecordingSources()) {
+            throw new IllegalStateException("setRecordSourceMap(true) must be called before assembling to get a source map");
+        }
+        return resolvables.getSourceMap();
+    }
+
+    private ByteBuffer getImageBytes()
+        throws IOException {
+        if(image == null)
+            image = emit(null);
+        return image;
+    }
+
+    // Encodes the program into the buffer, or into a new one if it's
+    // null, and returns the buffer.
+    private ByteBuffer emit(ByteBuffer buffer)
+        throws IOException {
+        long startNanos = System.nanoTime();
+        long startAllocated = stats != null ? AssemblerStats.allocatedBytes() : 0;
+        Object event = EVENTS.beginPhase();
+        if(buffer == null) {
+            buffer = ByteBuffer.allocate(resolvables.getWordCount()*2);
+            buffer.order(byteOrder());
+        }
+        resolvables.writeTo(new WordWriter(buffer));
+        if(buffer.hasRemaining())
+            throw new IOException("Program is smaller than its laid out size");
+        buffer.flip();
+        EVENTS.endPhase(event, "emission", sourceName, tokenCount, resolvableCount(), resolvables.getWordCount());
+        if(stats != null) {
+            stats.add(AssemblerStats.Phase.EMISSION, System.nanoTime() - startNanos,
+                      AssemblerStats.allocatedBytes() - startAllocated);
+        }
+        return buffer;
+    }
+
+    private ByteOrder byteOrder() {
+        return littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    private UnresolvedData parseLiteralExpression(TokenCursor tokensI)
         throws TokenCompileError {
-        Token firstToken = tokensI.next();
+        TokenTable tokens = tokensI.getTokens();
+        int firstToken = tokensI.next();
         tokensI.previous();
 
         int offset = 0;
         String labelRef = null;
         boolean nextIsNegative = false;
         while(true) {
-            Token expToken = tokensI.next();
-            String expTokenS = expToken.getText();
-            if(expToken instanceof SymbolToken) {
-                if(expTokenS.equals("-")) {
+            int expToken = tokensI.next();
+            int expKind = tokens.getKind(expToken);
+            if(expKind == TokenTable.SYMBOL) {
+                if(tokens.isSymbol(expToken, '-')) {
                     if(nextIsNegative) {
-                        throw new TokenCompileError("Multiple '-' symbols may not be chained here", expToken);
+                        throw new TokenCompileError("Multiple '-' symbols may not be chained here", tokens.getToken(expToken));
                     } else {
                         nextIsNegative = true;
                     }
                     continue;
                 } else {
-                    throw new TokenCompileError("Was not expecting symbol", expToken);
+                    throw new TokenCompileError("Was not expecting symbol", tokens.getToken(expToken));
                 }
-            } else if(expToken instanceof IntToken) {
-                int value = ((IntToken)expToken).getValue();
+            } else if(expKind == TokenTable.INT) {
+                int value = tokens.getIntValue(expToken);
                 if(nextIsNegative) {
                     value = -value;
                     nextIsNegative = false;
@@ -343,64 +879,59 @@ public class Assembler {
                 offset += value;
             } else {
                 if(nextIsNegative) {
-                    throw new TokenCompileError("You can not subtract the value of a label", expToken);
-                }
-                try {
-                    ValueType register = ValueType.valueOf(expTokenS);
-                    throw new TokenCompileError("Can not add register in literal", expToken);
-                } catch (IllegalArgumentException e) {
-                    // This token is a label and not a register.
-                    if(!ASMTokenizer.is_legal_label(expTokenS))
-                        throw new TokenCompileError("Is not a legal label name", expToken);
-                    if(labelRef != null)
-                        throw new TokenCompileError("Can not have multiple labels in expression", expToken);
-                    labelRef = expTokenS;
+                    throw new TokenCompileError("You can not subtract the value of a label", tokens.getToken(expToken));
                 }
+                String expTokenS = tokens.getText(expToken);
+                if(ValueType.getByName(expTokenS) != null)
+                    throw new TokenCompileError("Can not add register in literal", tokens.getToken(expToken));
+                // This token is a label and not a register.
+                if(!ASMTokenizer.is_legal_label(expTokenS))
+                    throw new TokenCompileError("Is not a legal label name", tokens.getToken(expToken));
+                if(labelRef != null)
+                    throw new TokenCompileError("Can not have multiple labels in expression", tokens.getToken(expToken));
+                labelRef = expTokenS;
             }
             // Now we have either a '+', ',' or '\n' coming up.
-            Token sepToken = tokensI.next();
-            String sepTokenS = sepToken.getText();
-            if(sepTokenS.equals(",") || sepTokenS.equals("\n")) {
+            int sepToken = tokensI.next();
+            if(tokens.isSymbol(sepToken, ',') || tokens.isNewline(sepToken)) {
                 // Put that token back for the caller to process.
                 tokensI.previous();
                 break;
-            } else if(sepTokenS.equals("+")) {
+            } else if(tokens.isSymbol(sepToken, '+')) {
                 nextIsNegative = false;
                 continue;
-            } else if(sepTokenS.equals("-")) {
+            } else if(tokens.isSymbol(sepToken, '-')) {
                 nextIsNegative = true;
                 continue;
             } else {
-                throw new TokenCompileError("Expected a '+', '-', ',' or '\\n'", sepToken);
+                throw new TokenCompileError("Expected a '+', '-', ',' or '\\n'", tokens.getToken(sepToken));
             }
         }
         if(labelRef == null) {
-            checkIntWordRange(firstToken, offset);
-            return new UnresolvedData(firstToken, offset & 0xffff);
+            checkIntWordRange(tokens, firstToken, offset);
+            return new UnresolvedData(tokens, firstToken, offset & 0xffff);
         } else {
-            return new UnresolvedOffset(firstToken, labelRef, offset);
+            return new UnresolvedOffset(tokens, firstToken, labelRef, resolvables.getSymbols().intern(labelRef), offset);
         }
     }
 
     // Returns the value that must be passed to Instruction.setValueA or B
-    private static Value parseValueTokens(ListIterator<Token> tokensI)
+    private Value parseValueTokens(TokenCursor tokensI)
         throws TokenCompileError {
-        Token first = tokensI.next();
-        if(!first.getText().equals("[")) {
+        TokenTable tokens = tokensI.getTokens();
+        int first = tokensI.next();
+        if(!tokens.isSymbol(first, '[')) {
             // We're about to process some expression that is the name
             // of a register, or is an arbitrary amount of numbers
             // added together optionally added to a label.
-            String firstS = first.getText();
-            try {
-                ValueType register = ValueType.valueOf(firstS);
+            ValueType register = ValueType.getByName(tokens.getText(first));
+            if(register != null)
                 return new Value(register);
-            } catch (IllegalArgumentException e) {
-                // If it wasn't a register, then it's some literal
-                // expression.
-                tokensI.previous();
-                UnresolvedData data = parseLiteralExpression(tokensI);
-                return new Value(ValueType.LITERAL, data);
-            }
+            // If it wasn't a register, then it's some literal
+            // expression.
+            tokensI.previous();
+            UnresolvedData data = parseLiteralExpression(tokensI);
+            return new Value(ValueType.LITERAL, data);
         } else {
             // We're about to process some dereference expression like
             // [--SP], [SP++], [B], [B+3], [somelabel+B],
@@ -412,39 +943,35 @@ public class Assembler {
             String labelRef = null;
             boolean nextIsNegative = false;
             while(true) {
-                Token expToken = tokensI.next();
-                String expTokenS = expToken.getText();
+                int expToken = tokensI.next();
 
-                if(expTokenS.equals("\n")) {
-                    throw new TokenCompileError("Was not expecting newline", expToken);
-                } else if(expToken instanceof IntToken) {
-                    int value = ((IntToken)expToken).getValue();
+                if(tokens.isNewline(expToken)) {
+                    throw new TokenCompileError("Was not expecting newline", tokens.getToken(expToken));
+                } else if(tokens.getKind(expToken) == TokenTable.INT) {
+                    int value = tokens.getIntValue(expToken);
                     if(nextIsNegative) {
                         value = -value;
                         nextIsNegative = false;
                     }
                     offset += value;
-                } else if(expTokenS.equals("+")) {
+                } else if(tokens.isSymbol(expToken, '+')) {
                     if(register == ValueType.SP) {
                         register = ValueType.POP;
                     } else {
-                        throw new TokenCompileError("Invalid dereference expression", expToken);
+                        throw new TokenCompileError("Invalid dereference expression", tokens.getToken(expToken));
                     }
-                } else if(expTokenS.equals("-")) {
+                } else if(tokens.isSymbol(expToken, '-')) {
                     if(nextIsNegative) {
                         // We have two '-' symbols in a row. This is only legal if it precedes "SP".
                         if(register != null)
-                            throw new TokenCompileError("Invalid dereference expression", expToken);
+                            throw new TokenCompileError("Invalid dereference expression", tokens.getToken(expToken));
 
                         expToken = tokensI.next();
-                        expTokenS = expToken.getText();
-                        try {
-                            register = ValueType.valueOf(expTokenS);
-                        } catch (IllegalArgumentException e) {
-                            throw new TokenCompileError("Multiple '-' symbols may not be chained here", expToken);
-                        }
+                        register = ValueType.getByName(tokens.getText(expToken));
+                        if(register == null)
+                            throw new TokenCompileError("Multiple '-' symbols may not be chained here", tokens.getToken(expToken));
                         if(register != ValueType.SP)
-                            throw new TokenCompileError("Can not decrement non-SP register", expToken);
+                            throw new TokenCompileError("Can not decrement non-SP register", tokens.getToken(expToken));
                         register = ValueType.PUSH;
                     } else {
                         nextIsNegative = true;
@@ -456,51 +983,51 @@ public class Assembler {
                     // label per deref expression, and we can only
                     // have up to one register per deref expression.
                     if(nextIsNegative) {
-                        throw new TokenCompileError("You can not subtract the value of a label or register", expToken);
+                        throw new TokenCompileError("You can not subtract the value of a label or register", tokens.getToken(expToken));
                     }
-                    try {
-                        ValueType temp = ValueType.valueOf(expTokenS);
+                    String expTokenS = tokens.getText(expToken);
+                    ValueType temp = ValueType.getByName(expTokenS);
+                    if(temp != null) {
                         if(register != null)
-                            throw new TokenCompileError("Can not have multiple registers in dereference expression", expToken);
+                            throw new TokenCompileError("Can not have multiple registers in dereference expression", tokens.getToken(expToken));
                         register = temp;
-                    } catch (IllegalArgumentException e) {
+                    } else {
                         // This token is a label and not a register.
                         if(!ASMTokenizer.is_legal_label(expTokenS))
-                            throw new TokenCompileError("Is not a legal label name", expToken);
+                            throw new TokenCompileError("Is not a legal label name", tokens.getToken(expToken));
                         if(labelRef != null)
-                            throw new TokenCompileError("Can not have multiple labels in dereference expression", expToken);
+                            throw new TokenCompileError("Can not have multiple labels in dereference expression", tokens.getToken(expToken));
                         labelRef = expTokenS;
                     }
                 }
 
                 // Now we have either a + or ] coming up.
-                Token sepToken = tokensI.next();
-                String sepTokenS = sepToken.getText();
-                if(sepTokenS.equals("]")) {
+                int sepToken = tokensI.next();
+                if(tokens.isSymbol(sepToken, ']')) {
                     break;
-                } else if(sepTokenS.equals("+")) {
+                } else if(tokens.isSymbol(sepToken, '+')) {
                     nextIsNegative = false;
                     continue;
-                } else if(sepTokenS.equals("-")) {
+                } else if(tokens.isSymbol(sepToken, '-')) {
                     nextIsNegative = true;
                     continue;
                 } else {
-                    throw new TokenCompileError("Expected a ']', '+', or '-'", sepToken);
+                    throw new TokenCompileError("Expected a ']', '+', or '-'", tokens.getToken(sepToken));
                 }
             }
             if(register == null) {
                 if(labelRef == null) {
-                    checkIntWordRange(first, offset);
-                    return new Value(ValueType.DN, new UnresolvedData(first, offset & 0xffff));
+                    checkIntWordRange(tokens, first, offset);
+                    return new Value(ValueType.DN, new UnresolvedData(tokens, first, offset & 0xffff));
                 } else {
-                    return new Value(ValueType.DN, new UnresolvedOffset(first, labelRef, offset));
+                    return new Value(ValueType.DN, new UnresolvedOffset(tokens, first, labelRef, resolvables.getSymbols().intern(labelRef), offset));
                 }
             } else {
                 if(register == ValueType.POP || register == ValueType.PUSH) {
                     if(labelRef == null && offset == 0) {
                         return new Value(register);
                     } else {
-                        throw new TokenCompileError("Invalid dereference expression", first);
+                        throw new TokenCompileError("Invalid dereference expression", tokens.getToken(first));
                     }
                 }
                 if(labelRef == null && offset == 0) {
@@ -510,21 +1037,21 @@ public class Assembler {
                     register = register.dereferenceNextPlus();
                     if(labelRef == null) {
                         assert(offset != 0);
-                        checkIntWordRange(first, offset);
-                        return new Value(register, new UnresolvedData(first, offset & 0xffff));
+                        checkIntWordRange(tokens, first, offset);
+                        return new Value(register, new UnresolvedData(tokens, first, offset & 0xffff));
                     } else {
-                        return new Value(register, new UnresolvedOffset(first, labelRef, offset));
+                        return new Value(register, new UnresolvedOffset(tokens, first, labelRef, resolvables.getSymbols().intern(labelRef), offset));
                     }
                 }
             }
         }
     }
 
-    private static void checkIntWordRange(Token token, int value)
+    private static void checkIntWordRange(TokenTable tokens, int token, int value)
         throws TokenCompileError {
         if((value >= 0 && (value & 0xffff0000) != 0)
            || (value < 0 && (value & 0xffff8000) != 0xffff8000)) {
-            throw new TokenCompileError("Value can not fit in 16 bits", token);
+            throw new TokenCompileError("Value can not fit in 16 bits", tokens.getToken(token));
         }
     }
 }
@@ -0,0 +1,192 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Assembles many files in one JVM, several at a time. Every file is
+// assembled as if it had been given to AssemblerLauncher on its own
+// with the same options, but the files share one SourceCache, so an
+// include that many of them use is only tokenized once.
+//
+// The inputs are source files, directories, which are searched for
+// .dasm16 and .dasm files, and manifests named with a leading '@',
+// which list one input per line. Blank lines and lines starting with
+// '#' are skipped, and relative names are relative to the manifest.
+//
+// What each file's assembly printed is shown in the order the inputs
+// were given, followed by a summary. The exit status is that of the
+// first file that failed, so it's 2, 3 or 5 as for a single file.
+
+public class AssemblerBatch {
+    private static final ThreadFactory BATCH_THREAD_FACTORY = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "assembler-batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+    private static class Result {
+        private final int status;
+        private final byte[] out;
+        private final byte[] err;
+
+        public Result(int status, byte[] out, byte[] err) {
+            this.status = status;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    // Assembles every input with the given options on the given number
+    // of threads and returns the exit status.
+    public static int run(List<String> options, List<String> inputs, int threads,
+                          File workingDir, SourceCache sourceCache, Executor includeExecutor,
+                          PrintStream out, PrintStream err) {
+        List<String> files = new ArrayList<String>();
+        try {
+            for(String input : inputs)
+                addInput(input, workingDir, files);
+        } catch (FileNotFoundException e) {
+            err.println("Error: "+AssemblerLauncher.unresolve(workingDir, e.getMessage()));
+            return 2;
+        } catch (IOException e) {
+            err.println(AssemblerLauncher.unresolve(workingDir, e.toString()));
+            return 5;
+        }
+        if(files.isEmpty()) {
+            err.println("Error: No source files were found.");
+            return 2;
+        }
+
+        if(sourceCache == null)
+            sourceCache = new SourceCache();
+        // Included files are read on threads of their own. If they were
+        // read on the same threads as the files being assembled, those
+        // could all end up waiting for includes that have no thread
+        // left to read them.
+        if(includeExecutor == null)
+            includeExecutor = Assembler.getIncludePool(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, BATCH_THREAD_FACTORY);
+        long start = System.nanoTime();
+        int status = 0;
+        int failed = 0;
+        try {
+            List<Future<Result>> results = new ArrayList<Future<Result>>(files.size());
+            for(String file : files)
+                results.add(executor.submit(assembly(options, file, workingDir, sourceCache, includeExecutor)));
+            for(Future<Result> future : results) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    err.println("Error: Interrupted");
+                    return 5;
+                } catch (ExecutionException e) {
+                    // AssemblerLauncher.run only throws if it has a bug.
+                    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+                    e.getCause().printStackTrace(new PrintStream(trace, true));
+                    result = new Result(6, new byte[0], trace.toByteArray());
+                }
+                out.write(result.out, 0, result.out.length);
+                err.write(result.err, 0, result.err.length);
+                if(result.status != 0) {
+                    failed++;
+                    if(status == 0)
+                        status = result.status;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        out.flush();
+        err.flush();
+        long millis = (System.nanoTime() - start) / 1000000;
+        out.println("Assembled "+(files.size()-failed)+" of "+files.size()+" files in "+millis+" ms"
+                    +(failed != 0 ? ", "+failed+" failed" : ""));
+        return status;
+    }
+
+    private static Callable<Result> assembly(final List<String> options, final String file, final File workingDir,
+                                             final SourceCache sourceCache, final Executor includeExecutor) {
+        return new Callable<Result>() {
+            public Result call() {
+                String[] args = options.toArray(new String[options.size()+1]);
+                args[options.size()] = file;
+                ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+                ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+                int status = AssemblerLauncher.run(args, workingDir, sourceCache, includeExecutor,
+                                                   new PrintStream(stdout, true),
+                                                   new PrintStream(stderr, true));
+                return new Result(status, stdout.toByteArray(), stderr.toByteArray());
+            }
+        };
+    }
+
+    // Adds the source files that the input names, in a fixed order.
+    private static void addInput(String input, File workingDir, List<String> files)
+        throws IOException {
+        if(input.startsWith("@")) {
+            String manifest = input.substring(1);
+            File manifestFile = resolve(workingDir, manifest);
+            File manifestDir = new File(manifest).getParentFile();
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+            try {
+                String line;
+                while((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if(line.length() == 0 || line.startsWith("#"))
+                        continue;
+                    if(manifestDir != null && !new File(line).isAbsolute())
+                        line = new File(manifestDir, line).getPath();
+                    addInput(line, workingDir, files);
+                }
+            } finally {
+                in.close();
+            }
+            return;
+        }
+        File file = resolve(workingDir, input);
+        if(file.isDirectory()) {
+            String[] names = file.list();
+            if(names == null)
+                throw new IOException("Can't list "+input);
+            Arrays.sort(names);
+            for(String name : names) {
+                String path = new File(input, name).getPath();
+                if(resolve(workingDir, path).isDirectory())
+                    addInput(path, workingDir, files);
+                else if(name.endsWith(".dasm16") || name.endsWith(".dasm"))
+                    files.add(path);
+            }
+        } else if(file.exists()) {
+            files.add(input);
+        } else {
+            throw new FileNotFoundException(input+" (No such file or directory)");
+        }
+    }
+
+    private static File resolve(File workingDir, String filename) {
+        File file = new File(filename);
+        if(workingDir != null && !file.isAbsolute())
+            file = new File(workingDir, filename);
+        return file;
+    }
+}
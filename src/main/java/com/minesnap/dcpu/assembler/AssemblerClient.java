@@ -0,0 +1,131 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+// Sends command lines to an AssemblerServer and prints its results as
+// if the assembler had run here. Requests carry the token the server
+// left in this user's home directory, so only the user that started
+// the server can use it.
+
+public class AssemblerClient {
+    // Returned by run() when no server could do the work, so the caller
+    // should assemble locally instead.
+    public static final int UNAVAILABLE = -1;
+
+    // How long to wait for the server to answer the connection and to
+    // take the request before assembling here instead. A server with
+    // every thread busy is no faster than assembling here.
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int ACCEPT_TIMEOUT_MILLIS = 5000;
+
+    private AssemblerClient() {}
+
+    public static int run(int port, String[] args, PrintStream out, PrintStream err)
+        throws IOException {
+        // The server can't see this process's standard streams.
+        for(String arg : args) {
+            if(arg.equals("-"))
+                return UNAVAILABLE;
+        }
+
+        byte[] token = AssemblerServer.readToken(port);
+        if(token == null)
+            return UNAVAILABLE;
+        Socket socket = connect(port);
+        if(socket == null)
+            return UNAVAILABLE;
+        try {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if(!open(socket, request, response, token))
+                return UNAVAILABLE;
+            request.writeInt(AssemblerServer.ASSEMBLE);
+            request.writeUTF(new File("").getAbsolutePath());
+            request.writeInt(args.length);
+            for(String arg : args)
+                request.writeUTF(arg);
+            request.flush();
+
+            int status = response.readInt();
+            out.write(AssemblerServer.readBytes(response));
+            out.flush();
+            err.write(AssemblerServer.readBytes(response));
+            err.flush();
+            return status;
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Returns false if no server was running.
+    public static boolean stop(int port)
+        throws IOException {
+        byte[] token = AssemblerServer.readToken(port);
+        if(token == null)
+            return false;
+        Socket socket = connect(port);
+        if(socket == null)
+            return false;
+        try {
+            DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+            DataInputStream response = new DataInputStream(socket.getInputStream());
+            if(!open(socket, request, response, token))
+                return false;
+            request.writeInt(AssemblerServer.STOP);
+            request.flush();
+            response.readInt();
+            return true;
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Sends the token and waits for the server to take the request.
+    // Returns false if it didn't in time or turned the token down, in
+    // which case nothing has been asked of it.
+    private static boolean open(Socket socket, DataOutputStream request, DataInputStream response, byte[] token)
+        throws IOException {
+        request.writeInt(AssemblerServer.MAGIC);
+        request.writeInt(token.length);
+        request.write(token);
+        request.flush();
+        try {
+            if(response.readInt() != AssemblerServer.MAGIC)
+                return false;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (EOFException e) {
+            return false;
+        }
+        socket.setSoTimeout(0);
+        return true;
+    }
+
+    private static Socket connect(int port)
+        throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getByName(null), port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+            return socket;
+        } catch (ConnectException e) {
+            socket.close();
+            return null;
+        } catch (SocketTimeoutException e) {
+            socket.close();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.minesnap.dcpu.assembler;
+
+import java.lang.reflect.InvocationTargetException;
+
+// Reports what the assembler is doing to a profiler. Each begin method
+// returns the event in progress, or null when nothing is listening, and
+// the matching end method finishes it. This class reports nothing;
+// JFRAssemblerEvents takes its place when the JVM has Java Flight
+// Recorder.
+
+class AssemblerEvents {
+    private static final AssemblerEvents INSTANCE = load();
+
+    public static AssemblerEvents get() {
+        return INSTANCE;
+    }
+
+    private static AssemblerEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (AssemblerEvents)Class.forName("com.minesnap.dcpu.assembler.JFRAssemblerEvents")
+                .getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            // No Flight Recorder before Java 8u262.
+        } catch (LinkageError e) {
+        } catch (InstantiationException e) {
+        } catch (IllegalAccessException e) {
+        } catch (InvocationTargetException e) {
+        } catch (NoSuchMethodException e) {
+        }
+        return new AssemblerEvents();
+    }
+
+    // A phase of an assembly: parsing, relaxation or emission.
+    public Object beginPhase() {
+        return null;
+    }
+
+    public void endPhase(Object event, String phase, String file, int tokens, int resolvables, int words) {
+    }
+
+    // Reading a source file or an .INCBIN binary into the program.
+    public Object beginSource() {
+        return null;
+    }
+
+    public void endSource(Object event, String file, boolean binary, long bytes, int tokens) {
+    }
+
+    // One pass of ResolverList's relaxation.
+    public Object beginPass() {
+        return null;
+    }
+
+    public void endPass(Object event, int pass, int evaluated, int resizedJumps, int words) {
+    }
+}
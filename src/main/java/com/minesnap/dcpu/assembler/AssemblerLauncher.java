@@ -1,139 +1,374 @@
 package com.minesnap.dcpu.assembler;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 
 public class AssemblerLauncher {
     public static void main(String[] args) {
+        List<String> argsList = new ArrayList<String>(args.length);
+        String mode = null;
+        int port = AssemblerServer.DEFAULT_PORT;
+        for(int i=0; i<args.length; i++) {
+            if(args[i].equals("--server") || args[i].equals("--remote") || args[i].equals("--stop-server")) {
+                if(mode != null) {
+                    System.err.println("Error: You can't specify more than one of --server, --remote and --stop-server.");
+                    usage(System.out);
+                    System.exit(1);
+                }
+                mode = args[i];
+            } else if(args[i].equals("--port")) {
+                if(args.length <= i+1) {
+                    System.err.println("--port requires an argument.");
+                    usage(System.out);
+                    System.exit(1);
+                }
+                try {
+                    port = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    port = -1;
+                }
+                if(port < 0 || port > 0xffff) {
+                    System.err.println("Error: Not a valid port: "+args[i]);
+                    usage(System.out);
+                    System.exit(1);
+                }
+            } else {
+                argsList.add(args[i]);
+            }
+        }
+        args = argsList.toArray(new String[argsList.size()]);
+
+        int status;
+        try {
+            if(mode == null) {
+                status = run(args, System.out, System.err);
+            } else if(mode.equals("--server")) {
+                AssemblerServer server = new AssemblerServer(port);
+                System.out.println("Listening on port "+server.getPort());
+                server.serve();
+                status = 0;
+            } else if(mode.equals("--stop-server")) {
+                status = AssemblerClient.stop(port) ? 0 : 4;
+                if(status != 0)
+                    System.err.println("Error: No assembler server is running on port "+port);
+            } else {
+                status = AssemblerClient.run(port, args, System.out, System.err);
+                if(status == AssemblerClient.UNAVAILABLE)
+                    status = run(args, System.out, System.err);
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            status = 5;
+        }
+        if(status != 0)
+            System.exit(status);
+    }
+
+    // Runs the assembler with the given command line and returns the
+    // exit status.
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        return run(args, null, null, null, out, err);
+    }
+
+    // Relative filenames are looked up in workingDir if it's given.
+    // Source files are kept in the cache if there is one, and included
+    // files are read on the executor if there is one.
+    public static int run(String[] args, File workingDir, SourceCache sourceCache,
+                          Executor includeExecutor, PrintStream out, PrintStream err) {
         boolean endianDecided = false;
         boolean littleEndian = true;
         boolean optimize = true;
         boolean positionIndependent = false;
+        boolean compile = false;
+        boolean link = false;
+        String cacheDir = null;
+        String rewritesFile = null;
+        String statsFormat = null;
+        boolean batch = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
         List<String> argsList = new ArrayList<String>(2);
+        // The options with their arguments, for the files of a batch.
+        List<String> options = new ArrayList<String>();
         Map<String, Integer> newNBOpcodes = new HashMap<String, Integer>();
 
         for(int i=0; i<args.length; i++) {
             if(args[i].length() == 0)
                 continue;
+            int optionStart = i;
             switch(args[i].charAt(0)) {
             case '-':
                 if(args[i].length() == 1) {
                     // Just "-" represents stdin or stdout
                     argsList.add(args[i]);
                 } else if(args[i].equals("-h") || args[i].equals("--help")) {
-                    usage();
-                    return;
+                    usage(out);
+                    return 0;
                 } else if(args[i].equals("--no-optimizations")) {
                     optimize = false;
+                } else if(args[i].equals("-c") || args[i].equals("--compile")) {
+                    compile = true;
+                } else if(args[i].equals("--link")) {
+                    link = true;
+                } else if(args[i].equals("--cache")) {
+                    if(args.length <= i+1) {
+                        err.println("--cache requires an argument.");
+                        usage(out);
+                        return 1;
+                    }
+                    cacheDir = args[++i];
+                } else if(args[i].equals("--rewrites")) {
+                    if(args.length <= i+1) {
+                        err.println("--rewrites requires an argument.");
+                        usage(out);
+                        return 1;
+                    }
+                    rewritesFile = args[++i];
+                } else if(args[i].equals("--batch")) {
+                    batch = true;
+                } else if(args[i].equals("-j") || args[i].equals("--jobs")) {
+                    if(args.length <= i+1) {
+                        err.println("-j/--jobs requires an argument.");
+                        usage(out);
+                        return 1;
+                    }
+                    jobs = Integer.parseInt(args[++i]);
+                    if(jobs < 1) {
+                        err.println("Error: At least one job is required.");
+                        usage(out);
+                        return 1;
+                    }
+                } else if(args[i].equals("--stats")) {
+                    statsFormat = "text";
+                } else if(args[i].equals("--stats=json")) {
+                    statsFormat = "json";
                 } else if(args[i].equals("-p") || args[i].equals("--pic")) {
                     positionIndependent = true;
                 } else if(args[i].equals("-b") || args[i].equals("--big-endian")) {
                     if(endianDecided) {
-                        System.err.println("Error: You can't specify multiple endian types.");
-                        usage();
-                        System.exit(1);
+                        err.println("Error: You can't specify multiple endian types.");
+                        usage(out);
+                        return 1;
                     }
                     endianDecided = true;
                     littleEndian = false;
                 } else if(args[i].equals("-l") || args[i].equals("--little-endian")) {
                     if(endianDecided) {
-                        System.err.println("Error: You can't specify multiple endian types.");
-                        usage();
-                        System.exit(1);
+                        err.println("Error: You can't specify multiple endian types.");
+                        usage(out);
+                        return 1;
                     }
                     endianDecided = true;
                     littleEndian = true;
                 } else if(args[i].equals("-n") || args[i].equals("--new-nbopcode")) {
                     if(args.length <= i+2) {
-                        System.err.println("-n/--new-nbopcode requires two arguments.");
-                        usage();
-                        System.exit(1);
+                        err.println("-n/--new-nbopcode requires two arguments.");
+                        usage(out);
+                        return 1;
                     }
                     String name = args[++i].toUpperCase();
                     int number = Integer.parseInt(args[++i]);
                     if(newNBOpcodes.containsKey(name)) {
-                        System.err.println("You may not specify multiple NB-opcodes with the same name: "+name);
-                        usage();
-                        System.exit(1);
+                        err.println("You may not specify multiple NB-opcodes with the same name: "+name);
+                        usage(out);
+                        return 1;
                     }
                     if(newNBOpcodes.containsValue(number)) {
-                        System.err.println("You may not specify multiple NB-opcodes with the same number: "+number);
-                        usage();
-                        System.exit(1);
+                        err.println("You may not specify multiple NB-opcodes with the same number: "+number);
+                        usage(out);
+                        return 1;
                     }
                     newNBOpcodes.put(name, number);
                 } else {
-                    System.err.println("Not a valid argument: "+args[i]);
-                    usage();
-                    System.exit(1);
+                    err.println("Not a valid argument: "+args[i]);
+                    usage(out);
+                    return 1;
                 }
+                if(args[optionStart].length() > 1 && !args[optionStart].equals("--batch")
+                   && !args[optionStart].equals("-j") && !args[optionStart].equals("--jobs"))
+                    options.addAll(Arrays.asList(args).subList(optionStart, i+1));
                 break;
             default:
                 argsList.add(args[i]);
             }
         }
 
-        if(argsList.size() < 1 || argsList.size() > 2) {
-            System.err.println("Wrong number of arguments.");
-            usage();
-            System.exit(1);
+        if(compile && link) {
+            err.println("Error: You can't specify both --compile and --link.");
+            usage(out);
+            return 1;
+        }
+
+        if(batch) {
+            if(link) {
+                err.println("Error: You can't specify both --batch and --link.");
+                usage(out);
+                return 1;
+            }
+            if(argsList.isEmpty()) {
+                err.println("--batch requires at least one input.");
+                usage(out);
+                return 1;
+            }
+            return AssemblerBatch.run(options, argsList, jobs, workingDir, sourceCache, includeExecutor, out, err);
+        }
+
+        if(link) {
+            if(argsList.size() < 2) {
+                err.println("--link requires at least one object file and an output file.");
+                usage(out);
+                return 1;
+            }
+        } else if(argsList.size() < 1 || argsList.size() > 2) {
+            err.println("Wrong number of arguments.");
+            usage(out);
+            return 1;
         }
 
         String filename = argsList.get(0);
         String outname;
         if(argsList.size() < 2) {
             if(filename.endsWith(".dasm16")) {
-                outname = filename.substring(0,filename.length()-7)+".dcpu16";
+                outname = filename.substring(0,filename.length()-7)+(compile ? ".o" : ".dcpu16");
             } else if(filename.endsWith(".dasm")) {
-                outname = filename.substring(0,filename.length()-5)+".dcpu";
+                outname = filename.substring(0,filename.length()-5)+(compile ? ".o" : ".dcpu");
             } else {
-                outname = "a.out";
+                outname = compile ? "a.o" : "a.out";
             }
 	} else {
-            outname = argsList.get(1);
+            outname = argsList.get(argsList.size()-1);
         }
 
         Assembler as = new Assembler();
+        as.setSourceCache(sourceCache);
+        as.setIncludeExecutor(includeExecutor);
         as.setLittleEndian(littleEndian);
         as.setOptimizations(optimize);
         as.setPositionIndependent(positionIndependent);
         as.setNewNBOpcodes(newNBOpcodes);
+        as.setCollectStats(statsFormat != null);
+        if(rewritesFile != null) {
+            try {
+                as.setRewrites(RewriteDatabase.read(resolve(workingDir, rewritesFile)));
+            } catch (IOException e) {
+                err.println("Error: "+unresolve(workingDir, e.getMessage()));
+                return 2;
+            }
+        }
+        if(cacheDir != null)
+            as.setBuildCache(new BuildCache(resolve(workingDir, cacheDir)));
 
         try {
-            as.assemble(filename);
-            as.writeTo(outname);
+            if(link) {
+                List<File> objects = new ArrayList<File>();
+                for(String object : argsList.subList(0, argsList.size()-1))
+                    objects.add(resolve(workingDir, object));
+                as.link(objects);
+                as.writeTo(resolve(workingDir, outname));
+            } else if(compile) {
+                as.assembleObject(resolve(workingDir, filename), filename);
+                as.writeObjectTo(resolve(workingDir, outname));
+            } else {
+                as.assemble(resolve(workingDir, filename), filename);
+                if(as.getBuildCacheError() != null)
+                    err.println("Warning: Could not store "+filename+" in the build cache: "
+                                +unresolve(workingDir, as.getBuildCacheError().toString()));
+                as.writeTo(resolve(workingDir, outname));
+            }
         } catch (FileNotFoundException e) {
-            System.err.println("Error: "+e.getMessage());
-            System.exit(2);
+            err.println("Error: "+unresolve(workingDir, e.getMessage()));
+            return 2;
         } catch (CompileError e) {
-            System.err.println("Compile Error: "+e.getMessage());
-            System.exit(3);
+            err.println("Compile Error: "+unresolve(workingDir, e.getMessage()));
+            return 3;
         } catch (IOException e) {
-            System.err.println(e);
-            System.exit(5);
+            err.println(unresolve(workingDir, e.toString()));
+            return 5;
+        }
+        if(link)
+            out.println("Successfully linked "+(argsList.size()-1)+" object files to "+outname);
+        else
+            out.println("Successfully assembled "+filename+" to "+outname);
+        if(statsFormat != null) {
+            if(statsFormat.equals("json"))
+                out.println(as.getStats().toJSON());
+            else
+                out.print(as.getStats());
         }
-        System.out.println("Successfully assembled "+filename+" to "+outname);
+        return 0;
+    }
+
+    // Returns null for "-", which stands for stdin or stdout.
+    private static File resolve(File workingDir, String filename) {
+        if(filename.equals("-"))
+            return null;
+        File file = new File(filename);
+        if(workingDir != null && !file.isAbsolute())
+            file = new File(workingDir, filename);
+        return file;
+    }
+
+    // Takes workingDir back out of the paths in a message, so that files
+    // are named as they were given and a server's messages read the same
+    // as those of an assembler run in the client's directory.
+    static String unresolve(File workingDir, String message) {
+        if(workingDir == null || message == null)
+            return message;
+        String dir = workingDir.getPath();
+        if(!dir.endsWith(File.separator))
+            dir += File.separator;
+        return message.replace(dir, "");
     }
 
     public static void usage() {
-        System.out.println("Parameters: [OPTION]... INPUTFILENAME [OUTPUTFILENAME]");
-        System.out.println("Assembles INPUTFILENAME and writes the output to OUTPUTFILENAME.");
-        System.out.println("Default OUTPUTFILENAME is \"a.out\".");
-        System.out.println();
-        System.out.println("Available options:");
-        System.out.println(" -h, --help    Show this help message.");
-        System.out.println(" --no-optimizations");
-        System.out.println("               Disable automatic optimiziations.");
-        System.out.println(" -p, --pic     Treat all JMP instructions as BRA instructions.");
-        System.out.println(" -l, --little-endian");
-        System.out.println("               Output little endian binaries (default).");
-        System.out.println(" -b, --big-endian");
-        System.out.println("               Output big endian binaries.");
-        System.out.println(" -n, --new-nbopcode name number");
-        System.out.println("               Define a custom non-basic opcode. May be used more than once.");
+        usage(System.out);
+    }
+
+    public static void usage(PrintStream out) {
+        out.println("Parameters: [OPTION]... INPUTFILENAME [OUTPUTFILENAME]");
+        out.println("        or: --link [OPTION]... OBJECTFILENAME... OUTPUTFILENAME");
+        out.println("        or: --batch [OPTION]... INPUT...");
+        out.println("Assembles INPUTFILENAME and writes the output to OUTPUTFILENAME.");
+        out.println("Default OUTPUTFILENAME is \"a.out\".");
+        out.println("With --link, links OBJECTFILENAME... and writes the output to OUTPUTFILENAME.");
+        out.println("With --batch, assembles every INPUT to its default OUTPUTFILENAME. An INPUT");
+        out.println("may be a source file, a directory to search for sources, or @FILE to read");
+        out.println("more INPUTs from FILE, one per line.");
+        out.println();
+        out.println("Available options:");
+        out.println(" -h, --help    Show this help message.");
+        out.println(" --no-optimizations");
+        out.println("               Disable automatic optimiziations.");
+        out.println(" -c, --compile Write an object file to be linked later instead of a binary.");
+        out.println(" --link        Link object files. The last filename is the output file.");
+        out.println(" --batch       Assemble many files at once. See above.");
+        out.println(" -j, --jobs n  The number of files --batch assembles at a time (default");
+        out.println("               the number of processors).");
+        out.println(" --rewrites file");
+        out.println("               Rewrite instructions by the superoptimizer's rules in file");
+        out.println("               unless optimizations are disabled.");
+        out.println(" --cache dir   Keep assembled programs in dir and reuse them while their");
+        out.println("               sources and options are unchanged.");
+        out.println(" --stats[=json]");
+        out.println("               Print the time and memory each phase took and the size of");
+        out.println("               the program, as text or as a line of JSON.");
+        out.println(" -p, --pic     Treat all JMP instructions as BRA instructions.");
+        out.println(" -l, --little-endian");
+        out.println("               Output little endian binaries (default).");
+        out.println(" -b, --big-endian");
+        out.println("               Output big endian binaries.");
+        out.println(" -n, --new-nbopcode name number");
+        out.println("               Define a custom non-basic opcode. May be used more than once.");
+        out.println(" --server      Run an assembler server that keeps parsed sources in memory.");
+        out.println(" --remote      Assemble with a running server, or locally if there is none.");
+        out.println(" --stop-server Stop a running server.");
+        out.println(" --port port   The local port the server listens on (default "+AssemblerServer.DEFAULT_PORT+").");
     }
 }
@@ -0,0 +1,282 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// A long running assembler that takes command lines from
+// AssemblerClient over a loopback socket. Builds that assemble many
+// files only pay for starting and warming up a JVM once, and since
+// tokenized sources are kept in a SourceCache between requests, only
+// the files that changed since the last build are tokenized again.
+//
+// Only connections from the local machine are accepted, and only from
+// those that can read the token the server writes to a file in the
+// home directory of the user it runs as, which only that user can
+// read. Requests without the token are dropped unanswered, so other
+// users on the machine can't have the server read and write files.
+//
+// A request starts with the magic number and the token, which the
+// server answers with the magic number once it has a thread for the
+// request. Only then does the client send a command, and for ASSEMBLE
+// its working directory and its command line arguments, so a client
+// that gave up waiting and assembled the files itself never has them
+// assembled here too. The response is the exit status followed by what
+// the assembler printed to standard output and standard error.
+//
+// A connection that doesn't send its whole request in time is dropped,
+// so connections that send nothing can't hold every thread.
+
+public class AssemblerServer {
+    public static final int DEFAULT_PORT = 16016;
+
+    static final int MAGIC = 0x44415331;
+    static final int ASSEMBLE = 1;
+    static final int STOP = 2;
+
+    private static final int TOKEN_BYTES = 16;
+    private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final byte[] token;
+    private final SourceCache sourceCache = new SourceCache();
+    private final ExecutorService requestExecutor;
+    private final ExecutorService includeExecutor;
+    private volatile boolean stopped = false;
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "assembler-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+    // Port 0 picks any free port.
+    public AssemblerServer(int port)
+        throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        tokenFile = tokenFile(serverSocket.getLocalPort());
+        try {
+            token = writeToken(tokenFile);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        requestExecutor = Executors.newFixedThreadPool(threads, DAEMON_THREAD_FACTORY);
+        includeExecutor = Executors.newFixedThreadPool(threads, DAEMON_THREAD_FACTORY);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public SourceCache getSourceCache() {
+        return sourceCache;
+    }
+
+    // Handles requests until a STOP request comes in or stop() is
+    // called.
+    public void serve()
+        throws IOException {
+        try {
+            while(!stopped) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if(stopped)
+                        break;
+                    throw e;
+                }
+                requestExecutor.execute(new Runnable() {
+                        public void run() {
+                            handle(socket);
+                        }
+                    });
+            }
+        } finally {
+            stop();
+            tokenFile.delete();
+            requestExecutor.shutdown();
+            includeExecutor.shutdown();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it either way.
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            try {
+                socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if(in.readInt() != MAGIC)
+                    return;
+                byte[] requestToken = new byte[in.readInt()];
+                if(requestToken.length != token.length)
+                    return;
+                in.readFully(requestToken);
+                if(!MessageDigest.isEqual(requestToken, token))
+                    return;
+                out.writeInt(MAGIC);
+                out.flush();
+                int command = in.readInt();
+                if(command == STOP) {
+                    out.writeInt(0);
+                    out.flush();
+                    stop();
+                } else if(command == ASSEMBLE) {
+                    File workingDir = new File(in.readUTF());
+                    String[] args = new String[in.readInt()];
+                    for(int i=0; i<args.length; i++)
+                        args[i] = in.readUTF();
+                    // Assembling can take as long as it takes.
+                    socket.setSoTimeout(0);
+
+                    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+                    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+                    int status = run(args, workingDir,
+                                     new PrintStream(stdout, true),
+                                     new PrintStream(stderr, true));
+                    out.writeInt(status);
+                    writeBytes(out, stdout.toByteArray());
+                    writeBytes(out, stderr.toByteArray());
+                    out.flush();
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // The client went away. There's no one to tell.
+        }
+    }
+
+    private int run(String[] args, File workingDir, PrintStream out, PrintStream err) {
+        for(String arg : args) {
+            if(arg.equals("-")) {
+                err.println("Error: Standard input and output can't be used through a server.");
+                return 1;
+            }
+        }
+        try {
+            return AssemblerLauncher.run(args, workingDir, sourceCache, includeExecutor, out, err);
+        } catch (Throwable e) {
+            // Don't let one bad request take down the server, even
+            // through an Error like the InternalError from reading a
+            // mapped file that was truncated, and still answer it.
+            e.printStackTrace(err);
+            return 6;
+        }
+    }
+
+    // Where the server on the port keeps its token.
+    static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".dcpu16asm-server-"+port);
+    }
+
+    // Makes a new random token and writes it in hex to a file that only
+    // this user can read. A file left by a server that didn't stop
+    // cleanly is replaced.
+    private static byte[] writeToken(File file)
+        throws IOException {
+        byte[] token = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(token);
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX filesystem, like Windows', where the home
+            // directory is private to its user already.
+            Files.createFile(path);
+        }
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            out.write(hex(token).getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return token;
+    }
+
+    // Returns the token of the server on the port, or null if there's
+    // no token file for it.
+    static byte[] readToken(int port)
+        throws IOException {
+        File file = tokenFile(port);
+        if(!file.isFile())
+            return null;
+        Reader in = new InputStreamReader(new FileInputStream(file), "US-ASCII");
+        StringBuilder text = new StringBuilder();
+        try {
+            char[] chunk = new char[64];
+            int read;
+            while((read = in.read(chunk)) != -1)
+                text.append(chunk, 0, read);
+        } finally {
+            in.close();
+        }
+        String hex = text.toString().trim();
+        if(hex.length() != TOKEN_BYTES*2)
+            return null;
+        byte[] token = new byte[TOKEN_BYTES];
+        try {
+            for(int i=0; i<TOKEN_BYTES; i++)
+                token[i] = (byte)Integer.parseInt(hex.substring(i*2, i*2+2), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return token;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(bytes.length*2);
+        for(byte b : bytes)
+            text.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return text.toString();
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes)
+        throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in)
+        throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,237 @@
+package com.minesnap.dcpu.assembler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+// What the last assembly of an Assembler took: the time and memory
+// allocated by each phase, and how big the program turned out to be.
+//
+// Times are of the assembling thread, so the phases add up to the time
+// the assembly took. Tokenizing also counts the memory allocated by
+// the threads that read included files ahead of time, but not their
+// time, which mostly overlaps with parsing. Allocation is -1 if the
+// JVM can't measure it.
+
+public class AssemblerStats {
+    public enum Phase {
+        TOKENIZE, PARSE, RELAXATION, EMISSION;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private static final boolean ALLOCATION_SUPPORTED = allocationSupported();
+
+    private final String source;
+    private final long[] nanos = new long[Phase.values().length];
+    private final long[] allocated = new long[Phase.values().length];
+    private boolean fromBuildCache = false;
+    private int tokenCount = 0;
+    private int resolvableCount = 0;
+    private int labelCount = 0;
+    private int passCount = 0;
+    private int[] resizedJumps = new int[0];
+    private long includeBytes = 0;
+    private long binaryIncludeBytes = 0;
+
+    public AssemblerStats(String source) {
+        this.source = source;
+    }
+
+    // The name the assembled source or object files were given.
+    public String getSource() {
+        return source;
+    }
+
+    public synchronized void add(Phase phase, long nanos, long allocatedBytes) {
+        this.nanos[phase.ordinal()] += nanos;
+        this.allocated[phase.ordinal()] += allocatedBytes;
+    }
+
+    public synchronized long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    public synchronized long getAllocatedBytes(Phase phase) {
+        if(!ALLOCATION_SUPPORTED)
+            return -1;
+        return allocated[phase.ordinal()];
+    }
+
+    // True if the program was read back from the build cache, in which
+    // case none of the phases ran.
+    public boolean isFromBuildCache() {
+        return fromBuildCache;
+    }
+
+    void setFromBuildCache(boolean fromBuildCache) {
+        this.fromBuildCache = fromBuildCache;
+    }
+
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    void setTokenCount(int tokenCount) {
+        this.tokenCount = tokenCount;
+    }
+
+    public int getResolvableCount() {
+        return resolvableCount;
+    }
+
+    void setResolvableCount(int resolvableCount) {
+        this.resolvableCount = resolvableCount;
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    void setLabelCount(int labelCount) {
+        this.labelCount = labelCount;
+    }
+
+    public int getPassCount() {
+        return passCount;
+    }
+
+    // The number of JMP and BRA instructions that changed size in each
+    // relaxation pass.
+    public int[] getResizedJumps() {
+        return resizedJumps.clone();
+    }
+
+    void setPasses(int passCount, int[] resizedJumps) {
+        this.passCount = passCount;
+        this.resizedJumps = resizedJumps;
+    }
+
+    // The size of every included source file, each counted once.
+    public synchronized long getIncludeBytes() {
+        return includeBytes;
+    }
+
+    synchronized void addIncludeBytes(long bytes) {
+        includeBytes += bytes;
+    }
+
+    public long getBinaryIncludeBytes() {
+        return binaryIncludeBytes;
+    }
+
+    void addBinaryIncludeBytes(long bytes) {
+        binaryIncludeBytes += bytes;
+    }
+
+    // The number of bytes the current thread has allocated so far, or
+    // 0 if the JVM can't tell.
+    public static long allocatedBytes() {
+        if(!ALLOCATION_SUPPORTED)
+            return 0;
+        return AllocationCounter.get();
+    }
+
+    private static boolean allocationSupported() {
+        try {
+            return AllocationCounter.isSupported();
+        } catch (LinkageError e) {
+            // Not a JVM with com.sun.management.
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    // Kept apart so that JVMs without com.sun.management only fail to
+    // load this class.
+    private static class AllocationCounter {
+        public static boolean isSupported() {
+            Object threads = ManagementFactory.getThreadMXBean();
+            if(!(threads instanceof com.sun.management.ThreadMXBean))
+                return false;
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+            return sunThreads.isThreadAllocatedMemorySupported()
+                && sunThreads.isThreadAllocatedMemoryEnabled();
+        }
+
+        public static long get() {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Statistics for ").append(source);
+        if(fromBuildCache)
+            sb.append(" (from the build cache)");
+        sb.append(":\n");
+        for(Phase phase : Phase.values()) {
+            long bytes = getAllocatedBytes(phase);
+            sb.append(String.format("  %-12s %10.3f ms %12s allocated\n", phase.getName()+":",
+                                    nanos[phase.ordinal()]/1e6,
+                                    bytes == -1 ? "unknown" : (bytes+" B")));
+        }
+        sb.append("  tokens: ").append(tokenCount).append('\n');
+        sb.append("  resolvables: ").append(resolvableCount).append('\n');
+        sb.append("  labels: ").append(labelCount).append('\n');
+        sb.append("  relaxation passes: ").append(passCount).append('\n');
+        sb.append("  jumps resized per pass:");
+        for(int i=0; i<resizedJumps.length; i++)
+            sb.append(i == 0 ? " " : ", ").append(resizedJumps[i]);
+        sb.append('\n');
+        sb.append("  include bytes read: ").append(includeBytes).append('\n');
+        sb.append("  binary include bytes read: ").append(binaryIncludeBytes).append('\n');
+        return sb.toString();
+    }
+
+    // The same statistics as a single line of JSON.
+    public synchronized String toJSON() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"source\":");
+        appendString(sb, source);
+        sb.append(",\"fromBuildCache\":").append(fromBuildCache);
+        sb.append(",\"phases\":{");
+        for(Phase phase : Phase.values()) {
+            if(phase.ordinal() != 0)
+                sb.append(',');
+            sb.append('"').append(phase.getName()).append("\":{\"nanos\":").append(nanos[phase.ordinal()]);
+            sb.append(",\"allocatedBytes\":").append(getAllocatedBytes(phase)).append('}');
+        }
+        sb.append("},\"tokens\":").append(tokenCount);
+        sb.append(",\"resolvables\":").append(resolvableCount);
+        sb.append(",\"labels\":").append(labelCount);
+        sb.append(",\"relaxationPasses\":").append(passCount);
+        sb.append(",\"resizedJumps\":[");
+        for(int i=0; i<resizedJumps.length; i++) {
+            if(i != 0)
+                sb.append(',');
+            sb.append(resizedJumps[i]);
+        }
+        sb.append("],\"includeBytes\":").append(includeBytes);
+        sb.append(",\"binaryIncludeBytes\":").append(binaryIncludeBytes);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        if(s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for(int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if(c < 0x20)
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -2,13 +2,16 @@ package com.minesnap.dcpu.assembler;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Map;
+import java.util.Collection;
 
 // Relative BRAnch instruction. Like JMP, but never compiles to SET.
 
 public class BRAInstruction implements Resolvable {
     private final UnresolvedData data;
-    private Instruction realInstruction = null;
+    // The chosen encoding and its literal operand. Kept as plain
+    // state so that relaxation passes don't allocate anything.
+    private JumpEncoding encoding = JumpEncoding.NONE;
+    private int operand = 0;
 
     public BRAInstruction(UnresolvedData data) {
         this.data = data;
@@ -18,8 +21,16 @@ public class BRAInstruction implements Resolvable {
         return data;
     }
 
+    public JumpEncoding getEncoding() {
+        return encoding;
+    }
+
+    public int getOperand() {
+        return operand;
+    }
+
     @Override
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    public void evaluateLabels(int[] labelValues, int position)
         throws TokenCompileError {
         data.evaluateLabels(labelValues, position);
         int dest = data.getUnresolvedWord();
@@ -28,37 +39,47 @@ public class BRAInstruction implements Resolvable {
         // Q: If the instruction's size might be 2 words, then why are
         // we only correcting by 1 word? A: The first operand, PC, is
         // read before the second word causes PC to increment.
-        if(realInstruction != null)
+        if(encoding != JumpEncoding.NONE)
             delta--;
 
         if(delta > 0) {
-            realInstruction = new Instruction(Opcode.get(OpcodeType.ADD));
-            realInstruction.setValueA(new Value(ValueType.PC));
-            realInstruction.setValueB(new Value(ValueType.LITERAL, new UnresolvedData(null, delta)));
+            encoding = JumpEncoding.get(OpcodeType.ADD, delta);
+            operand = delta;
         } else if(delta < 0) {
-            realInstruction = new Instruction(Opcode.get(OpcodeType.SUB));
-            realInstruction.setValueA(new Value(ValueType.PC));
-            realInstruction.setValueB(new Value(ValueType.LITERAL, new UnresolvedData(null, -delta)));
+            if(-delta > 0xffff)
+                throw new TokenCompileError("Branch distance doesn't fit in 16 bits", data.getToken());
+            encoding = JumpEncoding.get(OpcodeType.SUB, -delta);
+            operand = -delta;
         } else /* if(delta == 0) */ {
             // JMP to the next instruction is NOP so don't do
             // anything.
             assert(delta == 0);
-            realInstruction = null;
+            encoding = JumpEncoding.NONE;
+            operand = 0;
         }
     }
 
+    @Override
+    public void addReferences(Collection<Integer> references) {
+        data.addReferences(references);
+    }
+
+    // The chosen instruction depends on the distance to the
+    // destination.
+    @Override
+    public boolean isPositionDependent() {
+        return true;
+    }
+
     @Override
     public int wordCount() {
-        if(realInstruction == null)
-            return 0;
-        return realInstruction.wordCount();
+        return encoding.wordCount();
     }
 
     @Override
     public void writeTo(WordWriter out)
         throws IOException {
-        if(realInstruction != null)
-            realInstruction.writeTo(out);
+        encoding.writeTo(out, operand);
     }
 
     @Override
@@ -1,16 +1,25 @@
 package com.minesnap.dcpu.assembler;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 
 public class BinInclude implements Resolvable {
     private final File file;
     private final boolean littleEndian;
+    private final BinaryCache cache;
+    // The file's contents if they were given instead of being read
+    // from the file.
+    private final ByteBuffer content;
     private final int wordsize;
 
     public BinInclude(File file, boolean littleEndian)
+        throws IllegalIncludeException {
+        this(file, littleEndian, BinaryCache.getShared());
+    }
+
+    public BinInclude(File file, boolean littleEndian, BinaryCache cache)
         throws IllegalIncludeException {
         if(!file.exists()) {
             throw new IllegalIncludeException("File "+file+" does not exist");
@@ -23,14 +32,39 @@ public class BinInclude implements Resolvable {
 
         this.file = file;
         this.littleEndian = littleEndian;
+        this.cache = cache;
+        this.content = null;
         this.wordsize = bytesize / 2;
     }
 
+    // Includes the given contents, which the file is only the name of.
+    public BinInclude(File file, ByteBuffer content, boolean littleEndian)
+        throws IllegalIncludeException {
+        if(content.remaining() % 2 != 0) {
+            throw new IllegalIncludeException("File size of "+file+" must be an even number of bytes");
+        }
+
+        this.file = file;
+        this.littleEndian = littleEndian;
+        this.cache = null;
+        this.content = content.slice();
+        this.wordsize = content.remaining() / 2;
+    }
+
     @Override
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    public void evaluateLabels(int[] labelValues, int position)
         throws SymbolLookupError {
     }
 
+    @Override
+    public void addReferences(Collection<Integer> references) {
+    }
+
+    @Override
+    public boolean isPositionDependent() {
+        return false;
+    }
+
     @Override
     public int wordCount() {
         return wordsize;
@@ -39,22 +73,15 @@ public class BinInclude implements Resolvable {
     @Override
     public void writeTo(WordWriter out)
         throws IOException {
-        WordReader in = new WordReader(new FileInputStream(file), littleEndian);
-        int wordsWritten = 0;
-        try {
-            int word;
-            while(true) {
-                word = in.readWord();
-                if(word == -1)
-                    break;
-                out.writeWord(word);
-                wordsWritten++;
+        long bytesize = (long)wordsize*2;
+        if(content != null) {
+            out.writeWords(content.duplicate(), littleEndian);
+        } else {
+            ByteBuffer content = cache.get(file);
+            if(content.remaining() != bytesize) {
+                throw new IOException("File size of "+file+" changed unexpectedly");
             }
-        } finally {
-            in.close();
-        }
-        if(wordsWritten != wordsize) {
-            throw new IOException("File size of "+file+" changed unexpectedly");
+            out.writeWords(content, littleEndian);
         }
     }
 }
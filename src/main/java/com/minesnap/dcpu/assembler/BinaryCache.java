@@ -0,0 +1,101 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Contents of binary include files, memory-mapped once and shared
+// between every BinInclude and every assembly that uses them. An entry
+// is reused for as long as the file's modification time and size stay
+// the same. The least recently used entries are dropped once the total
+// size of the cached files goes over the limit.
+
+public class BinaryCache {
+    public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+    private static final BinaryCache SHARED = new BinaryCache(DEFAULT_MAX_BYTES);
+
+    private static class Entry {
+        private final long lastModified;
+        private final long size;
+        private final ByteBuffer content;
+
+        public Entry(long lastModified, long size, ByteBuffer content) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.content = content;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long maxBytes;
+    private long totalBytes = 0;
+    private long bytesRead = 0;
+
+    public BinaryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static BinaryCache getShared() {
+        return SHARED;
+    }
+
+    // Returns the current contents of the file. The returned buffer is
+    // the caller's own and may have its position and limit changed.
+    public ByteBuffer get(File file)
+        throws IOException {
+        String key = file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long size = file.length();
+        synchronized(this) {
+            Entry entry = entries.get(key);
+            if(entry != null && entry.lastModified == lastModified && entry.size == size)
+                return entry.content.duplicate();
+        }
+
+        ByteBuffer content = ByteTokenizer.map(file);
+        synchronized(this) {
+            bytesRead += content.remaining();
+            Entry old = entries.remove(key);
+            if(old != null)
+                totalBytes -= old.size;
+            if(content.remaining() <= maxBytes) {
+                entries.put(key, new Entry(lastModified, content.remaining(), content));
+                totalBytes += content.remaining();
+                evict();
+            }
+        }
+        return content.duplicate();
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    // The number of bytes of files that have been loaded, not counting
+    // the times an entry was reused.
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+}
@@ -0,0 +1,365 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Assembled programs kept in a directory between builds, so that a
+// program whose sources haven't changed since it was last assembled
+// with the same settings is read back instead of assembled again.
+//
+// An image is stored under a hash of the settings, the contents of the
+// root file, and the contents of every file that was included or
+// binary included while assembling it. Which files those are is only
+// known after assembling, so a manifest stored under the hash of the
+// settings and the root file lists them. A lookup hashes the listed
+// files as they are now and finds the image only if none of them
+// changed. Files under the root file's directory are listed relative
+// to it, so that checkouts in different places can share a cache.
+//
+// Sources are stored under the hash of the bytes their tokens were
+// read from, and binary includes under the hash of the files once the
+// program has been assembled. Nothing is stored if any of the files'
+// modification times or sizes changed since just before the assembler
+// read them, since then what was read may not be what was hashed.
+//
+// Entries are written to a temporary file and moved into place, so
+// that several builds can share the directory at once. Once the
+// directory grows past its size limit, the entries that were least
+// recently used are deleted, but not the temporary files of builds
+// that may still be writing them.
+
+public class BuildCache {
+    public static final long DEFAULT_MAX_BYTES = 256L*1024*1024;
+
+    private static final int MAGIC = 0x44434d31;
+    private static final int VERSION = 1;
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String IMAGE_SUFFIX = ".image";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Temporary files this old were left by builds that didn't finish.
+    private static final long ABANDONED_TEMP_MILLIS = 60L*60*1000;
+
+    // A file that was read while assembling a program.
+    public static class Dependency {
+        private final File file;
+        private final ByteBuffer content;
+        private final FileStamp stamp;
+
+        // The content is what was read from the file, or null to hash
+        // the file as it is when the image is stored. The stamp is the
+        // one the file had before it was read, or null if it can't be
+        // told.
+        public Dependency(File file, ByteBuffer content, FileStamp stamp) {
+            this.file = file;
+            this.content = content;
+            this.stamp = stamp;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private long hits = 0;
+    private long misses = 0;
+
+    public BuildCache(File dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    public BuildCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    // Returns the image the root file was last assembled into with the
+    // given settings, or null if there is none or if the root file or
+    // anything it included has changed since.
+    public ByteBuffer get(File root, String settings)
+        throws IOException {
+        File rootFile = root.getCanonicalFile();
+        if(!rootFile.isFile()) {
+            // Left for the assembler to report.
+            return null;
+        }
+        byte[] rootHash = hashFile(rootFile);
+        File manifestFile = new File(dir, manifestKey(settings, rootHash)+MANIFEST_SUFFIX);
+        List<String> paths = readManifest(manifestFile);
+        if(paths == null)
+            return miss();
+
+        MessageDigest digest = imageDigest(settings, rootHash);
+        for(String path : paths) {
+            File file = resolve(rootFile.getParentFile(), path);
+            if(!file.isFile())
+                return miss();
+            addFile(digest, path, file);
+        }
+        File imageFile = new File(dir, hex(digest.digest())+IMAGE_SUFFIX);
+        ByteBuffer image;
+        try {
+            FileInputStream in = new FileInputStream(imageFile);
+            try {
+                image = ByteTokenizer.readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Evicted, maybe by another build.
+            return miss();
+        }
+
+        long now = System.currentTimeMillis();
+        imageFile.setLastModified(now);
+        manifestFile.setLastModified(now);
+        synchronized(this) {
+            hits++;
+        }
+        return image;
+    }
+
+    // Stores the image that the root file was assembled into with the
+    // given settings. The dependencies are the files that were read
+    // while assembling it, the root file among them. Throws an
+    // IOException if nothing could be stored, including when one of
+    // the files changed while the program was being assembled.
+    public void put(File root, String settings, Collection<Dependency> dependencies, ByteBuffer image)
+        throws IOException {
+        if(image.remaining() > maxBytes)
+            throw new IOException("The image is larger than the whole build cache");
+        if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Could not create build cache directory "+dir);
+
+        File rootFile = root.getCanonicalFile();
+        String rootDir = rootFile.getParent()+File.separator;
+        byte[] rootHash = null;
+        Map<String, byte[]> hashes = new LinkedHashMap<String, byte[]>();
+        for(Dependency dependency : dependencies) {
+            String path = dependency.file.getCanonicalPath();
+            if(path.equals(rootFile.getPath())) {
+                rootHash = hash(dependency);
+                continue;
+            }
+            if(path.startsWith(rootDir))
+                path = path.substring(rootDir.length()).replace(File.separatorChar, '/');
+            if(!hashes.containsKey(path))
+                hashes.put(path, hash(dependency));
+        }
+        if(rootHash == null)
+            rootHash = hashFile(rootFile);
+
+        // Checked after hashing, since the files hashed as they are now
+        // are only what the assembler read if nothing changed since.
+        for(Dependency dependency : dependencies) {
+            if(dependency.stamp != null && !dependency.stamp.matches(dependency.file))
+                throw new IOException(dependency.file+" changed while it was being assembled");
+        }
+
+        MessageDigest digest = imageDigest(settings, rootHash);
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(manifest);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(hashes.size());
+        for(Map.Entry<String, byte[]> entry : hashes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            addHash(digest, entry.getKey(), entry.getValue());
+        }
+        out.flush();
+
+        // The image goes first so that a manifest never points at an
+        // image that was never written.
+        writeAtomically(new File(dir, hex(digest.digest())+IMAGE_SUFFIX), image.duplicate());
+        writeAtomically(new File(dir, manifestKey(settings, rootHash)+MANIFEST_SUFFIX),
+                        ByteBuffer.wrap(manifest.toByteArray()));
+        evict();
+    }
+
+    // Returns null if the manifest is missing or unreadable.
+    private static List<String> readManifest(File manifestFile) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return null;
+                int count = in.readInt();
+                List<String> paths = new ArrayList<String>();
+                for(int i=0; i<count; i++)
+                    paths.add(in.readUTF());
+                return paths;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static File resolve(File rootDir, String path) {
+        File file = new File(path);
+        if(file.isAbsolute())
+            return file;
+        return new File(rootDir, path);
+    }
+
+    private static String manifestKey(String settings, byte[] rootHash) {
+        MessageDigest digest = newDigest();
+        digest.update(settings.getBytes(UTF8));
+        digest.update((byte)0);
+        digest.update(rootHash);
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest imageDigest(String settings, byte[] rootHash) {
+        MessageDigest digest = newDigest();
+        digest.update(Integer.toString(VERSION).getBytes(UTF8));
+        digest.update((byte)0);
+        digest.update(settings.getBytes(UTF8));
+        digest.update((byte)0);
+        digest.update(rootHash);
+        return digest;
+    }
+
+    private static void addFile(MessageDigest digest, String path, File file)
+        throws IOException {
+        addHash(digest, path, hashFile(file));
+    }
+
+    private static void addHash(MessageDigest digest, String path, byte[] hash) {
+        digest.update(path.getBytes(UTF8));
+        digest.update((byte)0);
+        digest.update(hash);
+    }
+
+    private static byte[] hash(Dependency dependency)
+        throws IOException {
+        if(dependency.content == null)
+            return hashFile(dependency.file);
+        MessageDigest digest = newDigest();
+        digest.update(dependency.content.duplicate());
+        return digest.digest();
+    }
+
+    private static byte[] hashFile(File file)
+        throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(ByteTokenizer.map(file));
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 should always be available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length*2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private void writeAtomically(File target, ByteBuffer content)
+        throws IOException {
+        File temp = File.createTempFile("entry", TEMP_SUFFIX, dir);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel channel = out.getChannel();
+                while(content.hasRemaining())
+                    channel.write(content);
+            } finally {
+                out.close();
+            }
+            // Replaces an entry another build may have just written, which
+            // is as good as this one, without ever deleting it first.
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles();
+        if(files == null)
+            return;
+        long totalBytes = 0;
+        for(File file : files)
+            totalBytes += file.length();
+        if(totalBytes <= maxBytes)
+            return;
+        long abandoned = System.currentTimeMillis() - ABANDONED_TEMP_MILLIS;
+
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for(int i=0; i<files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    if(lastModified[a] < lastModified[b])
+                        return -1;
+                    return lastModified[a] > lastModified[b] ? 1 : 0;
+                }
+            });
+        for(int i=0; i<order.length && totalBytes > maxBytes; i++) {
+            File file = files[order[i]];
+            // Another build may still be writing it.
+            if(file.getName().endsWith(TEMP_SUFFIX) && lastModified[order[i]] > abandoned)
+                continue;
+            long length = file.length();
+            // Another build may have deleted it already.
+            file.delete();
+            totalBytes -= length;
+        }
+    }
+
+    private synchronized ByteBuffer miss() {
+        misses++;
+        return null;
+    }
+
+    // The number of lookups that found an image, and the number that
+    // didn't.
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,324 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+// Tokenizes UTF-8 source straight from its bytes into a TokenTable.
+// Produces exactly the same tokens and errors as ASMTokenizer.tokenize
+// does on the decoded characters, but files are memory-mapped instead
+// of being pulled through a Reader one char at a time, and token text
+// is only decoded later if something asks for it.
+
+public class ByteTokenizer {
+    private ByteTokenizer() {}
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // All of the token separators are 7-bit characters, and no byte
+    // of a multi-byte UTF-8 sequence is below 0x80, so classifying
+    // raw bytes splits tokens in the same places as classifying the
+    // decoded characters does.
+    private static final byte[] BYTE_CLASS = new byte[0x100];
+
+    // Shared so that symbol tokens don't each allocate their text.
+    private static final String[] BYTE_TEXT = new String[0x80];
+
+    static {
+        System.arraycopy(ASMTokenizer.CHAR_CLASS, 0, BYTE_CLASS, 0, ASMTokenizer.CHAR_CLASS.length);
+        for(int i=0; i<BYTE_TEXT.length; i++)
+            BYTE_TEXT[i] = Character.toString((char)i).intern();
+    }
+
+    public static void tokenize(File file, TokenTable tokens)
+        throws TokenizeError, IOException {
+        tokenize(file, file.getParentFile(), file.getName(), tokens);
+    }
+
+    public static void tokenize(File file, File sourceDir, String filename, TokenTable tokens)
+        throws TokenizeError, IOException {
+        tokenize(map(file), sourceDir, filename, tokens);
+    }
+
+    // Maps the whole file read-only. The mapping stays valid after
+    // the channel is closed.
+    public static ByteBuffer map(File file)
+        throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    // For sources that can't be mapped, like standard input.
+    public static ByteBuffer readFully(InputStream in)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while((read = in.read(chunk)) != -1) {
+            bytes.write(chunk, 0, read);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    // Appends the tokens of the given source to the table.
+    public static void tokenize(ByteBuffer input, File sourceDir, String filename, TokenTable tokens)
+        throws TokenizeError {
+        int source = tokens.addSource(sourceDir, filename, input);
+        int lineNumber = 1;
+        int pos = input.position();
+        int limit = input.limit();
+        // Start of the token currently being built, or -1.
+        int tokenStart = -1;
+
+        while(true) {
+            if(pos == limit) {
+                // EOF
+                if(tokenStart != -1)
+                    addToken(tokens, input, tokenStart, pos, source, filename, lineNumber);
+                tokens.add(TokenTable.SYMBOL, pos, 0, source, lineNumber, '\n');
+                break;
+            }
+            int b = input.get(pos) & 0xff;
+
+            if(b == ';') {
+                if(tokenStart != -1) {
+                    addToken(tokens, input, tokenStart, pos, source, filename, lineNumber);
+                    tokenStart = -1;
+                }
+                // Skip to the end of the line. Like the character
+                // tokenizer, a comment ending at EOF still leaves the
+                // EOF to be seen by the next loop iteration.
+                pos++;
+                while(pos < limit && input.get(pos) != '\n')
+                    pos++;
+                tokens.add(TokenTable.SYMBOL, pos, 0, source, lineNumber, '\n');
+                lineNumber++;
+                if(pos < limit)
+                    pos++;
+                continue;
+            }
+
+            byte cls = BYTE_CLASS[b];
+            if((cls & ASMTokenizer.SPACE) != 0) {
+                if(tokenStart != -1) {
+                    addToken(tokens, input, tokenStart, pos, source, filename, lineNumber);
+                    tokenStart = -1;
+                }
+                if(b == '\n') {
+                    tokens.add(TokenTable.SYMBOL, pos, 1, source, lineNumber, '\n');
+                    lineNumber++;
+                }
+                pos++;
+            } else if((cls & ASMTokenizer.BORDER) != 0) {
+                if(tokenStart != -1) {
+                    addToken(tokens, input, tokenStart, pos, source, filename, lineNumber);
+                    tokenStart = -1;
+                }
+                tokens.add(TokenTable.SYMBOL, pos, 1, source, lineNumber, b);
+                pos++;
+            } else if(b == '"') {
+                if(tokenStart != -1) {
+                    throw new TokenizeError("String may not begin inside token", filename, lineNumber);
+                }
+
+                int quoteStart = pos;
+                int quoteStartLine = lineNumber;
+                pos++;
+                while(true) {
+                    if(pos == limit) {
+                        throw new TokenizeError("Unexpected EOF", filename, lineNumber);
+                    }
+                    b = input.get(pos++);
+                    if(b == '"') {
+                        break;
+                    } else if(b == '\n') {
+                        throw new TokenizeError("Unexpected newline (should it be escaped?)", filename, lineNumber);
+                    } else if(b == '\\') {
+                        if(pos == limit) {
+                            throw new TokenizeError("Unexpected EOF", filename, lineNumber);
+                        }
+                        b = input.get(pos++);
+                        if(b == '\n') {
+                            lineNumber++;
+                        }
+                        if(ASMTokenizer.escapeChar((char)(b & 0xff)) == null)
+                            throw new TokenizeError("Invalid escape code", filename, lineNumber);
+                    }
+                }
+                tokens.add(TokenTable.STRING, quoteStart, pos-quoteStart, source, quoteStartLine, 0);
+            } else {
+                if(tokenStart == -1)
+                    tokenStart = pos;
+                pos++;
+            }
+        }
+    }
+
+    // Classifies and validates the bytes in [start, end) the same way
+    // ASMTokenizer.createToken does, without decoding them when
+    // they're plain ASCII.
+    private static void addToken(TokenTable tokens, ByteBuffer input, int start, int end,
+                                 int source, String filename, int lineNumber)
+        throws TokenizeError {
+        int length = end - start;
+        int first = input.get(start);
+        int last = input.get(end-1);
+
+        if(length == 1 && first == '-') {
+            throw new TokenizeError("Lone '-' not allowed", filename, lineNumber);
+        }
+
+        boolean ascii = true;
+        for(int i=start; i<end; i++) {
+            if(input.get(i) < 0) {
+                ascii = false;
+                break;
+            }
+        }
+
+        if(first == '\'' || !ascii) {
+            // Character literals and non-ASCII tokens are rare enough
+            // to just go through the character path.
+            Token token = ASMTokenizer.createToken(decode(input, start, end), null, filename, lineNumber);
+            if(token instanceof IntToken) {
+                tokens.add(TokenTable.INT, start, length, source, lineNumber, ((IntToken)token).getValue());
+            } else if(token instanceof LabelToken) {
+                tokens.add(TokenTable.LABEL, start, length, source, lineNumber, 0);
+            } else {
+                tokens.add(TokenTable.NAME, start, length, source, lineNumber, 0);
+            }
+            return;
+        }
+
+        if(first == ':' || last == ':') {
+            int nameStart = start;
+            int nameEnd = end;
+            if(first == ':')
+                nameStart++;
+            else
+                nameEnd--;
+            for(int i=nameStart; i<nameEnd; i++) {
+                int b = input.get(i);
+                if(b >= 0 && (ASMTokenizer.CHAR_CLASS[b] & ASMTokenizer.LABEL_BAD) != 0)
+                    throw new TokenizeError("Invalid label name", filename, lineNumber);
+            }
+            tokens.add(TokenTable.LABEL, start, length, source, lineNumber, 0);
+            return;
+        }
+
+        if(first >= '0' && first <= '9') {
+            int radix = 10;
+            int digitsStart = start;
+            if(first == '0' && length >= 2) {
+                switch(input.get(start+1)) {
+                case 'x': case 'X': case 'h': case 'H':
+                    radix = 16;
+                    digitsStart += 2;
+                    break;
+                case 'b': case 'B':
+                    radix = 2;
+                    digitsStart += 2;
+                    break;
+                case 'o': case 'O':
+                    radix = 8;
+                    digitsStart += 2;
+                    break;
+                }
+            }
+            int value = parseInt(input, digitsStart, end, radix);
+            if(value == -1)
+                throw new TokenizeError("Invalid integer", filename, lineNumber);
+            tokens.add(TokenTable.INT, start, length, source, lineNumber, value);
+            return;
+        }
+
+        tokens.add(TokenTable.NAME, start, length, source, lineNumber, 0);
+    }
+
+    // Parses ASCII digits like Integer.parseInt does for a string
+    // with no sign. Returns -1 if they aren't a valid int.
+    private static int parseInt(ByteBuffer input, int start, int end, int radix) {
+        if(start == end)
+            return -1;
+        long value = 0;
+        for(int i=start; i<end; i++) {
+            int digit = Character.digit((char)input.get(i), radix);
+            if(digit == -1)
+                return -1;
+            value = value*radix + digit;
+            if(value > Integer.MAX_VALUE)
+                return -1;
+        }
+        return (int)value;
+    }
+
+    static String symbolText(int c) {
+        return BYTE_TEXT[c];
+    }
+
+    // Decodes the bytes in [start, end). Pure ASCII, which is nearly
+    // every token, is widened directly without going through a
+    // CharsetDecoder.
+    static String decode(ByteBuffer input, int start, int end) {
+        int length = end - start;
+        char[] chars = new char[length];
+        for(int i=0; i<length; i++) {
+            byte b = input.get(start+i);
+            if(b < 0)
+                return decodeUTF8(input, start, end);
+            chars[i] = (char)b;
+        }
+        return new String(chars);
+    }
+
+    private static String decodeUTF8(ByteBuffer input, int start, int end) {
+        ByteBuffer slice = input.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        // Malformed input is replaced the same way InputStreamReader
+        // replaces it.
+        CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            CharBuffer chars = decoder.decode(slice);
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            throw new IllegalStateException("Decoder should never fail with REPLACE action", e);
+        }
+    }
+
+    // Decodes the inside of a quoted string whose escape codes have
+    // already been validated.
+    static String unescape(ByteBuffer input, int start, int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        int runStart = start;
+        int pos = start;
+        while(pos < end) {
+            if(input.get(pos) == '\\') {
+                value.append(decode(input, runStart, pos));
+                value.append(ASMTokenizer.escapeChar((char)input.get(pos+1)).charValue());
+                pos += 2;
+                runStart = pos;
+            } else {
+                pos++;
+            }
+        }
+        value.append(decode(input, runStart, end));
+        return value.toString();
+    }
+}
@@ -0,0 +1,577 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns DCPU-16 v1.1 programs back into source. Every first word is
+// decoded through a table made once for all 65536 of them, which also
+// holds the finished text of the instructions that are one word long.
+//
+// The output assembles to exactly the words it came from when
+// optimizations are off. Words that the assembler would encode some
+// other way, like a literal under 0x20 in a next word or [0+A], are
+// written with DAT, as are words that aren't instructions. The targets
+// of JSR and of SET PC to a literal get labels, named sub_ and loc_
+// after their address, as do the targets of ADD PC and SUB PC, which
+// are noted in a comment since their operand is a distance.
+
+public class Disassembler {
+    // An entry of the table is the opcode's code (JSR's being 0x10),
+    // the values and the instruction's length in words, or 0 for words
+    // that aren't instructions.
+    private static final int A_SHIFT = 5;
+    private static final int B_SHIFT = 11;
+    private static final int VALUE_MASK = 0x3f;
+    private static final int LENGTH_SHIFT = 17;
+    private static final int JSR = 0x10;
+
+    private static final int[] DECODED = new int[0x10000];
+    // The text of each one word instruction, TEXT_STRIDE characters
+    // apart, and how long each is, or 0 for the rest.
+    private static final int TEXT_STRIDE = 16;
+    private static final char[] TEXT = new char[0x10000*TEXT_STRIDE];
+    private static final byte[] TEXT_LENGTH = new byte[0x10000];
+    // Every word in hex, like 0x1f, HEX_STRIDE characters apart.
+    private static final int HEX_STRIDE = 6;
+    private static final char[] HEX = new char[0x10000*HEX_STRIDE];
+    private static final byte[] HEX_LENGTH = new byte[0x10000];
+    private static final char[][] OPCODE_NAMES = new char[JSR+1][];
+    // The text of the values that don't read a next word.
+    private static final char[][] VALUE_TEXT = new char[0x40][];
+    private static final char[][] REGISTER_NAMES = new char[8][];
+    private static final boolean[] NEXT_WORD = new boolean[0x40];
+
+    private static final int PC = ValueType.PC.getCode();
+    private static final int LITERAL = ValueType.LITERAL.getCode();
+    private static final int DN = ValueType.DN.getCode();
+    private static final int DPN_A = ValueType.DPN_A.getCode();
+    private static final int DPN_J = ValueType.DPN_J.getCode();
+    private static final int SET = OpcodeType.SET.getCode();
+    private static final int ADD = OpcodeType.ADD.getCode();
+    private static final int SUB = OpcodeType.SUB.getCode();
+    private static final int SHORT_LITERALS = 0x20;
+    // The most words in one line of DAT.
+    private static final int DATA_PER_LINE = 8;
+
+    static {
+        for(OpcodeType type : OpcodeType.values()) {
+            Integer code = type.getCode();
+            if(code != null && code > 0 && code < 0x10)
+                OPCODE_NAMES[code] = type.toString().toCharArray();
+        }
+        OPCODE_NAMES[JSR] = OpcodeType.JSR.toString().toCharArray();
+        for(int word=0; word<0x10000; word++) {
+            String text = "0x"+Integer.toHexString(word);
+            text.getChars(0, text.length(), HEX, word*HEX_STRIDE);
+            HEX_LENGTH[word] = (byte)text.length();
+        }
+        for(int code=0; code<8; code++)
+            REGISTER_NAMES[code] = ValueType.getByCode((byte)code).toString().toCharArray();
+        for(int code=0; code<0x40; code++) {
+            ValueType type = ValueType.getByCode((byte)code);
+            String text;
+            if(type == null) {
+                text = "0x"+Integer.toHexString(code - SHORT_LITERALS);
+            } else if(type.hasLiteral()) {
+                NEXT_WORD[code] = true;
+                continue;
+            } else if(code >= ValueType.D_A.getCode() && code <= ValueType.D_J.getCode()) {
+                text = "["+ValueType.getByCode((byte)(code - ValueType.D_A.getCode()))+"]";
+            } else {
+                text = type.toString();
+            }
+            VALUE_TEXT[code] = text.toCharArray();
+        }
+        for(int word=0; word<0x10000; word++) {
+            int op = word & 0xf;
+            int a, b;
+            if(op != 0) {
+                a = (word >>> 4) & VALUE_MASK;
+                b = word >>> 10;
+            } else if(((word >>> 4) & VALUE_MASK) == (OpcodeType.JSR.getCode() >> 4)) {
+                op = JSR;
+                a = word >>> 10;
+                b = 0;
+            } else {
+                continue;
+            }
+            int length = 1;
+            if(NEXT_WORD[a])
+                length++;
+            if(op != JSR && NEXT_WORD[b])
+                length++;
+            DECODED[word] = op | a << A_SHIFT | b << B_SHIFT | length << LENGTH_SHIFT;
+            if(length == 1) {
+                String text = new String(OPCODE_NAMES[op])+" "+new String(VALUE_TEXT[a]);
+                if(op != JSR)
+                    text += ", "+new String(VALUE_TEXT[b]);
+                text.getChars(0, text.length(), TEXT, word*TEXT_STRIDE);
+                TEXT_LENGTH[word] = (byte)text.length();
+            }
+        }
+    }
+
+    private boolean littleEndian = true;
+
+    public Disassembler() {
+    }
+
+    // The byte order of the images disassemble reads. Little endian by
+    // default, as the assembler writes.
+    public void setLittleEndian(boolean littleEndian) {
+        this.littleEndian = littleEndian;
+    }
+
+    public String disassemble(ShortBuffer words) {
+        StringBuilder out = new StringBuilder(words.remaining()*12);
+        try {
+            disassemble(words, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("StringBuilder should never throw IOException", e);
+        }
+        return out.toString();
+    }
+
+    // Disassembles the bytes of a program image.
+    public void disassemble(ByteBuffer image, Appendable out)
+        throws IOException {
+        if(image.remaining() % 2 != 0)
+            throw new IllegalArgumentException("An image can't have an odd number of bytes");
+        ByteOrder order = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        disassemble(image.duplicate().order(order).asShortBuffer(), out);
+    }
+
+    public void disassemble(ShortBuffer words, Appendable out)
+        throws IOException {
+        int size = words.remaining();
+        if(size > 0x10000)
+            throw new IllegalArgumentException("A program can't be more than 65536 words");
+        char[] ram = new char[size];
+        ShortBuffer source = words.duplicate();
+        for(int i=0; i<size; i++)
+            ram[i] = (char)source.get();
+
+        // First find where each instruction starts, and which are the
+        // targets of jumps.
+        int[] entries = new int[size];
+        boolean[] starts = new boolean[size];
+        byte[] targets = new byte[size];
+        int address = 0;
+        while(address < size) {
+            starts[address] = true;
+            int entry = instructionAt(ram, address);
+            entries[address] = entry;
+            if(entry == 0) {
+                address++;
+                continue;
+            }
+            int target = target(ram, address, entry);
+            if(target >= 0 && target < size) {
+                int kind = (entry & 0x1f) == JSR ? SUBROUTINE : LOCATION;
+                if(kind > targets[target])
+                    targets[target] = (byte)kind;
+            }
+            address += length(entry);
+        }
+
+        // Then write them out, with labels where jumps land.
+        Output text = new Output(out);
+        address = 0;
+        while(address < size) {
+            if(isLabel(targets, starts, address)) {
+                text.put(':');
+                text.label(targets[address], address);
+                text.put(' ');
+            }
+            int entry = entries[address];
+            if(entry == 0) {
+                text.put(DAT);
+                text.hex(ram[address]);
+                int count = 1;
+                while(address+count < size && count < DATA_PER_LINE && entries[address+count] == 0
+                      && !isLabel(targets, starts, address+count)) {
+                    text.put(',');
+                    text.put(' ');
+                    text.hex(ram[address+count]);
+                    count++;
+                }
+                address += count;
+            } else {
+                writeInstruction(text, ram, address, entry, targets, starts);
+                address += length(entry);
+            }
+            text.put('\n');
+            text.endLine();
+        }
+        text.flush();
+    }
+
+    private static final int LOCATION = 1;
+    private static final int SUBROUTINE = 2;
+    private static final char[] DAT = "DAT ".toCharArray();
+
+    // Collects the text in a buffer that's passed on a few thousand
+    // characters at a time, rather than a line at a time.
+    private static class Output {
+        // Longer than any line.
+        private static final int LINE_SPACE = 128;
+        private final Appendable out;
+        private final char[] buffer = new char[8192];
+        private int length = 0;
+
+        public Output(Appendable out) {
+            this.out = out;
+        }
+
+        public void put(char c) {
+            buffer[length++] = c;
+        }
+
+        public void put(char[] text) {
+            System.arraycopy(text, 0, buffer, length, text.length);
+            length += text.length;
+        }
+
+        public void hex(int word) {
+            int count = HEX_LENGTH[word];
+            System.arraycopy(HEX, word*HEX_STRIDE, buffer, length, count);
+            length += count;
+        }
+
+        // Puts the text of the one word instruction, if it has any.
+        public boolean instruction(int word) {
+            int count = TEXT_LENGTH[word];
+            if(count == 0)
+                return false;
+            System.arraycopy(TEXT, word*TEXT_STRIDE, buffer, length, count);
+            length += count;
+            return true;
+        }
+
+        public void label(int kind, int address) {
+            put(kind == SUBROUTINE ? 's' : 'l');
+            put(kind == SUBROUTINE ? 'u' : 'o');
+            put(kind == SUBROUTINE ? 'b' : 'c');
+            put('_');
+            for(int shift=12; shift>=0; shift-=4)
+                put(Character.forDigit((address >>> shift) & 0xf, 16));
+        }
+
+        public void endLine()
+            throws IOException {
+            if(length > buffer.length - LINE_SPACE)
+                flush();
+        }
+
+        public void flush()
+            throws IOException {
+            if(out instanceof StringBuilder)
+                ((StringBuilder)out).append(buffer, 0, length);
+            else if(out instanceof Writer)
+                ((Writer)out).write(buffer, 0, length);
+            else
+                out.append(CharBuffer.wrap(buffer, 0, length));
+            length = 0;
+        }
+    }
+
+    // Returns the table entry for the instruction at the address, or 0
+    // if it should be written as data: it isn't an instruction, runs
+    // past the end, or wouldn't assemble back to the same words.
+    private static int instructionAt(char[] ram, int address) {
+        int entry = DECODED[ram[address]];
+        if(entry == 0)
+            return 0;
+        int length = length(entry);
+        if(address + length > ram.length)
+            return 0;
+        int next = address+1;
+        int a = (entry >>> A_SHIFT) & VALUE_MASK;
+        if(NEXT_WORD[a] && !canWrite(a, ram[next++]))
+            return 0;
+        int b = (entry >>> B_SHIFT) & VALUE_MASK;
+        if((entry & 0x1f) != JSR && NEXT_WORD[b] && !canWrite(b, ram[next]))
+            return 0;
+        return entry;
+    }
+
+    // The assembler writes literals under 0x20 in the first word, and
+    // [0+A] as [A].
+    private static boolean canWrite(int value, int word) {
+        if(value == LITERAL)
+            return word >= SHORT_LITERALS;
+        if(value >= DPN_A && value <= DPN_J)
+            return word != 0;
+        return true;
+    }
+
+    // The address the instruction jumps to, or -1.
+    private static int target(char[] ram, int address, int entry) {
+        int op = entry & 0x1f;
+        int a = (entry >>> A_SHIFT) & VALUE_MASK;
+        int b = (entry >>> B_SHIFT) & VALUE_MASK;
+        if(op == JSR)
+            return literal(ram, address+1, a);
+        if(a != PC)
+            return -1;
+        int value = literal(ram, address+1, b);
+        if(value == -1)
+            return -1;
+        int end = address + length(entry);
+        if(op == SET)
+            return value;
+        if(op == ADD)
+            return (end + value) & 0xffff;
+        if(op == SUB)
+            return (end - value) & 0xffff;
+        return -1;
+    }
+
+    // The value of a literal, or -1 if the value isn't one.
+    private static int literal(char[] ram, int next, int value) {
+        if(value == LITERAL)
+            return ram[next];
+        if(value >= SHORT_LITERALS)
+            return value - SHORT_LITERALS;
+        return -1;
+    }
+
+    // Only the start of an instruction or of data gets a label, since
+    // the assembler can't put one in the middle.
+    private static boolean isLabel(byte[] targets, boolean[] starts, int address) {
+        return address >= 0 && address < targets.length && targets[address] != 0 && starts[address];
+    }
+
+    private static void writeInstruction(Output text, char[] ram, int address, int entry,
+                                         byte[] targets, boolean[] starts) {
+        int op = entry & 0x1f;
+        int a = (entry >>> A_SHIFT) & VALUE_MASK;
+        int b = (entry >>> B_SHIFT) & VALUE_MASK;
+        boolean absolute = op == JSR || (a == PC && op == SET);
+        boolean relative = a == PC && (op == ADD || op == SUB);
+        if(!absolute && !relative && text.instruction(ram[address]))
+            return;
+        int next = address+1;
+        text.put(OPCODE_NAMES[op]);
+        text.put(' ');
+        if(op == JSR) {
+            writeTarget(text, ram, next, a, targets, starts);
+            return;
+        }
+        if(NEXT_WORD[a])
+            writeValue(text, a, ram[next++]);
+        else
+            text.put(VALUE_TEXT[a]);
+        text.put(',');
+        text.put(' ');
+        if(absolute)
+            writeTarget(text, ram, next, b, targets, starts);
+        else if(NEXT_WORD[b])
+            writeValue(text, b, ram[next]);
+        else
+            text.put(VALUE_TEXT[b]);
+        if(relative) {
+            int target = target(ram, address, entry);
+            if(isLabel(targets, starts, target)) {
+                text.put(' ');
+                text.put(';');
+                text.put(' ');
+                text.label(targets[target], target);
+            }
+        }
+    }
+
+    // Writes a jump's literal as the label there if it has one.
+    private static void writeTarget(Output text, char[] ram, int next, int value,
+                                    byte[] targets, boolean[] starts) {
+        int target = literal(ram, next, value);
+        if(isLabel(targets, starts, target))
+            text.label(targets[target], target);
+        else if(NEXT_WORD[value])
+            writeValue(text, value, ram[next]);
+        else
+            text.put(VALUE_TEXT[value]);
+    }
+
+    private static void writeValue(Output text, int value, int word) {
+        if(value == LITERAL) {
+            text.hex(word);
+        } else if(value == DN) {
+            text.put('[');
+            text.hex(word);
+            text.put(']');
+        } else {
+            text.put('[');
+            text.hex(word);
+            text.put('+');
+            text.put(REGISTER_NAMES[value - DPN_A]);
+            text.put(']');
+        }
+    }
+
+    private static int length(int entry) {
+        return entry >>> LENGTH_SHIFT;
+    }
+
+    // The output name for an image, like the assembler's the other way
+    // around.
+    private static String outputName(String filename) {
+        if(filename.endsWith(".dcpu16"))
+            return filename.substring(0, filename.length()-7)+".dasm16";
+        if(filename.endsWith(".dcpu"))
+            return filename.substring(0, filename.length()-5)+".dasm";
+        return filename+".dasm16";
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        boolean littleEndian = true;
+        boolean endianDecided = false;
+        boolean verify = false;
+        String outname = null;
+        List<String> inputs = new ArrayList<String>();
+        for(int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("-h") || arg.equals("--help")) {
+                usage(out);
+                return 0;
+            } else if(arg.equals("-b") || arg.equals("--big-endian")
+                      || arg.equals("-l") || arg.equals("--little-endian")) {
+                if(endianDecided) {
+                    err.println("Error: You can't specify multiple endian types.");
+                    usage(out);
+                    return 1;
+                }
+                endianDecided = true;
+                littleEndian = arg.equals("-l") || arg.equals("--little-endian");
+            } else if(arg.equals("--verify")) {
+                verify = true;
+            } else if(arg.equals("-o")) {
+                if(args.length <= i+1) {
+                    err.println("-o requires an argument.");
+                    usage(out);
+                    return 1;
+                }
+                outname = args[++i];
+            } else if(arg.length() > 1 && arg.startsWith("-")) {
+                err.println("Not a valid argument: "+arg);
+                usage(out);
+                return 1;
+            } else {
+                inputs.add(arg);
+            }
+        }
+        if(inputs.isEmpty() || (outname != null && inputs.size() > 1)) {
+            err.println("Wrong number of arguments.");
+            usage(out);
+            return 1;
+        }
+
+        Disassembler disassembler = new Disassembler();
+        disassembler.setLittleEndian(littleEndian);
+        long startNanos = System.nanoTime();
+        long bytes = 0;
+        int failures = 0;
+        for(String input : inputs) {
+            String output = outname != null ? outname : input.equals("-") ? "-" : outputName(input);
+            try {
+                ByteBuffer image = read(input);
+                bytes += image.remaining();
+                StringBuilder source = new StringBuilder(image.remaining()*6);
+                disassembler.disassemble(image, source);
+                if(verify && !sameImage(source, image, littleEndian)) {
+                    err.println("Error: "+output+" doesn't assemble back to "+input);
+                    failures++;
+                }
+                write(output, source);
+            } catch (IllegalArgumentException e) {
+                err.println("Error: "+input+": "+e.getMessage());
+                failures++;
+            } catch (IOException e) {
+                err.println(e);
+                failures++;
+            }
+        }
+        if(outname == null || !outname.equals("-")) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            out.printf("Disassembled %d of %d files, %d bytes in %.3f s\n",
+                       inputs.size() - failures, inputs.size(), bytes, seconds);
+        }
+        return failures == 0 ? 0 : 5;
+    }
+
+    private static ByteBuffer read(String input)
+        throws IOException {
+        if(input.equals("-"))
+            return ByteTokenizer.readFully(System.in);
+        return ByteTokenizer.map(new File(input));
+    }
+
+    private static void write(String output, CharSequence source)
+        throws IOException {
+        Writer writer;
+        if(output.equals("-"))
+            writer = new OutputStreamWriter(System.out, "UTF-8");
+        else
+            writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        writer = new BufferedWriter(writer, 1 << 16);
+        try {
+            writer.append(source);
+        } finally {
+            if(output.equals("-"))
+                writer.flush();
+            else
+                writer.close();
+        }
+    }
+
+    // Whether the source assembles to the image, with optimizations
+    // off.
+    static boolean sameImage(CharSequence source, ByteBuffer image, boolean littleEndian)
+        throws IOException {
+        Assembler assembler = new Assembler();
+        assembler.setOptimizations(false);
+        assembler.setLittleEndian(littleEndian);
+        assembler.setIncludeThreads(0);
+        try {
+            assembler.assemble(source, "disassembly", null);
+        } catch (CompileError e) {
+            return false;
+        }
+        ByteBuffer expected = image.duplicate();
+        ShortBuffer words = assembler.getImage();
+        ShortBuffer original = expected.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asShortBuffer();
+        return words.equals(original);
+    }
+
+    public static void usage(PrintStream out) {
+        out.println("Parameters: [OPTION]... INPUTFILENAME...");
+        out.println("Disassembles each INPUTFILENAME to a source file named like it, with .dcpu16");
+        out.println("replaced by .dasm16. The sources assemble to the same binaries with");
+        out.println("--no-optimizations.");
+        out.println();
+        out.println("Available options:");
+        out.println(" -h, --help    Show this help message.");
+        out.println(" -o file       Write the source to file, or - for standard output. Only");
+        out.println("               for one input.");
+        out.println(" --verify      Assemble each source again and check that it's the same.");
+        out.println(" -l, --little-endian");
+        out.println("               Read little endian binaries (default).");
+        out.println(" -b, --big-endian");
+        out.println("               Read big endian binaries.");
+    }
+}
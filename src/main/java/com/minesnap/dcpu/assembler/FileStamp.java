@@ -0,0 +1,30 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+
+// A file's modification time and size as they were at some point,
+// taken before reading it so that comparing them with the file's
+// later on tells whether what was read may have changed since.
+
+public class FileStamp {
+    private final long lastModified;
+    private final long size;
+
+    public FileStamp(File file) {
+        this.lastModified = file.lastModified();
+        this.size = file.length();
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // Returns false if the file was modified since the stamp was taken.
+    public boolean matches(File file) {
+        return file.lastModified() == lastModified && file.length() == size;
+    }
+}
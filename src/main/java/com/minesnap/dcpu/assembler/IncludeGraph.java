@@ -0,0 +1,285 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The source files of one assembly. Every file is tokenized into the
+// shared TokenTable only the first time it's reached, by its canonical
+// path, and every later .INCLUDE of it reads the same range of the
+// table again.
+
+public class IncludeGraph {
+    private final TokenTable tokens;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> paths = new ArrayList<String>();
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    // What each source's tokens were read from, and for the sources
+    // read from files, the files' stamps from just before reading them.
+    private final List<ByteBuffer> contents = new ArrayList<ByteBuffer>();
+    private final List<FileStamp> stamps = new ArrayList<FileStamp>();
+    // The sources that have been read into the program so far.
+    private final BitSet included = new BitSet();
+    private IncludePrefetcher prefetcher = null;
+    private SourceCache cache = null;
+    private IncludeResolver resolver = null;
+    private AssemblerStats stats = null;
+    // The time and memory this thread spent getting sources' tokens,
+    // only measured while there are stats to collect.
+    private long tokenizeNanos = 0;
+    private long tokenizeAllocated = 0;
+    private int measureDepth = 0;
+    private long measureNanos;
+    private long measureAllocated;
+
+    private static final AssemblerEvents EVENTS = AssemblerEvents.get();
+
+    public IncludeGraph(TokenTable tokens) {
+        this.tokens = tokens;
+    }
+
+    // Has every source that gets added be scanned for includes to load
+    // ahead of time.
+    public void setPrefetcher(IncludePrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    // Takes files from the cache instead of always tokenizing them.
+    public void setSourceCache(SourceCache cache) {
+        this.cache = cache;
+    }
+
+    // Takes included files from the resolver instead of the
+    // filesystem. Sources are then told apart by their normalized
+    // paths instead of their canonical ones.
+    public void setIncludeResolver(IncludeResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public IncludeResolver getIncludeResolver() {
+        return resolver;
+    }
+
+    // Returns the contents of an included file from the resolver.
+    public ByteBuffer resolve(File file)
+        throws IOException {
+        String path = normalize(file.getPath());
+        ByteBuffer content = resolver.resolve(path);
+        if(content == null)
+            throw new FileNotFoundException(path+" (No such file)");
+        return content;
+    }
+
+    // Resolves the "." and ".." parts of the path without looking at
+    // the filesystem, and separates names with '/'.
+    public static String normalize(String path) {
+        String[] parts = path.replace(File.separatorChar, '/').split("/");
+        List<String> names = new ArrayList<String>(parts.length);
+        for(String part : parts) {
+            if(part.length() == 0 || part.equals("."))
+                continue;
+            if(part.equals("..") && !names.isEmpty() && !names.get(names.size()-1).equals(".."))
+                names.remove(names.size()-1);
+            else
+                names.add(part);
+        }
+        StringBuilder sb = new StringBuilder();
+        if(path.startsWith("/") || path.startsWith(File.separator))
+            sb.append('/');
+        for(int i=0; i<names.size(); i++) {
+            if(i != 0)
+                sb.append('/');
+            sb.append(names.get(i));
+        }
+        return sb.toString();
+    }
+
+    // Measures the time spent tokenizing and counts the size of the
+    // included files.
+    public void setStats(AssemblerStats stats) {
+        this.stats = stats;
+    }
+
+    public long getTokenizeNanos() {
+        return tokenizeNanos;
+    }
+
+    public long getTokenizeAllocatedBytes() {
+        return tokenizeAllocated;
+    }
+
+    private void beginMeasure() {
+        if(stats == null || measureDepth++ != 0)
+            return;
+        measureNanos = System.nanoTime();
+        measureAllocated = AssemblerStats.allocatedBytes();
+    }
+
+    private void endMeasure() {
+        if(stats == null || --measureDepth != 0)
+            return;
+        tokenizeNanos += System.nanoTime() - measureNanos;
+        tokenizeAllocated += AssemblerStats.allocatedBytes() - measureAllocated;
+    }
+
+    public TokenTable getTokens() {
+        return tokens;
+    }
+
+    // Adds a source that's already been read, like the root file or
+    // standard input. The path may be null if the source has no file.
+    public int addSource(ByteBuffer content, File sourceDir, String filename, String path)
+        throws TokenizeError {
+        return addSource(content, sourceDir, filename, path, null);
+    }
+
+    private int addSource(ByteBuffer content, File sourceDir, String filename, String path, FileStamp stamp)
+        throws TokenizeError {
+        beginMeasure();
+        try {
+            int start = tokens.size();
+            ByteTokenizer.tokenize(content, sourceDir, filename, tokens);
+            if(prefetcher != null)
+                prefetcher.scan(tokens, start, tokens.size());
+            return addNode(path, start, tokens.size(), content, stamp);
+        } finally {
+            endMeasure();
+        }
+    }
+
+    public int addSource(File file, String filename)
+        throws TokenizeError, IOException {
+        beginMeasure();
+        Object event = EVENTS.beginSource();
+        try {
+            int source;
+            FileStamp stamp = new FileStamp(file);
+            if(cache != null)
+                source = addTokens(cache.get(file, filename), file.getCanonicalPath(), true, stamp);
+            else
+                source = addSource(ByteTokenizer.map(file), file.getParentFile(), filename, file.getCanonicalPath(), stamp);
+            if(event != null)
+                endSourceEvent(event, file, source, file.length());
+            return source;
+        } finally {
+            endMeasure();
+        }
+    }
+
+    // Returns the source for the file, tokenizing it if this is the
+    // first time it's been asked for.
+    public int getSource(File file)
+        throws TokenizeError, IOException {
+        String path = resolver != null ? normalize(file.getPath()) : file.getCanonicalPath();
+        Integer id = ids.get(path);
+        if(id != null)
+            return id;
+        beginMeasure();
+        Object event = EVENTS.beginSource();
+        try {
+            int source;
+            if(resolver != null) {
+                ByteBuffer content = resolve(file);
+                if(stats != null)
+                    stats.addIncludeBytes(content.remaining());
+                source = addSource(content, file.getParentFile(), file.getName(), path);
+                if(event != null)
+                    endSourceEvent(event, file, source, content.remaining());
+                return source;
+            }
+            if(stats != null)
+                stats.addIncludeBytes(file.length());
+            TokenTable prefetched = null;
+            if(prefetcher != null)
+                prefetched = prefetcher.take(file);
+            if(prefetched != null)
+                source = addTokens(prefetched, path, false, prefetcher.getStamp(file));
+            else if(cache != null)
+                source = addTokens(cache.get(file), path, true, new FileStamp(file));
+            else
+                source = addSource(ByteTokenizer.map(file), file.getParentFile(), file.getName(), path, new FileStamp(file));
+            if(event != null)
+                endSourceEvent(event, file, source, file.length());
+            return source;
+        } finally {
+            endMeasure();
+        }
+    }
+
+    private void endSourceEvent(Object event, File file, int source, long bytes) {
+        EVENTS.endSource(event, file.getPath(), false, bytes, ends[source] - starts[source]);
+    }
+
+    // Adds a source that was tokenized into a table of its own.
+    private int addTokens(TokenTable loaded, String path, boolean scan, FileStamp stamp) {
+        int start = tokens.size();
+        tokens.append(loaded);
+        if(scan && prefetcher != null)
+            prefetcher.scan(tokens, start, tokens.size());
+        return addNode(path, start, tokens.size(), loaded.getSourceContent(0), stamp);
+    }
+
+    private int addNode(String path, int start, int end, ByteBuffer content, FileStamp stamp) {
+        int id = paths.size();
+        if(id == starts.length) {
+            int[] newStarts = new int[id*2];
+            int[] newEnds = new int[id*2];
+            System.arraycopy(starts, 0, newStarts, 0, id);
+            System.arraycopy(ends, 0, newEnds, 0, id);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        paths.add(path);
+        contents.add(content);
+        stamps.add(stamp);
+        starts[id] = start;
+        ends[id] = end;
+        if(path != null)
+            ids.put(path, id);
+        return id;
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    public String getPath(int source) {
+        return paths.get(source);
+    }
+
+    // The bytes that the source's tokens were read from.
+    public ByteBuffer getContent(int source) {
+        return contents.get(source).duplicate();
+    }
+
+    // The stamp the source's file had just before it was read, or null
+    // if it wasn't read from a file.
+    public FileStamp getStamp(int source) {
+        return stamps.get(source);
+    }
+
+    // The range of the token table holding the source's tokens.
+    public int getStart(int source) {
+        return starts[source];
+    }
+
+    public int getEnd(int source) {
+        return ends[source];
+    }
+
+    // Records that the source is being read into the program. Returns
+    // false if it already had been.
+    public boolean markIncluded(int source) {
+        if(included.get(source))
+            return false;
+        included.set(source);
+        return true;
+    }
+}
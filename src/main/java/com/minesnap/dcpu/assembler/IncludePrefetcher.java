@@ -0,0 +1,172 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+// Reads and tokenizes included files ahead of the assembler on a
+// thread pool. Every tokenized file is scanned for more .INCLUDE and
+// .INCBIN directives, so the whole include tree gets loaded in
+// parallel while the assembler works through the root file.
+//
+// Files are tokenized into tables of their own, which the IncludeGraph
+// copies into the program's table when the assembler reaches them,
+// so tokens still end up in the same order as when they are read one
+// at a time. Any error from reading a file is kept until the
+// assembler asks for that file, and files it never asks for can't
+// cause errors at all.
+
+public class IncludePrefetcher {
+    private final Executor executor;
+    private final SourceCache cache;
+    private volatile AssemblerStats stats = null;
+    private volatile boolean cancelled = false;
+    // Keyed by the path of the file as the assembler would spell it,
+    // so that the tokens' source names match exactly.
+    private final ConcurrentMap<String, Future<TokenTable>> tables
+        = new ConcurrentHashMap<String, Future<TokenTable>>();
+    // Taken just before each file was read.
+    private final ConcurrentMap<String, FileStamp> stamps
+        = new ConcurrentHashMap<String, FileStamp>();
+    private final ConcurrentMap<String, Boolean> binaries
+        = new ConcurrentHashMap<String, Boolean>();
+
+    public IncludePrefetcher(Executor executor) {
+        this(executor, null);
+    }
+
+    // Files are taken from the cache, if there is one, instead of
+    // always being tokenized.
+    public IncludePrefetcher(Executor executor, SourceCache cache) {
+        this.executor = executor;
+        this.cache = cache;
+    }
+
+    // Counts the memory allocated while loading files as tokenizing.
+    public void setStats(AssemblerStats stats) {
+        this.stats = stats;
+    }
+
+    // Stops loading the files that haven't been started yet. The
+    // executor may be shared, so it shouldn't be left reading files
+    // that nobody is going to take.
+    public void cancel() {
+        cancelled = true;
+        for(Future<TokenTable> future : tables.values())
+            future.cancel(false);
+    }
+
+    // Starts loading the files that the range of the table refers to.
+    public void scan(TokenTable tokens, int start, int end) {
+        if(cancelled)
+            return;
+        for(int i=start; i+1<end; i++) {
+            if(tokens.getKind(i) != TokenTable.NAME || tokens.getKind(i+1) != TokenTable.STRING)
+                continue;
+            Opcode opcode = Opcode.getByName(tokens.getText(i), null);
+            if(opcode == null)
+                continue;
+            switch(opcode.getType()) {
+            case INCLUDE:
+            case INCLUDEONCE:
+                prefetchSource(new File(tokens.getSourceDir(i+1), tokens.getStringValue(i+1)));
+                break;
+            case INCBIN:
+                prefetchBinary(new File(tokens.getSourceDir(i+1), tokens.getStringValue(i+1)));
+                break;
+            }
+        }
+    }
+
+    private void prefetchSource(final File file) {
+        final String key = file.getPath();
+        if(tables.containsKey(key))
+            return;
+        FutureTask<TokenTable> task = new FutureTask<TokenTable>(new Callable<TokenTable>() {
+                public TokenTable call() throws TokenizeError, IOException {
+                    AssemblerStats stats = IncludePrefetcher.this.stats;
+                    long allocatedBefore = stats != null ? AssemblerStats.allocatedBytes() : 0;
+                    stamps.put(key, new FileStamp(file));
+                    TokenTable table;
+                    if(cache != null) {
+                        table = cache.get(file);
+                    } else {
+                        table = new TokenTable();
+                        ByteTokenizer.tokenize(file, table);
+                    }
+                    scan(table, 0, table.size());
+                    if(stats != null)
+                        stats.add(AssemblerStats.Phase.TOKENIZE, 0, AssemblerStats.allocatedBytes() - allocatedBefore);
+                    return table;
+                }
+            });
+        if(tables.putIfAbsent(key, task) == null)
+            execute(task);
+    }
+
+    private void prefetchBinary(final File file) {
+        if(binaries.putIfAbsent(file.getPath(), Boolean.TRUE) != null)
+            return;
+        execute(new Runnable() {
+                public void run() {
+                    if(cancelled)
+                        return;
+                    try {
+                        BinaryCache.getShared().get(file);
+                    } catch (IOException e) {
+                        // BinInclude reports it if the file is used.
+                    }
+                }
+            });
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Still make sure that nothing waits for it forever.
+            task.run();
+        }
+    }
+
+    // Returns the tokens of the file, waiting for them if they're still
+    // being read, or null if the file was never scheduled. Errors are
+    // thrown just as tokenizing the file here would have thrown them.
+    public TokenTable take(File file)
+        throws TokenizeError, IOException {
+        Future<TokenTable> future = tables.get(file.getPath());
+        if(future == null)
+            return null;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading "+file);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof TokenizeError)
+                throw (TokenizeError)cause;
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error)
+                throw (Error)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    // The modification time and size the file had when it was read for
+    // take(), or null if it never was.
+    public FileStamp getStamp(File file) {
+        return stamps.get(file.getPath());
+    }
+}
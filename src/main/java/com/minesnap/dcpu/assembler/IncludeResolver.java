@@ -0,0 +1,17 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Supplies the files that a program assembled from memory includes
+// with .INCLUDE or .INCBIN, instead of reading them from disk.
+
+public interface IncludeResolver {
+    // Returns the contents of the file at the path, or null if there's
+    // no such file. The path is the directory of the including source
+    // joined to the name it gave, with "." and ".." parts resolved and
+    // '/' between names, so "lib/../util.dasm16" included from
+    // "src/main.dasm16" is asked for as "src/util.dasm16".
+    public ByteBuffer resolve(String path)
+        throws IOException;
+}
@@ -2,7 +2,7 @@ package com.minesnap.dcpu.assembler;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Map;
+import java.util.Collection;
 
 public class Instruction implements Resolvable {
     private final Opcode opcode;
@@ -41,7 +41,7 @@ public class Instruction implements Resolvable {
     }
 
     @Override
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    public void evaluateLabels(int[] labelValues, int position)
         throws TokenCompileError {
         if(valueA.getData() != null)
             valueA.getData().evaluateLabels(labelValues, position);
@@ -49,6 +49,19 @@ public class Instruction implements Resolvable {
             valueB.getData().evaluateLabels(labelValues, position);
     }
 
+    @Override
+    public void addReferences(Collection<Integer> references) {
+        if(valueA.getData() != null)
+            valueA.getData().addReferences(references);
+        if(opcode.isBasic() && valueB.getData() != null)
+            valueB.getData().addReferences(references);
+    }
+
+    @Override
+    public boolean isPositionDependent() {
+        return false;
+    }
+
     @Override
     public int wordCount() {
         int count = 1;
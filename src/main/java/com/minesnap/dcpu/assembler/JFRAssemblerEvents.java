@@ -0,0 +1,146 @@
+package com.minesnap.dcpu.assembler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Reports the assembler's work as Java Flight Recorder events. Only
+// loaded by AssemblerEvents when the JVM has the jdk.jfr classes.
+// While a recording doesn't include an event, beginning it costs a
+// check of whether it's enabled and nothing else.
+
+class JFRAssemblerEvents extends AssemblerEvents {
+    @Name("com.minesnap.dcpu.assembler.Phase")
+    @Label("Assembler Phase")
+    @Category({"DCPU-16", "Assembler"})
+    @Description("A phase of assembling a program")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("File")
+        String file;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Resolvables")
+        int resolvables;
+
+        @Label("Words Emitted")
+        int words;
+    }
+
+    @Name("com.minesnap.dcpu.assembler.Source")
+    @Label("Assembler Source")
+    @Category({"DCPU-16", "Assembler"})
+    @Description("Reading an included source file or binary")
+    static class SourceEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Binary")
+        boolean binary;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("com.minesnap.dcpu.assembler.RelaxationPass")
+    @Label("Assembler Relaxation Pass")
+    @Category({"DCPU-16", "Assembler"})
+    @Description("A pass over the program laying out instructions")
+    static class RelaxationPassEvent extends Event {
+        @Label("Pass")
+        int pass;
+
+        @Label("Resolvables Evaluated")
+        int evaluated;
+
+        @Label("Jumps Resized")
+        int resizedJumps;
+
+        @Label("Words")
+        int words;
+    }
+
+    @Override
+    public Object beginPhase() {
+        PhaseEvent event = new PhaseEvent();
+        if(!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endPhase(Object o, String phase, String file, int tokens, int resolvables, int words) {
+        if(o == null)
+            return;
+        PhaseEvent event = (PhaseEvent)o;
+        event.end();
+        if(!event.shouldCommit())
+            return;
+        event.phase = phase;
+        event.file = file;
+        event.tokens = tokens;
+        event.resolvables = resolvables;
+        event.words = words;
+        event.commit();
+    }
+
+    @Override
+    public Object beginSource() {
+        SourceEvent event = new SourceEvent();
+        if(!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endSource(Object o, String file, boolean binary, long bytes, int tokens) {
+        if(o == null)
+            return;
+        SourceEvent event = (SourceEvent)o;
+        event.end();
+        if(!event.shouldCommit())
+            return;
+        event.file = file;
+        event.binary = binary;
+        event.bytes = bytes;
+        event.tokens = tokens;
+        event.commit();
+    }
+
+    @Override
+    public Object beginPass() {
+        RelaxationPassEvent event = new RelaxationPassEvent();
+        if(!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endPass(Object o, int pass, int evaluated, int resizedJumps, int words) {
+        if(o == null)
+            return;
+        RelaxationPassEvent event = (RelaxationPassEvent)o;
+        event.end();
+        if(!event.shouldCommit())
+            return;
+        event.pass = pass;
+        event.evaluated = evaluated;
+        event.resizedJumps = resizedJumps;
+        event.words = words;
+        event.commit();
+    }
+}
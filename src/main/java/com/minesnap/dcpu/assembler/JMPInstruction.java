@@ -2,11 +2,14 @@ package com.minesnap.dcpu.assembler;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Map;
+import java.util.Collection;
 
 public class JMPInstruction implements Resolvable {
     private final UnresolvedData data;
-    private Instruction realInstruction = null;
+    // The chosen encoding and its literal operand. Kept as plain
+    // state so that relaxation passes don't allocate anything.
+    private JumpEncoding encoding = JumpEncoding.NONE;
+    private int operand = 0;
 
     public JMPInstruction(UnresolvedData data) {
         this.data = data;
@@ -16,10 +19,18 @@ public class JMPInstruction implements Resolvable {
         return data;
     }
 
-    private final static int maxliteral = 0x1f;
+    public JumpEncoding getEncoding() {
+        return encoding;
+    }
+
+    public int getOperand() {
+        return operand;
+    }
+
+    private final static int maxliteral = JumpEncoding.MAX_SHORT_LITERAL;
 
     @Override
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    public void evaluateLabels(int[] labelValues, int position)
         throws TokenCompileError {
         data.evaluateLabels(labelValues, position);
         int dest = data.getUnresolvedWord();
@@ -28,49 +39,56 @@ public class JMPInstruction implements Resolvable {
         // Q: If the instruction's size might be 2 words, then why are
         // we only correcting by 1 word? A: The first operand, PC, is
         // read before the second word causes PC to increment.
-        if(realInstruction != null)
+        if(encoding != JumpEncoding.NONE)
             delta--;
 
         if(delta == 0) {
             // JMP to the next instruction is NOP so don't do
             // anything.
-            realInstruction = null;
+            encoding = JumpEncoding.NONE;
+            operand = 0;
         } else {
             // Prefer using SET with a short form literal if possible
             // as it takes the fewest cycles. If we can't use the
             // short forms of ADD or SUB, then use SET.
             if(dest <= maxliteral || delta > maxliteral || delta < -maxliteral) {
-                realInstruction = new Instruction(Opcode.get(OpcodeType.SET));
-                realInstruction.setValueA(new Value(ValueType.PC));
-                realInstruction.setValueB(new Value(ValueType.LITERAL, new UnresolvedData(data.getToken(), dest)));
+                encoding = JumpEncoding.get(OpcodeType.SET, dest);
+                operand = dest;
             } else if(delta > 0) {
                 assert(delta <= maxliteral);
-                realInstruction = new Instruction(Opcode.get(OpcodeType.ADD));
-                realInstruction.setValueA(new Value(ValueType.PC));
-                realInstruction.setValueB(new Value(ValueType.LITERAL, new UnresolvedData(null, delta)));
+                encoding = JumpEncoding.ADD_SHORT;
+                operand = delta;
             } else if(delta < 0) {
                 assert(-delta <= maxliteral);
-                realInstruction = new Instruction(Opcode.get(OpcodeType.SUB));
-                realInstruction.setValueA(new Value(ValueType.PC));
-                realInstruction.setValueB(new Value(ValueType.LITERAL, new UnresolvedData(null, -delta)));
+                encoding = JumpEncoding.SUB_SHORT;
+                operand = -delta;
             } else {
                 throw new IllegalStateException("This shouldn't happen");
             }
         }
     }
 
+    @Override
+    public void addReferences(Collection<Integer> references) {
+        data.addReferences(references);
+    }
+
+    // The chosen instruction depends on the distance to the
+    // destination.
+    @Override
+    public boolean isPositionDependent() {
+        return true;
+    }
+
     @Override
     public int wordCount() {
-        if(realInstruction == null)
-            return 0;
-        return realInstruction.wordCount();
+        return encoding.wordCount();
     }
 
     @Override
     public void writeTo(WordWriter out)
         throws IOException {
-        if(realInstruction != null)
-            realInstruction.writeTo(out);
+        encoding.writeTo(out, operand);
     }
 
     @Override
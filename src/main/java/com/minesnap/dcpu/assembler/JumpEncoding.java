@@ -0,0 +1,78 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.IOException;
+
+// The instructions that a JMP or BRA can turn into. Each one is a
+// PC-modifying instruction whose first word is built once here, so
+// choosing and writing an encoding is only a matter of picking the
+// constant and supplying its operand.
+
+public enum JumpEncoding {
+    // Jumping to the next instruction compiles to nothing.
+    NONE(null, false),
+    SET_SHORT(OpcodeType.SET, false),
+    SET_LONG(OpcodeType.SET, true),
+    ADD_SHORT(OpcodeType.ADD, false),
+    ADD_LONG(OpcodeType.ADD, true),
+    SUB_SHORT(OpcodeType.SUB, false),
+    SUB_LONG(OpcodeType.SUB, true);
+
+    // Literals up to this value fit in the instruction word.
+    public final static int MAX_SHORT_LITERAL = 0x1f;
+
+    private final OpcodeType type;
+    private final boolean nextWord;
+    // The first word without the short literal, if there is one.
+    private final int opword;
+
+    private JumpEncoding(OpcodeType type, boolean nextWord) {
+        this.type = type;
+        this.nextWord = nextWord;
+        if(type == null) {
+            this.opword = 0;
+        } else {
+            int opword = type.getCode() | (ValueType.PC.getCode() << 4);
+            if(nextWord)
+                opword |= ValueType.LITERAL.getCode() << 10;
+            this.opword = opword;
+        }
+    }
+
+    // Returns the SET, ADD or SUB encoding for the given operand,
+    // using the short form if the operand fits in it.
+    public static JumpEncoding get(OpcodeType type, int operand) {
+        boolean nextWord = operand > MAX_SHORT_LITERAL;
+        switch(type) {
+        case SET:
+            return nextWord ? SET_LONG : SET_SHORT;
+        case ADD:
+            return nextWord ? ADD_LONG : ADD_SHORT;
+        case SUB:
+            return nextWord ? SUB_LONG : SUB_SHORT;
+        default:
+            throw new IllegalArgumentException("Jumps can only be encoded as SET, ADD or SUB");
+        }
+    }
+
+    public OpcodeType getType() {
+        return type;
+    }
+
+    public int wordCount() {
+        if(type == null)
+            return 0;
+        return nextWord ? 2 : 1;
+    }
+
+    public void writeTo(WordWriter out, int operand)
+        throws IOException {
+        if(type == null)
+            return;
+        if(nextWord) {
+            out.writeWord(opword);
+            out.writeWord(operand);
+        } else {
+            out.writeWord(opword | ((0x20+operand) << 10));
+        }
+    }
+}
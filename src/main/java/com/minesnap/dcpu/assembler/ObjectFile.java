@@ -0,0 +1,284 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads and writes object files: a ResolverList that was parsed but not
+// yet laid out, so that separately assembled files can be linked into
+// one program later.
+//
+// An object file starts with its symbols, each marked as either
+// defined in it (exported) or only referenced by it (imported). Then
+// come records in program order. Runs of resolvables that don't
+// reference any labels and don't depend on their position are stored
+// already encoded. Labels, and the instructions, jumps and data that
+// do need resolving, are stored as records that refer to the symbols
+// by index, so that the linker can resolve and relax them once it
+// knows where everything is. Values are stored big endian; the byte
+// order of the final program is picked when it's written.
+
+public class ObjectFile {
+    private ObjectFile() {}
+
+    private static final int MAGIC = 0x44434f31;
+    private static final int VERSION = 1;
+
+    // Record types
+    private static final int END = 0;
+    private static final int WORDS = 1;
+    private static final int LABEL = 2;
+    private static final int INSTRUCTION = 3;
+    private static final int JMP = 4;
+    private static final int BRA = 5;
+    private static final int MULTI = 6;
+
+    // Data types
+    private static final int WORD = 0;
+    private static final int REFERENCE = 1;
+
+    public static void write(ResolverList resolvables, OutputStream stream)
+        throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        SymbolTable symbols = resolvables.getSymbols();
+        out.writeInt(symbols.size());
+        for(int id=0; id<symbols.size(); id++) {
+            out.writeUTF(symbols.getName(id));
+            out.writeBoolean(resolvables.isDefined(id));
+        }
+
+        List<Resolvable> fixed = new ArrayList<Resolvable>();
+        List<Integer> references = new ArrayList<Integer>();
+        for(int i=0; i<resolvables.getEntryCount(); i++) {
+            Resolvable r = resolvables.getEntryResolvable(i);
+            if(r == null) {
+                writeWords(out, fixed);
+                out.writeByte(LABEL);
+                out.writeInt(resolvables.getEntryLabel(i));
+                continue;
+            }
+            references.clear();
+            r.addReferences(references);
+            if(references.isEmpty() && !r.isPositionDependent()) {
+                fixed.add(r);
+            } else {
+                writeWords(out, fixed);
+                writeResolvable(out, r);
+            }
+        }
+        writeWords(out, fixed);
+        out.writeByte(END);
+        out.flush();
+    }
+
+    // Encodes the resolvables into one record and clears the list.
+    private static void writeWords(DataOutputStream out, List<Resolvable> fixed)
+        throws IOException {
+        if(fixed.isEmpty())
+            return;
+        int count = 0;
+        for(Resolvable r : fixed)
+            count += r.wordCount();
+        ByteBuffer buffer = ByteBuffer.allocate(count*2);
+        WordWriter words = new WordWriter(buffer);
+        for(Resolvable r : fixed)
+            r.writeTo(words);
+        fixed.clear();
+
+        out.writeByte(WORDS);
+        out.writeInt(count);
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static void writeResolvable(DataOutputStream out, Resolvable r)
+        throws IOException {
+        if(r instanceof JMPInstruction) {
+            out.writeByte(JMP);
+            writeData(out, ((JMPInstruction)r).getData());
+        } else if(r instanceof BRAInstruction) {
+            out.writeByte(BRA);
+            writeData(out, ((BRAInstruction)r).getData());
+        } else if(r instanceof Instruction) {
+            Instruction instr = (Instruction)r;
+            Opcode opcode = instr.getOpcode();
+            out.writeByte(INSTRUCTION);
+            out.writeUTF(opcode.getName());
+            out.writeInt(opcode.getCode());
+            writeValue(out, instr.getValueA());
+            if(opcode.isBasic())
+                writeValue(out, instr.getValueB());
+        } else if(r instanceof UnresolvedMultiData) {
+            UnresolvedMultiData multi = (UnresolvedMultiData)r;
+            out.writeByte(MULTI);
+            out.writeInt(multi.getRepeatCount());
+            out.writeInt(multi.getDataList().size());
+            for(UnresolvedData data : multi.getDataList())
+                writeData(out, data);
+        } else {
+            throw new IllegalArgumentException("Can't write "+r+" to an object file");
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Value value)
+        throws IOException {
+        out.writeByte(value.getType().getCode());
+        if(value.getType().hasLiteral())
+            writeData(out, value.getData());
+    }
+
+    private static void writeData(DataOutputStream out, UnresolvedData data)
+        throws IOException {
+        if(data.getReference() == null) {
+            out.writeByte(WORD);
+            out.writeShort(data.getUnresolvedWord());
+        } else {
+            out.writeByte(REFERENCE);
+            out.writeInt(data.getReferenceId());
+            if(data instanceof UnresolvedOffset)
+                out.writeInt(((UnresolvedOffset)data).getOffset());
+            else
+                out.writeInt(0);
+        }
+        // Kept for error messages from the linker.
+        Token token = data.getToken();
+        out.writeBoolean(token != null);
+        if(token != null) {
+            out.writeUTF(token.getText());
+            out.writeUTF(token.getSourceFile());
+            out.writeInt(token.getLineNumber());
+        }
+    }
+
+    // Adds the contents of the object file to the list. The name is
+    // used in error messages.
+    public static void read(InputStream stream, String name, ResolverList resolvables)
+        throws CompileError, IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            if(in.readInt() != MAGIC)
+                throw new CompileError("Not an object file: "+name);
+            if(in.readInt() != VERSION)
+                throw new CompileError("Unsupported object file version: "+name);
+
+            SymbolTable symbols = resolvables.getSymbols();
+            int symbolCount = in.readInt();
+            String[] names = new String[symbolCount];
+            int[] ids = new int[symbolCount];
+            for(int i=0; i<symbolCount; i++) {
+                names[i] = in.readUTF();
+                in.readBoolean();
+                ids[i] = symbols.intern(names[i]);
+            }
+
+            while(true) {
+                int type = in.readByte();
+                switch(type) {
+                case END:
+                    return;
+                case WORDS:
+                {
+                    short[] words = new short[in.readInt()];
+                    for(int i=0; i<words.length; i++)
+                        words[i] = in.readShort();
+                    resolvables.add(new WordBlock(words));
+                    break;
+                }
+                case LABEL:
+                {
+                    String label = names[in.readInt()];
+                    try {
+                        resolvables.addLabel(label);
+                    } catch (LabelAlreadyExistsError e) {
+                        throw new CompileError("Duplicate label "+label+" found in "+name);
+                    }
+                    break;
+                }
+                case INSTRUCTION:
+                {
+                    String opname = in.readUTF();
+                    int code = in.readInt();
+                    Opcode opcode = Opcode.getByName(opname, null);
+                    if(opcode == null || opcode.getCode() == null || opcode.getCode() != code)
+                        opcode = Opcode.getCustom(opname, code >> 4);
+                    Instruction instr = new Instruction(opcode);
+                    instr.setValueA(readValue(in, names, ids));
+                    if(opcode.isBasic())
+                        instr.setValueB(readValue(in, names, ids));
+                    resolvables.add(instr);
+                    break;
+                }
+                case JMP:
+                    resolvables.add(new JMPInstruction(readData(in, names, ids)));
+                    break;
+                case BRA:
+                    resolvables.add(new BRAInstruction(readData(in, names, ids)));
+                    break;
+                case MULTI:
+                {
+                    int repeatCount = in.readInt();
+                    int count = in.readInt();
+                    List<UnresolvedData> dataList = new ArrayList<UnresolvedData>(count);
+                    for(int i=0; i<count; i++)
+                        dataList.add(readData(in, names, ids));
+                    resolvables.add(new UnresolvedMultiData(dataList, repeatCount));
+                    break;
+                }
+                default:
+                    throw new CompileError("Corrupt object file: "+name);
+                }
+            }
+        } catch (EOFException e) {
+            throw new CompileError("Truncated object file: "+name);
+        } catch (IndexOutOfBoundsException e) {
+            throw new CompileError("Corrupt object file: "+name);
+        } catch (IllegalArgumentException e) {
+            throw new CompileError("Corrupt object file: "+name);
+        }
+    }
+
+    private static Value readValue(DataInputStream in, String[] names, int[] ids)
+        throws IOException {
+        ValueType type = ValueType.getByCode(in.readByte());
+        if(type == null)
+            throw new IllegalArgumentException("Unknown value type");
+        if(type.hasLiteral())
+            return new Value(type, readData(in, names, ids));
+        return new Value(type);
+    }
+
+    private static UnresolvedData readData(DataInputStream in, String[] names, int[] ids)
+        throws IOException {
+        int type = in.readByte();
+        int word = 0;
+        int symbol = -1;
+        int offset = 0;
+        if(type == WORD) {
+            word = in.readShort() & 0xffff;
+        } else if(type == REFERENCE) {
+            symbol = in.readInt();
+            offset = in.readInt();
+        } else {
+            throw new IllegalArgumentException("Unknown data type");
+        }
+        Token token = null;
+        if(in.readBoolean()) {
+            String text = in.readUTF();
+            String sourceFile = in.readUTF();
+            token = new Token(text, null, sourceFile, in.readInt());
+        }
+        if(type == WORD)
+            return new UnresolvedData(token, word);
+        return new UnresolvedOffset(token, names[symbol], ids[symbol], offset);
+    }
+}
@@ -57,12 +57,17 @@ public class Opcode {
         return BY_TYPE.get(type);
     }
 
+    // A custom non-basic opcode with the given number.
+    public static Opcode getCustom(String name, int number) {
+        return new Opcode(name, number<<4, OpcodeType.CUSTOM);
+    }
+
     public static Opcode getByName(String name, Map<String, Integer> newNBOpcodes) {
         Opcode opcode = BY_NAME.get(name);
         if(opcode == null && newNBOpcodes != null) {
             Integer number = newNBOpcodes.get(name);
             if(number != null) {
-                opcode = new Opcode(name, number<<4, OpcodeType.CUSTOM);
+                opcode = getCustom(name, number);
             }
         }
         return opcode;
@@ -29,6 +29,7 @@ public enum OpcodeType {
         RESERVE(null, ".DS", ".RESERVE"),
         INCBIN(null, ".INCBIN"),
         INCLUDE(null, ".INCLUDE"),
+        INCLUDEONCE(null, ".INCLUDEONCE"),
 
         JSR(0x10),
 
@@ -0,0 +1,9 @@
+package com.minesnap.dcpu.assembler;
+
+// Thrown when the sizes of instructions like JMP can't be settled.
+
+public class RelaxationError extends CompileError {
+    public RelaxationError(String message) {
+        super(message);
+    }
+}
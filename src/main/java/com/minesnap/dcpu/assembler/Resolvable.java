@@ -2,11 +2,19 @@ package com.minesnap.dcpu.assembler;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Map;
+import java.util.Collection;
 
 public interface Resolvable {
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    // labelValues is indexed by SymbolTable id. Labels that are
+    // referenced but never defined have the value -1.
+    public void evaluateLabels(int[] labelValues, int position)
         throws TokenCompileError;
+    // Adds the SymbolTable id of every label that evaluateLabels
+    // looks up.
+    public void addReferences(Collection<Integer> references);
+    // True if the result of evaluateLabels depends on the position
+    // it's given and not just on the label values.
+    public boolean isPositionDependent();
     public int wordCount();
     public void writeTo(WordWriter out)
         throws IOException;
@@ -2,33 +2,57 @@ package com.minesnap.dcpu.assembler;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.HashSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.io.IOException;
 import java.io.OutputStream;
 
 public class ResolverList {
     private int wordPosition = 0;
     private List<PositionedResolvable> resolvablesList = new ArrayList<PositionedResolvable>();
-    private Map<String, Integer> labelIndexes = new HashMap<String, Integer>();
+    private final SymbolTable symbols = new SymbolTable();
+    // The index in resolvablesList of each label's definition, indexed
+    // by symbol id, or -1 for labels that are referenced but not
+    // defined.
+    private int[] labelIndexes = new int[64];
     private boolean prepared = false;
+    private int maxPasses = DEFAULT_MAX_PASSES;
+    private int passCount = 0;
+    private int evaluationCount = 0;
+    private int labelCount = 0;
+    // The number of JMP and BRA instructions that changed size in each
+    // pass of the last prepare().
+    private int[] resizedJumps = new int[0];
+    // The tokens the entries came from, and the index of each entry's
+    // token or -1, for the source map. Only kept once recordSources is
+    // called, so that programs nobody maps don't pay for them.
+    private TokenTable sourceTokens = null;
+    private int[] entryTokens = null;
+    private int sourceToken = -1;
 
-    private static class PositionedResolvable {
+    public static final int DEFAULT_MAX_PASSES = 10000;
+    private static final long LAYOUT_HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+    private static final AssemblerEvents EVENTS = AssemblerEvents.get();
+
+    private class PositionedResolvable {
         private final Resolvable resolvable;
-        private final String label;
+        private final int labelId;
         private int position;
 
         public PositionedResolvable(Resolvable resolvable, int position) {
             this.resolvable = resolvable;
-            this.label = null;
+            this.labelId = -1;
             this.position = position;
         }
 
-        public PositionedResolvable(String label, int position) {
+        public PositionedResolvable(int labelId, int position) {
             this.resolvable = null;
-            this.label = label;
+            this.labelId = labelId;
             this.position = position;
         }
 
@@ -36,7 +60,9 @@ public class ResolverList {
             return resolvable;
         }
         public String getLabel() {
-            return label;
+            if(labelId == -1)
+                return null;
+            return symbols.getName(labelId);
         }
         public int getPosition() {
             return position;
@@ -50,12 +76,49 @@ public class ResolverList {
             if(resolvable != null)
                 content = resolvable.toString();
             else
-                content = label;
+                content = getLabel();
             return Integer.toString(position)+": "+content;
         }
     }
 
     public ResolverList() {
+        Arrays.fill(labelIndexes, -1);
+    }
+
+    // The ids that label definitions and references are resolved by.
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    // Keeps where each entry added from now on came from, so that
+    // getSourceMap can be called. Sources are given by index in the
+    // table, which may be null if there are none, like when linking
+    // object files.
+    public void recordSources(TokenTable tokens) {
+        sourceTokens = tokens;
+        if(entryTokens == null) {
+            int size = resolvablesList.size();
+            entryTokens = new int[Math.max(size, 16)];
+            Arrays.fill(entryTokens, 0, size, -1);
+        }
+    }
+
+    public boolean isRecordingSources() {
+        return entryTokens != null;
+    }
+
+    // Sets the token that the resolvables and labels added from now on
+    // came from, or -1 for none.
+    public void setSource(int token) {
+        sourceToken = token;
+    }
+
+    private void recordSource(int index) {
+        if(entryTokens == null)
+            return;
+        if(index >= entryTokens.length)
+            entryTokens = Arrays.copyOf(entryTokens, Math.max(index+1, entryTokens.length*2));
+        entryTokens[index] = sourceToken;
     }
 
     public boolean add(Resolvable resolvable) {
@@ -63,6 +126,7 @@ public class ResolverList {
         PositionedResolvable pr = new PositionedResolvable(resolvable, wordPosition);
         resolvablesList.add(pr);
         assert(resolvablesList.get(thisIndex) == pr);
+        recordSource(thisIndex);
 
         wordPosition += resolvable.wordCount();
         prepared = false;
@@ -70,71 +134,282 @@ public class ResolverList {
         return true;
     }
 
+    // Removes the last entries, which must be resolvables, not labels.
+    public void removeLast(int count) {
+        for(int i=0; i<count; i++) {
+            PositionedResolvable pr = resolvablesList.remove(resolvablesList.size()-1);
+            if(pr.labelId != -1)
+                throw new IllegalStateException("Can't remove the label "+pr.getLabel());
+            wordPosition -= pr.getResolvable().wordCount();
+        }
+        prepared = false;
+    }
+
     public boolean addLabel(String label)
         throws LabelAlreadyExistsError {
-        if(labelIndexes.containsKey(label))
+        int id = symbols.intern(label);
+        if(id >= labelIndexes.length) {
+            int[] newIndexes = new int[Math.max(id+1, labelIndexes.length*2)];
+            System.arraycopy(labelIndexes, 0, newIndexes, 0, labelIndexes.length);
+            Arrays.fill(newIndexes, labelIndexes.length, newIndexes.length, -1);
+            labelIndexes = newIndexes;
+        }
+        if(labelIndexes[id] != -1)
             throw new LabelAlreadyExistsError(label);
 
         int thisIndex = resolvablesList.size();
-        PositionedResolvable pr = new PositionedResolvable(label, wordPosition);
+        PositionedResolvable pr = new PositionedResolvable(id, wordPosition);
         resolvablesList.add(pr);
         assert(resolvablesList.get(thisIndex) == pr);
+        recordSource(thisIndex);
 
-        labelIndexes.put(label, thisIndex);
+        labelIndexes[id] = thisIndex;
+        labelCount++;
 
         prepared = false;
 
         return true;
     }
 
-    private Map<String, Integer> getLabelValues() {
-        Map<String, Integer> labelValues = new HashMap<String, Integer>();
+    private int labelIndex(int id) {
+        if(id >= labelIndexes.length)
+            return -1;
+        return labelIndexes[id];
+    }
 
-        for(Map.Entry<String, Integer> labelIndex : labelIndexes.entrySet()) {
-            String label = labelIndex.getKey();
-            int index = labelIndex.getValue();
+    public void setMaxPasses(int maxPasses) {
+        if(maxPasses < 1)
+            throw new IllegalArgumentException("At least one pass is required");
+        this.maxPasses = maxPasses;
+    }
 
-            int position = resolvablesList.get(index).getPosition();
-            labelValues.put(label, position);
-        }
+    // The labels and resolvables in the order they were added. Each
+    // entry is either a resolvable or the definition of a label.
+    public int getEntryCount() {
+        return resolvablesList.size();
+    }
 
-        return labelValues;
+    // Returns null if the entry is a label.
+    public Resolvable getEntryResolvable(int index) {
+        return resolvablesList.get(index).getResolvable();
     }
 
-    private void evaluateRefs()
-        throws TokenCompileError {
-        Map<String, Integer> labelValues = getLabelValues();
+    // Returns the SymbolTable id of the label, or -1 if the entry is a
+    // resolvable.
+    public int getEntryLabel(int index) {
+        return resolvablesList.get(index).labelId;
+    }
+
+    // The number of labels defined in the list.
+    public int getLabelCount() {
+        return labelCount;
+    }
 
-        boolean needDoOver = false;
-        int newWordPosition = 0;
+    // The position of every defined label, in the order they were
+    // added. Only final once prepare() has been called.
+    public Map<String, Integer> getLabelPositions() {
+        Map<String, Integer> labels = new LinkedHashMap<String, Integer>();
         for(PositionedResolvable pr : resolvablesList) {
-            int oldWordPosition = pr.getPosition();
-            pr.setPosition(newWordPosition);
-            if(oldWordPosition != newWordPosition)
-                needDoOver = true;
-            // Don't break now for the do-over immediately because we
-            // still want to update the positions so that the labels
-            // are more correct.
+            if(pr.labelId != -1)
+                labels.put(pr.getLabel(), pr.getPosition());
+        }
+        return labels;
+    }
 
+    // The source file and line of every word and the position of every
+    // label.
+    public SourceMap getSourceMap() {
+        if(!prepared)
+            throw new IllegalStateException("prepare method must be called before getSourceMap");
+        if(entryTokens == null)
+            throw new IllegalStateException("recordSources must be called before getSourceMap");
+        SourceMap map = new SourceMap(wordPosition);
+        for(int i=0; i<resolvablesList.size(); i++) {
+            PositionedResolvable pr = resolvablesList.get(i);
             Resolvable r = pr.getResolvable();
-            if(r != null) {
-                r.evaluateLabels(labelValues, newWordPosition);
-                newWordPosition += r.wordCount();
+            if(r == null) {
+                map.addLabel(pr.getLabel(), pr.getPosition());
+                continue;
             }
+            int token = entryTokens[i];
+            if(token != -1 && sourceTokens != null)
+                map.addWords(pr.getPosition(), r.wordCount(), sourceTokens.getSourceDir(token),
+                             sourceTokens.getSourceFile(token), sourceTokens.getLineNumber(token));
         }
-        
-        // Did some instructions get moved during this last loop? If
-        // so, we need to repeat this until the final positions are
-        // the same as their values were when we first ran
-        // updateLabelValues().
-        if(needDoOver) {
+        return map;
+    }
+
+    public boolean isDefined(int labelId) {
+        return labelIndex(labelId) != -1;
+    }
+
+    // The size of the program in words. Only final once prepare() has
+    // been called.
+    public int getWordCount() {
+        return wordPosition;
+    }
+
+    // The number of passes the last prepare() took over the list.
+    public int getPassCount() {
+        return passCount;
+    }
+
+    // The number of times the last prepare() called evaluateLabels on
+    // a resolvable.
+    public int getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    // The number of JMP and BRA instructions that changed size in each
+    // pass of the last prepare(), one element per pass.
+    public int[] getResizedJumps() {
+        int[] counts = new int[passCount];
+        System.arraycopy(resizedJumps, 0, counts, 0, passCount);
+        return counts;
+    }
+
+    // Positions are found by relaxation: every resolvable is
+    // evaluated once, and then passes over the list are repeated
+    // until no position moves. A resolvable is only evaluated again
+    // in a later pass if something it depends on changed since its
+    // last evaluation: the value of a label it references, its own
+    // position (for resolvables like JMP whose size depends on
+    // distance), or its own size (JMP and BRA decide their next size
+    // partly from their current one). Otherwise evaluating it again
+    // would give the same result, so the outcome is the same as
+    // evaluating everything every pass.
+    private void evaluateRefs()
+        throws CompileError {
+        int count = resolvablesList.size();
+        Resolvable[] items = new Resolvable[count];
+        boolean[] positionDependent = new boolean[count];
+        boolean[] isJump = new boolean[count];
+        int[] sizes = new int[count];
+        boolean[] dirty = new boolean[count];
+
+        // The resolvables that reference each label, as ranges of
+        // dependentItems indexed by symbol id.
+        int labelCount = symbols.size();
+        int[] dependentStarts = new int[labelCount+1];
+        List<Integer> references = new ArrayList<Integer>();
+        for(int i=0; i<count; i++) {
+            Resolvable r = resolvablesList.get(i).getResolvable();
+            items[i] = r;
+            dirty[i] = true;
+            if(r == null)
+                continue;
+            positionDependent[i] = r.isPositionDependent();
+            isJump[i] = r instanceof JMPInstruction || r instanceof BRAInstruction;
+            sizes[i] = r.wordCount();
+            references.clear();
+            r.addReferences(references);
+            for(int id : references)
+                dependentStarts[id+1]++;
+        }
+        for(int id=0; id<labelCount; id++)
+            dependentStarts[id+1] += dependentStarts[id];
+        int[] dependentItems = new int[dependentStarts[labelCount]];
+        int[] dependentFill = new int[labelCount];
+        for(int i=0; i<count; i++) {
+            if(items[i] == null)
+                continue;
+            references.clear();
+            items[i].addReferences(references);
+            for(int id : references)
+                dependentItems[dependentStarts[id] + dependentFill[id]++] = i;
+        }
+
+        // The label values every resolvable sees during a pass are the
+        // positions from the end of the previous pass.
+        int[] labelValues = new int[labelCount];
+        for(int id=0; id<labelCount; id++) {
+            int index = labelIndex(id);
+            if(index == -1)
+                labelValues[id] = -1;
+            else
+                labelValues[id] = resolvablesList.get(index).getPosition();
+        }
+
+        Set<Long> seenLayouts = new HashSet<Long>();
+        passCount = 0;
+        evaluationCount = 0;
+        while(true) {
+            if(passCount == maxPasses) {
+                throw new RelaxationError("Instruction sizes did not settle after "+maxPasses+" passes");
+            }
+            passCount++;
+            if(passCount > resizedJumps.length) {
+                int[] newResized = new int[Math.max(8, resizedJumps.length*2)];
+                System.arraycopy(resizedJumps, 0, newResized, 0, resizedJumps.length);
+                resizedJumps = newResized;
+            }
+
+            Object passEvent = EVENTS.beginPass();
+            int evaluatedBefore = evaluationCount;
+            boolean moved = false;
+            int resized = 0;
+            int newWordPosition = 0;
+            long layoutHash = 17;
+            for(int i=0; i<count; i++) {
+                PositionedResolvable pr = resolvablesList.get(i);
+                if(pr.getPosition() != newWordPosition) {
+                    pr.setPosition(newWordPosition);
+                    moved = true;
+                    if(positionDependent[i])
+                        dirty[i] = true;
+                }
+                // Don't stop at the first move because we still want
+                // to update the positions so that the labels are more
+                // correct.
+
+                Resolvable r = items[i];
+                if(r == null)
+                    continue;
+                if(dirty[i]) {
+                    int oldSize = sizes[i];
+                    r.evaluateLabels(labelValues, newWordPosition);
+                    evaluationCount++;
+                    sizes[i] = r.wordCount();
+                    dirty[i] = sizes[i] != oldSize;
+                    if(dirty[i] && isJump[i])
+                        resized++;
+                }
+                newWordPosition += sizes[i];
+                layoutHash = layoutHash*LAYOUT_HASH_MULTIPLIER + sizes[i];
+            }
             wordPosition = newWordPosition;
-            evaluateRefs();
+            resizedJumps[passCount-1] = resized;
+            EVENTS.endPass(passEvent, passCount, evaluationCount - evaluatedBefore, resized, newWordPosition);
+
+            // Did some instructions get moved during this last pass?
+            // If not, the positions that the label values were taken
+            // from are final.
+            if(!moved)
+                break;
+
+            // Every pass after the first is decided by the sizes that
+            // the last pass ended with. Seeing the same sizes again
+            // means the passes would repeat forever.
+            if(!seenLayouts.add(layoutHash)) {
+                throw new RelaxationError("Instruction sizes oscillate between passes and can not be resolved");
+            }
+
+            for(int id=0; id<labelCount; id++) {
+                int index = labelIndex(id);
+                if(index == -1)
+                    continue;
+                int position = resolvablesList.get(index).getPosition();
+                if(position != labelValues[id]) {
+                    labelValues[id] = position;
+                    for(int d=dependentStarts[id]; d<dependentStarts[id+1]; d++)
+                        dirty[dependentItems[d]] = true;
+                }
+            }
         }
     }
 
     public void prepare()
-        throws TokenCompileError {
+        throws CompileError {
         evaluateRefs();
         prepared = true;
     }
@@ -161,7 +436,10 @@ public class ResolverList {
     public void clear() {
         wordPosition = 0;
         resolvablesList.clear();
-        labelIndexes.clear();
+        symbols.clear();
+        Arrays.fill(labelIndexes, -1);
+        labelCount = 0;
         prepared = false;
+        sourceToken = -1;
     }
 }
@@ -0,0 +1,448 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Rules that replace short runs of instructions with cheaper ones, as
+// the superoptimizer finds them. A rule is written with its registers
+// numbered r0 to r7 in the order they first appear, so that one rule
+// covers the same code whatever registers it uses:
+//
+//     MUL r0, 0x1 => SET O, 0x0
+//     SET r0, r1; SET r1, r0 => SET r0, r1
+//     SET r0, 0x0; ADD r0, r1 => SET r0, r1 [live-out r0, r1]
+//
+// Rules without a live-out list leave every register and O as the
+// original code would, so the assembler can apply them anywhere. The
+// others only hold when nothing but the listed registers is read
+// afterwards, which the assembler can't know, so they're kept for
+// reference only.
+//
+// Only SET to XOR are rewritten, with registers, O and literals as
+// values.
+
+public class RewriteDatabase {
+    // The longest run of instructions a rule replaces.
+    public static final int MAX_WINDOW = 4;
+
+    // Values are registers, O or literals.
+    static final int REGISTERS = 8;
+    static final int O = REGISTERS;
+    static final int LITERAL = 0x10000;
+
+    private static final String LIVE_OUT = "[live-out";
+
+    // Rules by their original code, without and with live-out lists.
+    private final Map<String, Rule> exactRules = new TreeMap<String, Rule>();
+    private final Map<String, Rule> liveOutRules = new TreeMap<String, Rule>();
+
+    // A run of instructions as opcode, a and b for each, with registers
+    // numbered in the order they first appear.
+    static class Code {
+        final int[] ops;
+        final int[] as;
+        final int[] bs;
+        // The register each number stands for.
+        final int[] registers;
+
+        Code(int[] ops, int[] as, int[] bs, int[] registers) {
+            this.ops = ops;
+            this.as = as;
+            this.bs = bs;
+            this.registers = registers;
+        }
+
+        int length() {
+            return ops.length;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for(int i=0; i<ops.length; i++) {
+                if(i != 0)
+                    sb.append("; ");
+                sb.append(BASIC[ops[i]]).append(' ').append(valueName(as[i]))
+                    .append(", ").append(valueName(bs[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class Rule {
+        private final Code original;
+        private final Code replacement;
+        // Numbered registers and O, or null if everything is live.
+        private final int[] liveOut;
+
+        public Rule(Code original, Code replacement, int[] liveOut) {
+            this.original = original;
+            this.replacement = replacement;
+            this.liveOut = liveOut;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(original).append(" =>");
+            if(replacement.length() != 0)
+                sb.append(' ').append(replacement);
+            if(liveOut != null) {
+                sb.append(' ').append(LIVE_OUT);
+                for(int i=0; i<liveOut.length; i++)
+                    sb.append(i == 0 ? " " : ", ").append(valueName(liveOut[i]));
+                sb.append(']');
+            }
+            return sb.toString();
+        }
+    }
+
+    // The opcodes rules may use, by their code.
+    private static final OpcodeType[] BASIC = new OpcodeType[OpcodeType.XOR.getCode()+1];
+
+    static {
+        for(OpcodeType type : OpcodeType.values()) {
+            Integer code = type.getCode();
+            if(code != null && code > 0 && code < BASIC.length)
+                BASIC[code] = type;
+        }
+    }
+
+    public RewriteDatabase() {
+    }
+
+    public static RewriteDatabase read(File file)
+        throws IOException {
+        RewriteDatabase database = new RewriteDatabase();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#"))
+                    continue;
+                Rule rule = parseRule(line);
+                if(rule == null)
+                    throw new IOException("Bad rewrite on line "+lineNumber+" of "+file+": "+line);
+                database.add(rule);
+            }
+        } finally {
+            in.close();
+        }
+        return database;
+    }
+
+    public void write(File file)
+        throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("# DCPU-16 rewrites. Registers are numbered r0 to r7 in the order they\n");
+            out.write("# first appear. Rules with a live-out list aren't applied by the assembler.\n");
+            for(Rule rule : rules())
+                out.write(rule+"\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // The number of rules, counting those with live-out lists.
+    public int size() {
+        return exactRules.size() + liveOutRules.size();
+    }
+
+    // Adds a rule that replaces the original instructions. If liveOut
+    // is null the replacement must leave every register and O the same
+    // as the original, otherwise just the given ones. The replacement
+    // of an earlier rule for the same code is itself replaced.
+    public void add(List<Instruction> original, List<Instruction> replacement, Collection<ValueType> liveOut) {
+        Code code = encode(original, new int[0]);
+        if(code == null || code.length() == 0 || code.length() > MAX_WINDOW)
+            throw new IllegalArgumentException("Can't rewrite "+original);
+        Code newCode = encode(replacement, code.registers);
+        if(newCode == null)
+            throw new IllegalArgumentException("Can't rewrite to "+replacement);
+        int[] live = null;
+        if(liveOut != null) {
+            // Registers that neither uses don't matter.
+            int[] values = new int[liveOut.size()];
+            int count = 0;
+            for(ValueType type : liveOut) {
+                int value = encodeValue(type, null, newCode.registers, false);
+                if(value != -1)
+                    values[count++] = value;
+            }
+            live = new int[count];
+            System.arraycopy(values, 0, live, 0, count);
+            Arrays.sort(live);
+        }
+        add(new Rule(code, new Code(newCode.ops, newCode.as, newCode.bs, code.registers), live));
+    }
+
+    private void add(Rule rule) {
+        String key = rule.original.toString();
+        if(rule.liveOut == null) {
+            exactRules.put(key, rule);
+            liveOutRules.remove(key);
+        } else if(!exactRules.containsKey(key)) {
+            liveOutRules.put(key, rule);
+        }
+    }
+
+    // Returns the replacement for the instructions, or null if no rule
+    // that the assembler can apply matches them.
+    public List<Instruction> rewrite(List<Instruction> original) {
+        Code code = encode(original, new int[0]);
+        if(code == null)
+            return null;
+        Rule rule = exactRules.get(code.toString());
+        if(rule == null)
+            return null;
+        return decode(rule.replacement, code.registers);
+    }
+
+    // Rewrites the instructions at the end of the list if they match a
+    // rule the assembler can apply, trying the longest run first.
+    // Returns true if they were rewritten.
+    public boolean apply(ResolverList list) {
+        if(exactRules.isEmpty())
+            return false;
+        int count = list.getEntryCount();
+        List<Instruction> window = new ArrayList<Instruction>(MAX_WINDOW);
+        for(int length=1; length<=MAX_WINDOW && length<=count; length++) {
+            Resolvable r = list.getEntryResolvable(count-length);
+            if(r == null || r.getClass() != Instruction.class)
+                break;
+            window.add(0, (Instruction)r);
+        }
+        while(!window.isEmpty()) {
+            int start = count - window.size();
+            List<Instruction> replacement = rewrite(window);
+            // An IF before the run only skips its first instruction,
+            // so it has to stay a single instruction.
+            if(replacement != null
+               && (start == 0 || !isConditional(list.getEntryResolvable(start-1))
+                   || (window.size() == 1 && replacement.size() == 1))) {
+                list.removeLast(window.size());
+                for(Instruction instr : replacement)
+                    list.add(instr);
+                return true;
+            }
+            window.remove(0);
+        }
+        return false;
+    }
+
+    // A digest of the rules the assembler applies, which changes when
+    // they do.
+    public String getDigest() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 should always be available", e);
+        }
+        for(Rule rule : exactRules.values()) {
+            for(char c : (rule+"\n").toCharArray()) {
+                digest.update((byte)(c >> 8));
+                digest.update((byte)c);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private List<Rule> rules() {
+        List<Rule> rules = new ArrayList<Rule>(exactRules.values());
+        rules.addAll(liveOutRules.values());
+        return rules;
+    }
+
+    private static boolean isConditional(Resolvable r) {
+        if(!(r instanceof Instruction))
+            return false;
+        OpcodeType type = ((Instruction)r).getOpcode().getType();
+        return type == OpcodeType.IFE || type == OpcodeType.IFN
+            || type == OpcodeType.IFG || type == OpcodeType.IFB;
+    }
+
+    // Encodes the instructions, numbering registers after those that
+    // are already numbered. Returns null if they can't be rewritten.
+    static Code encode(List<Instruction> instructions, int[] numbered) {
+        int[] ops = new int[instructions.size()];
+        int[] as = new int[ops.length];
+        int[] bs = new int[ops.length];
+        int[][] registers = { numbered };
+        for(int i=0; i<ops.length; i++) {
+            Instruction instr = instructions.get(i);
+            Integer code = instr.getOpcode().getCode();
+            if(instr.getOpcode().getType() == OpcodeType.CUSTOM || code == null
+               || code <= 0 || code >= BASIC.length)
+                return null;
+            ops[i] = code;
+            as[i] = encodeValue(instr.getValueA(), registers, false);
+            bs[i] = encodeValue(instr.getValueB(), registers, true);
+            if(as[i] == -1 || bs[i] == -1)
+                return null;
+        }
+        return new Code(ops, as, bs, registers[0]);
+    }
+
+    private static int encodeValue(Value value, int[][] registers, boolean literal) {
+        return encodeValue(value.getType(), value.getData(), registers, literal);
+    }
+
+    private static int encodeValue(ValueType type, UnresolvedData data, int[][] registers, boolean literal) {
+        if(type == ValueType.O)
+            return O;
+        if(type == ValueType.LITERAL) {
+            if(!literal || data.getClass() != UnresolvedData.class || data.getReference() != null)
+                return -1;
+            return LITERAL | data.getUnresolvedWord();
+        }
+        int code = type.getCode();
+        if(code < ValueType.A.getCode() || code > ValueType.J.getCode())
+            return -1;
+        int[] numbered = registers[0];
+        for(int i=0; i<numbered.length; i++) {
+            if(numbered[i] == code)
+                return i;
+        }
+        int[] more = new int[numbered.length+1];
+        System.arraycopy(numbered, 0, more, 0, numbered.length);
+        more[numbered.length] = code;
+        registers[0] = more;
+        return numbered.length;
+    }
+
+    private static int encodeValue(ValueType type, UnresolvedData data, int[] registers, boolean literal) {
+        int[][] holder = { registers };
+        int value = encodeValue(type, data, holder, literal);
+        // Only registers that are already numbered.
+        return holder[0] == registers ? value : -1;
+    }
+
+    static List<Instruction> decode(Code code, int[] registers) {
+        List<Instruction> instructions = new ArrayList<Instruction>(code.length());
+        for(int i=0; i<code.length(); i++) {
+            Instruction instr = new Instruction(Opcode.get(BASIC[code.ops[i]]));
+            Value a = decodeValue(code.as[i], registers);
+            Value b = decodeValue(code.bs[i], registers);
+            if(a == null || b == null)
+                return null;
+            instr.setValueA(a);
+            instr.setValueB(b);
+            instructions.add(instr);
+        }
+        return instructions;
+    }
+
+    private static Value decodeValue(int value, int[] registers) {
+        if(value >= LITERAL)
+            return new Value(ValueType.LITERAL, new UnresolvedData(null, value & 0xffff));
+        if(value == O)
+            return new Value(ValueType.O);
+        if(value >= registers.length)
+            return null;
+        return new Value(ValueType.getByCode((byte)registers[value]));
+    }
+
+    static String valueName(int value) {
+        if(value >= LITERAL)
+            return "0x"+Integer.toHexString(value & 0xffff);
+        if(value == O)
+            return "O";
+        return "r"+value;
+    }
+
+    // Parses a rule as toString writes it, or returns null.
+    private static Rule parseRule(String line) {
+        int arrow = line.indexOf("=>");
+        if(arrow == -1)
+            return null;
+        String left = line.substring(0, arrow).trim();
+        String right = line.substring(arrow+2).trim();
+        int[] liveOut = null;
+        int liveStart = right.indexOf(LIVE_OUT);
+        if(liveStart != -1) {
+            if(!right.endsWith("]"))
+                return null;
+            String[] names = right.substring(liveStart+LIVE_OUT.length(), right.length()-1).split(",");
+            liveOut = new int[names.length];
+            for(int i=0; i<names.length; i++) {
+                liveOut[i] = parseValue(names[i].trim());
+                if(liveOut[i] == -1 || liveOut[i] >= LITERAL)
+                    return null;
+            }
+            Arrays.sort(liveOut);
+            right = right.substring(0, liveStart).trim();
+        }
+        Code original = parseCode(left);
+        Code replacement = parseCode(right);
+        if(original == null || replacement == null || original.length() == 0 || original.length() > MAX_WINDOW)
+            return null;
+        return new Rule(original, replacement, liveOut);
+    }
+
+    private static Code parseCode(String text) {
+        if(text.length() == 0)
+            return new Code(new int[0], new int[0], new int[0], new int[0]);
+        String[] instructions = text.split(";");
+        int[] ops = new int[instructions.length];
+        int[] as = new int[ops.length];
+        int[] bs = new int[ops.length];
+        for(int i=0; i<instructions.length; i++) {
+            String[] parts = instructions[i].trim().split("[\\s,]+");
+            if(parts.length != 3)
+                return null;
+            ops[i] = -1;
+            for(int code=1; code<BASIC.length; code++) {
+                if(BASIC[code].toString().equals(parts[0].toUpperCase()))
+                    ops[i] = code;
+            }
+            as[i] = parseValue(parts[1]);
+            bs[i] = parseValue(parts[2]);
+            if(ops[i] == -1 || as[i] == -1 || as[i] >= LITERAL || bs[i] == -1)
+                return null;
+        }
+        return new Code(ops, as, bs, new int[0]);
+    }
+
+    private static int parseValue(String text) {
+        if(text.equalsIgnoreCase("O"))
+            return O;
+        try {
+            if(text.length() == 2 && text.charAt(0) == 'r') {
+                int register = text.charAt(1) - '0';
+                return register >= 0 && register < REGISTERS ? register : -1;
+            }
+            int word;
+            if(text.startsWith("0x"))
+                word = Integer.parseInt(text.substring(2), 16);
+            else
+                word = Integer.parseInt(text);
+            return (word & 0xffff) == word ? LITERAL | word : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
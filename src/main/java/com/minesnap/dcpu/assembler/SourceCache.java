@@ -0,0 +1,139 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Tokenized source files kept between assemblies, so that a long
+// running assembler only tokenizes the files that have changed since
+// it last saw them. A file whose modification time and size are
+// unchanged is trusted as is. Otherwise it's read again, and if its
+// contents hash the same as before its old tokens are still used.
+//
+// Tables handed out by the cache are shared and must not be added to.
+
+public class SourceCache {
+    public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+    private static class Entry {
+        private long lastModified;
+        private final long size;
+        private final byte[] hash;
+        private final TokenTable tokens;
+
+        public Entry(long lastModified, long size, byte[] hash, TokenTable tokens) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.hash = hash;
+            this.tokens = tokens;
+        }
+    }
+
+    // Keyed by the file's path as it was given along with the name its
+    // tokens report, since both end up in the tokens.
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long maxBytes;
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public SourceCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public SourceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public TokenTable get(File file)
+        throws TokenizeError, IOException {
+        return get(file, file.getName());
+    }
+
+    // Returns the tokens of the file, with the given name as their
+    // source file name.
+    public TokenTable get(File file, String filename)
+        throws TokenizeError, IOException {
+        String key = file.getPath()+File.pathSeparator+filename;
+        long lastModified = file.lastModified();
+        long size = file.length();
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+            if(entry != null && entry.lastModified == lastModified && entry.size == size) {
+                hits++;
+                return entry.tokens;
+            }
+        }
+
+        ByteBuffer content = ByteTokenizer.map(file);
+        byte[] hash = hash(content);
+        if(entry != null && Arrays.equals(entry.hash, hash)) {
+            synchronized(this) {
+                // Only touched, not changed.
+                entry.lastModified = lastModified;
+                hits++;
+            }
+            return entry.tokens;
+        }
+
+        TokenTable tokens = new TokenTable();
+        ByteTokenizer.tokenize(content, file.getParentFile(), filename, tokens);
+        synchronized(this) {
+            misses++;
+            Entry old = entries.remove(key);
+            if(old != null)
+                totalBytes -= old.size;
+            if(content.remaining() <= maxBytes) {
+                entries.put(key, new Entry(lastModified, content.remaining(), hash, tokens));
+                totalBytes += content.remaining();
+                evict();
+            }
+        }
+        return tokens;
+    }
+
+    private static byte[] hash(ByteBuffer content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 should always be available", e);
+        }
+        digest.update(content.duplicate());
+        return digest.digest();
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    // The number of files that were found in the cache, and the number
+    // that had to be tokenized.
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+}
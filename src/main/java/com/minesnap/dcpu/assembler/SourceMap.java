@@ -0,0 +1,127 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Where each word of an assembled program came from: the source file
+// and line of the instruction or data that produced it. Words with no
+// known source, like those linked from object files, have a null file
+// and line 0. The labels are kept too, so that an address can be
+// named by the label it follows.
+
+public class SourceMap {
+    private final int wordCount;
+    private final List<String> files = new ArrayList<String>();
+    private final List<File> paths = new ArrayList<File>();
+    private final Map<String, Integer> fileIds = new HashMap<String, Integer>();
+    // Each word's index in files plus one, or 0 if it has no source.
+    private final int[] wordFiles;
+    private final int[] wordLines;
+    // Labels in the order they were defined, which is also the order
+    // of their addresses.
+    private final List<String> labelNames = new ArrayList<String>();
+    private int[] labelAddresses = new int[16];
+
+    SourceMap(int wordCount) {
+        this.wordCount = wordCount;
+        wordFiles = new int[wordCount];
+        wordLines = new int[wordCount];
+    }
+
+    void addWords(int address, int count, File dir, String file, int line) {
+        if(file == null)
+            return;
+        String key = dir+File.separator+file;
+        Integer id = fileIds.get(key);
+        if(id == null) {
+            files.add(file);
+            paths.add(dir == null ? new File(file) : new File(dir, new File(file).getName()));
+            id = files.size();
+            fileIds.put(key, id);
+        }
+        for(int i=address; i<address+count && i<wordCount; i++) {
+            wordFiles[i] = id;
+            wordLines[i] = line;
+        }
+    }
+
+    void addLabel(String name, int address) {
+        int index = labelNames.size();
+        if(index == labelAddresses.length) {
+            int[] newAddresses = new int[index*2];
+            System.arraycopy(labelAddresses, 0, newAddresses, 0, index);
+            labelAddresses = newAddresses;
+        }
+        labelNames.add(name);
+        labelAddresses[index] = address;
+    }
+
+    // The size of the program in words.
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    // The name of the source file the word came from, as it was given
+    // to the assembler or written in an .include, or null.
+    public String getFile(int address) {
+        if(address < 0 || address >= wordCount || wordFiles[address] == 0)
+            return null;
+        return files.get(wordFiles[address]-1);
+    }
+
+    // Where the source file of the word can be read from, or null.
+    public File getPath(int address) {
+        if(address < 0 || address >= wordCount || wordFiles[address] == 0)
+            return null;
+        return paths.get(wordFiles[address]-1);
+    }
+
+    // The line the word came from, counting from 1, or 0.
+    public int getLine(int address) {
+        if(address < 0 || address >= wordCount)
+            return 0;
+        return wordLines[address];
+    }
+
+    // The last label defined at or before the address, or null if
+    // there isn't one or the address is past the end of the program.
+    public String getLabel(int address) {
+        int index = labelIndex(address);
+        return index == -1 ? null : labelNames.get(index);
+    }
+
+    // The address of the label getLabel returns, or -1.
+    public int getLabelAddress(int address) {
+        int index = labelIndex(address);
+        return index == -1 ? -1 : labelAddresses[index];
+    }
+
+    private int labelIndex(int address) {
+        if(address < 0 || address >= wordCount)
+            return -1;
+        // The last label whose address isn't past this one.
+        int low = 0;
+        int high = labelNames.size();
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(labelAddresses[middle] <= address)
+                low = middle+1;
+            else
+                high = middle;
+        }
+        return low-1;
+    }
+
+    // The address of every label, in the order they're defined.
+    public Map<String, Integer> getLabels() {
+        Map<String, Integer> labels = new LinkedHashMap<String, Integer>();
+        for(int i=0; i<labelNames.size(); i++)
+            labels.put(labelNames.get(i), labelAddresses[i]);
+        return Collections.unmodifiableMap(labels);
+    }
+}
@@ -0,0 +1,50 @@
+package com.minesnap.dcpu.assembler;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+// Gives every label name a dense integer id, so that label values can
+// be kept in an int[] indexed by id instead of being looked up by name.
+
+public class SymbolTable {
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+
+    public SymbolTable() {
+    }
+
+    // Returns the id of the given name, giving it the next free id if
+    // it doesn't have one yet.
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if(id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    // Returns the id of the given name, or -1 if it has none.
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        if(id == null)
+            return -1;
+        return id;
+    }
+
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public void clear() {
+        ids.clear();
+        names.clear();
+    }
+}
@@ -0,0 +1,103 @@
+package com.minesnap.dcpu.assembler;
+
+import java.util.NoSuchElementException;
+
+// Walks a TokenTable by index. The cursor reads a stack of ranges of
+// the table, so that an included file's tokens can be spliced in
+// without copying either the included tokens or the ones after them.
+// Each range can be tagged with the source it was read from, so that
+// the chain of files currently being included can be checked.
+
+public class TokenCursor {
+    private final TokenTable tokens;
+    // The ranges left to read. The top of the stack is read first.
+    private int[] positions = new int[8];
+    private int[] ends = new int[8];
+    private int[] sources = new int[8];
+    private int depth = 0;
+
+    public TokenCursor(TokenTable tokens, int start, int end) {
+        this(tokens, start, end, -1);
+    }
+
+    public TokenCursor(TokenTable tokens, int start, int end, int source) {
+        this.tokens = tokens;
+        push(start, end, source);
+    }
+
+    public TokenTable getTokens() {
+        return tokens;
+    }
+
+    private void push(int start, int end, int source) {
+        if(depth == positions.length) {
+            int[] newPositions = new int[depth*2];
+            int[] newEnds = new int[depth*2];
+            int[] newSources = new int[depth*2];
+            System.arraycopy(positions, 0, newPositions, 0, depth);
+            System.arraycopy(ends, 0, newEnds, 0, depth);
+            System.arraycopy(sources, 0, newSources, 0, depth);
+            positions = newPositions;
+            ends = newEnds;
+            sources = newSources;
+        }
+        positions[depth] = start;
+        ends[depth] = end;
+        sources[depth] = source;
+        depth++;
+    }
+
+    public boolean hasNext() {
+        for(int i=depth-1; i>=0; i--) {
+            if(positions[i] < ends[i])
+                return true;
+        }
+        return false;
+    }
+
+    // Returns the index in the table of the next token.
+    public int next() {
+        // Ranges are only dropped here, never right after reading a
+        // token, so that previous() always steps back within the
+        // range the last token came from.
+        while(depth > 0 && positions[depth-1] == ends[depth-1])
+            depth--;
+        if(depth == 0)
+            throw new NoSuchElementException();
+        return positions[depth-1]++;
+    }
+
+    // Puts back the token that was just returned by next().
+    public void previous() {
+        positions[depth-1]--;
+    }
+
+    // Makes the given range of the table be read right after the
+    // next token.
+    public void insertAfterNext(int start, int end) {
+        insertAfterNext(start, end, -1);
+    }
+
+    public void insertAfterNext(int start, int end, int source) {
+        while(depth > 0 && positions[depth-1] == ends[depth-1])
+            depth--;
+        if(depth == 0)
+            throw new NoSuchElementException();
+        int next = positions[depth-1];
+        positions[depth-1] = next+1;
+        push(start, end, source);
+        push(next, next+1, sources[depth-2]);
+    }
+
+    // Whether a range from the given source is still being read. Every
+    // range under the top of the stack belongs to a file that included
+    // the one above it, so these are the files in the current include
+    // chain.
+    public boolean isReading(int source) {
+        for(int i=0; i<depth; i++) {
+            if(sources[i] == source)
+                return true;
+        }
+        return false;
+    }
+}
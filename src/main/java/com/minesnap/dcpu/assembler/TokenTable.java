@@ -0,0 +1,294 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+// Compact storage for tokens. Instead of one Token object (plus its
+// text and source strings) per token, every token is a row across
+// parallel int arrays that point back into the source bytes. Token
+// text is only decoded when it's asked for, and Token objects are
+// only created for tokens that end up in compile errors.
+
+public class TokenTable {
+    // Unquoted strings: instructions, registers and label references.
+    public static final int NAME = 0;
+    public static final int LABEL = 1;
+    public static final int INT = 2;
+    public static final int STRING = 3;
+    // Borders and newlines. The symbol's character is kept as the
+    // token's value.
+    public static final int SYMBOL = 4;
+
+    private int size = 0;
+    private int[] kinds;
+    private int[] starts;
+    private int[] lengths;
+    private int[] sources;
+    private int[] lines;
+    // Integer tokens' values and symbol tokens' characters.
+    private int[] values;
+
+    private final List<Source> sourceList = new ArrayList<Source>();
+    private final Map<String, Integer> sourceIds = new HashMap<String, Integer>();
+
+    // Decoded, upper-cased NAME tokens keyed by their raw text. Source
+    // uses the same few instruction and register names over and over,
+    // so most lookups here avoid decoding anything. Each slot is
+    // replaced as a whole so that tables shared between threads never
+    // pair one name's raw text with another's upper-cased text.
+    private final Name[] names = new Name[NAME_CACHE_SIZE];
+    private static final int NAME_CACHE_SIZE = 512;
+
+    private static class Name {
+        private final String raw;
+        private final String upper;
+
+        public Name(String raw, String upper) {
+            this.raw = raw;
+            this.upper = upper;
+        }
+    }
+
+    private static class Source {
+        private final File dir;
+        private final String name;
+        private final ByteBuffer content;
+
+        public Source(File dir, String name, ByteBuffer content) {
+            this.dir = dir;
+            this.name = name;
+            this.content = content;
+        }
+    }
+
+    public TokenTable() {
+        this(256);
+    }
+
+    public TokenTable(int capacity) {
+        if(capacity < 1)
+            capacity = 1;
+        kinds = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        sources = new int[capacity];
+        lines = new int[capacity];
+        values = new int[capacity];
+    }
+
+    // Returns the id of the given source file, adding it to the table
+    // if it isn't already there. Every token of a source refers to
+    // offsets within the given content.
+    public int addSource(File dir, String name, ByteBuffer content) {
+        String key = dir+File.separator+name;
+        Integer id = sourceIds.get(key);
+        if(id != null) {
+            ByteBuffer known = sourceList.get(id).content;
+            if(known == content || known.equals(content))
+                return id;
+        }
+        id = sourceList.size();
+        sourceList.add(new Source(dir, name, content));
+        sourceIds.put(key, id);
+        return id;
+    }
+
+    public void add(int kind, int start, int length, int source, int line, int value) {
+        if(size == kinds.length)
+            grow();
+        kinds[size] = kind;
+        starts[size] = start;
+        lengths[size] = length;
+        sources[size] = source;
+        lines[size] = line;
+        values[size] = value;
+        size++;
+    }
+
+    // Appends all of the other table's tokens to this one.
+    public void append(TokenTable other) {
+        int[] sourceMap = new int[other.sourceList.size()];
+        for(int i=0; i<sourceMap.length; i++) {
+            Source source = other.sourceList.get(i);
+            sourceMap[i] = addSource(source.dir, source.name, source.content);
+        }
+        int capacity = kinds.length;
+        while(capacity < size + other.size)
+            capacity *= 2;
+        if(capacity != kinds.length)
+            resize(capacity);
+        System.arraycopy(other.kinds, 0, kinds, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.lengths, 0, lengths, size, other.size);
+        System.arraycopy(other.lines, 0, lines, size, other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        for(int i=0; i<other.size; i++)
+            sources[size+i] = sourceMap[other.sources[i]];
+        size += other.size;
+    }
+
+    // Drops the room left for more tokens. The program's data keeps the
+    // table for its error messages after parsing, so it shouldn't hold
+    // on to up to twice the space it needs.
+    public void trimToSize() {
+        if(size < kinds.length)
+            resize(Math.max(size, 1));
+    }
+
+    private void grow() {
+        resize(kinds.length * 2);
+    }
+
+    private void resize(int capacity) {
+        kinds = copyOf(kinds, capacity);
+        starts = copyOf(starts, capacity);
+        lengths = copyOf(lengths, capacity);
+        sources = copyOf(sources, capacity);
+        lines = copyOf(lines, capacity);
+        values = copyOf(values, capacity);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int index) {
+        return kinds[index];
+    }
+
+    public boolean isSymbol(int index, char c) {
+        return kinds[index] == SYMBOL && values[index] == c;
+    }
+
+    public boolean isNewline(int index) {
+        return isSymbol(index, '\n');
+    }
+
+    public int getIntValue(int index) {
+        if(kinds[index] != INT)
+            throw new IllegalArgumentException("Token is not an integer");
+        return values[index];
+    }
+
+    public int getLineNumber(int index) {
+        return lines[index];
+    }
+
+    public File getSourceDir(int index) {
+        return sourceList.get(sources[index]).dir;
+    }
+
+    public String getSourceFile(int index) {
+        return sourceList.get(sources[index]).name;
+    }
+
+    // The content that the tokens of the source with the given id were
+    // read from.
+    public ByteBuffer getSourceContent(int source) {
+        return sourceList.get(source).content.duplicate();
+    }
+
+    private ByteBuffer content(int index) {
+        return sourceList.get(sources[index]).content;
+    }
+
+    // Returns the same text that the Token object for this token
+    // would have.
+    public String getText(int index) {
+        switch(kinds[index]) {
+        case SYMBOL:
+            return ByteTokenizer.symbolText(values[index]);
+        case NAME:
+            return getName(index);
+        case LABEL:
+            return decodeRaw(index).toUpperCase();
+        case INT:
+        {
+            // Single character integers keep their original case.
+            String raw = decodeRaw(index);
+            if(raw.charAt(0) == '\'')
+                return raw;
+            return raw.toUpperCase();
+        }
+        default:
+            return decodeRaw(index);
+        }
+    }
+
+    private String decodeRaw(int index) {
+        return ByteTokenizer.decode(content(index), starts[index], starts[index]+lengths[index]);
+    }
+
+    private String getName(int index) {
+        ByteBuffer content = content(index);
+        int start = starts[index];
+        int length = lengths[index];
+
+        int hash = 0;
+        for(int i=0; i<length; i++)
+            hash = 31*hash + content.get(start+i);
+        int slot = hash & (NAME_CACHE_SIZE-1);
+
+        Name name = names[slot];
+        if(name != null && name.raw.length() == length) {
+            int i = 0;
+            while(i < length && name.raw.charAt(i) == content.get(start+i))
+                i++;
+            if(i == length)
+                return name.upper;
+        }
+
+        String raw = ByteTokenizer.decode(content, start, start+length);
+        String upper = raw.toUpperCase();
+        names[slot] = new Name(raw, upper);
+        return upper;
+    }
+
+    public String getStringValue(int index) {
+        if(kinds[index] != STRING)
+            throw new IllegalArgumentException("Token is not a string");
+        return ByteTokenizer.unescape(content(index), starts[index]+1, starts[index]+lengths[index]-1);
+    }
+
+    // Doesn't include the colon
+    public String getLabelName(int index) {
+        if(kinds[index] != LABEL)
+            throw new IllegalArgumentException("Token is not a label");
+        String text = getText(index);
+        if(text.charAt(0) == ':')
+            return text.substring(1);
+        else
+            return text.substring(0, text.length()-1);
+    }
+
+    // Creates a Token object equivalent to this row of the table.
+    public Token getToken(int index) {
+        File dir = getSourceDir(index);
+        String file = getSourceFile(index);
+        int line = lines[index];
+        switch(kinds[index]) {
+        case SYMBOL:
+            return new SymbolToken(getText(index), dir, file, line);
+        case NAME:
+            return new NameToken(getName(index), dir, file, line);
+        case STRING:
+            return new StringToken(getText(index), getStringValue(index), dir, file, line);
+        default:
+            try {
+                return ASMTokenizer.createToken(decodeRaw(index), dir, file, line);
+            } catch (TokenizeError e) {
+                throw new IllegalStateException("Token was already validated", e);
+            }
+        }
+    }
+}
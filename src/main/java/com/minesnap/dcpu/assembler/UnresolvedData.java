@@ -1,41 +1,77 @@
 package com.minesnap.dcpu.assembler;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.Collection;
 import java.util.List;
 
 // Contains either a 16-bit word of data, or a symbol reference.
 public class UnresolvedData implements Resolvable {
+    // Where the data came from, for error messages: a row of the token
+    // table it was parsed from, or a Token if it wasn't parsed from one.
+    // The Token for a row is only made if there's an error.
+    private final TokenTable tokens;
+    private final int tokenIndex;
     private final Token token;
-    private Integer word;
+    private int word;
+    private boolean resolved;
     private final String reference;
+    // The SymbolTable id of the reference, or -1 if there is none.
+    private final int referenceId;
 
     public UnresolvedData(Token token, int word) {
+        this(null, -1, token, word);
+    }
+
+    public UnresolvedData(TokenTable tokens, int tokenIndex, int word) {
+        this(tokens, tokenIndex, (Token)null, word);
+    }
+
+    private UnresolvedData(TokenTable tokens, int tokenIndex, Token token, int word) {
         if((word & 0xffff) != word)
             throw new IllegalArgumentException("Word must fit in 16 bits");
 
+        this.tokens = tokens;
+        this.tokenIndex = tokenIndex;
         this.token = token;
         this.word = word;
+        this.resolved = true;
         this.reference = null;
+        this.referenceId = -1;
+    }
+
+    // The reference must already be upper-cased, as label names from
+    // the tokenizer are.
+    public UnresolvedData(Token token, String reference, int referenceId) {
+        this(null, -1, token, reference, referenceId);
+    }
+
+    public UnresolvedData(TokenTable tokens, int tokenIndex, String reference, int referenceId) {
+        this(tokens, tokenIndex, null, reference, referenceId);
     }
 
-    public UnresolvedData(Token token, String reference) {
+    private UnresolvedData(TokenTable tokens, int tokenIndex, Token token, String reference, int referenceId) {
         if(reference == null)
             throw new IllegalArgumentException("Reference may not be null when using reference constructor");
+        if(referenceId < 0)
+            throw new IllegalArgumentException("Reference id must not be negative");
 
+        this.tokens = tokens;
+        this.tokenIndex = tokenIndex;
         this.token = token;
-        this.word = null;
-        this.reference = reference.toUpperCase();
+        this.word = 0;
+        this.resolved = false;
+        this.reference = reference;
+        this.referenceId = referenceId;
     }
 
     public Token getToken() {
+        if(tokens != null)
+            return tokens.getToken(tokenIndex);
         return token;
     }
 
     // The word may or may not be resolved yet.
     public int getUnresolvedWord() {
-        if(word == null)
-            return 0;
         return word;
     }
 
@@ -43,14 +79,21 @@ public class UnresolvedData implements Resolvable {
         return reference;
     }
 
+    public int getReferenceId() {
+        return referenceId;
+    }
+
     @Override
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    public void evaluateLabels(int[] labelValues, int position)
         throws TokenCompileError {
         if(reference != null) {
-            Integer value = labelValues.get(reference);
-            if(value == null)
+            int value = -1;
+            if(referenceId < labelValues.length)
+                value = labelValues[referenceId];
+            if(value == -1)
                 throw new SymbolLookupError(reference, getToken());
             this.word = value;
+            this.resolved = true;
         }
 
         // Check if this value is in range and will work as a 16-bit
@@ -63,6 +106,17 @@ public class UnresolvedData implements Resolvable {
         }
     }
 
+    @Override
+    public void addReferences(Collection<Integer> references) {
+        if(reference != null)
+            references.add(referenceId);
+    }
+
+    @Override
+    public boolean isPositionDependent() {
+        return false;
+    }
+
     // Note that this isn't accurate for instances owned by Value
     // objects.
     @Override
@@ -71,7 +125,7 @@ public class UnresolvedData implements Resolvable {
     }
 
     public boolean checkResolved() {
-        return word != null;
+        return resolved;
     }
 
     @Override
@@ -1,8 +1,8 @@
 package com.minesnap.dcpu.assembler;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 public class UnresolvedMultiData implements Resolvable {
     private final List<UnresolvedData> dataList;
@@ -23,8 +23,16 @@ public class UnresolvedMultiData implements Resolvable {
         }
     }
 
+    public List<UnresolvedData> getDataList() {
+        return dataList;
+    }
+
+    public int getRepeatCount() {
+        return repeatCount;
+    }
+
     @Override
-    public void evaluateLabels(Map<String, Integer> labelValues, int position)
+    public void evaluateLabels(int[] labelValues, int position)
         throws TokenCompileError {
         lastKnownWordCount = 0;
         for(UnresolvedData data : dataList) {
@@ -33,6 +41,22 @@ public class UnresolvedMultiData implements Resolvable {
         }
     }
 
+    @Override
+    public void addReferences(Collection<Integer> references) {
+        for(UnresolvedData data : dataList) {
+            data.addReferences(references);
+        }
+    }
+
+    @Override
+    public boolean isPositionDependent() {
+        for(UnresolvedData data : dataList) {
+            if(data.isPositionDependent())
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public int wordCount() {
         return lastKnownWordCount * repeatCount;
@@ -3,11 +3,20 @@ package com.minesnap.dcpu.assembler;
 public class UnresolvedOffset extends UnresolvedData {
     private final int offset;
 
-    public UnresolvedOffset(Token token, String reference, int offset) {
-        super(token, reference);
+    public UnresolvedOffset(Token token, String reference, int referenceId, int offset) {
+        super(token, reference, referenceId);
         this.offset = offset;
     }
 
+    public UnresolvedOffset(TokenTable tokens, int tokenIndex, String reference, int referenceId, int offset) {
+        super(tokens, tokenIndex, reference, referenceId);
+        this.offset = offset;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
     @Override
     public int getUnresolvedWord() {
         return super.getUnresolvedWord() + offset;
@@ -1,7 +1,7 @@
 package com.minesnap.dcpu.assembler;
 
-import java.util.Map;
 import java.util.HashMap;
+import java.util.Map;
 
 public enum ValueType {
     A(0x0),
@@ -46,7 +46,9 @@ public enum ValueType {
 
     private final byte code;
     private final boolean literal;
-    private final static Map<Byte, ValueType> BY_CODE = new HashMap<Byte, ValueType>();
+    // Indexed by code, so that decoding doesn't box every code.
+    private final static ValueType[] BY_CODE = new ValueType[0x20];
+    private final static Map<String,ValueType> BY_NAME = new HashMap<String,ValueType>();
 
     private ValueType(int code) {
         this(code, false);
@@ -82,13 +84,25 @@ public enum ValueType {
         throw new IllegalStateException("Can not dereference+plus type "+this);
     }
 
+    // Returns null for codes that aren't a value type, like the short
+    // literals from 0x20 up.
     public static ValueType getByCode(byte code) {
-        return BY_CODE.get(code);
+        if(code < 0 || code >= BY_CODE.length)
+            return null;
+        return BY_CODE[code];
+    }
+
+    // Like valueOf, but returns null for names that aren't a value
+    // type instead of throwing, since the parser mostly asks about
+    // label names.
+    public static ValueType getByName(String name) {
+        return BY_NAME.get(name);
     }
 
     static {
         for (ValueType value : values()) {
-            BY_CODE.put(value.code, value);
+            BY_CODE[value.code] = value;
+            BY_NAME.put(value.name(), value);
         }
     }
 }
@@ -0,0 +1,41 @@
+package com.minesnap.dcpu.assembler;
+
+import java.io.IOException;
+import java.util.Collection;
+
+// Words that were already encoded, like the fixed parts of an object
+// file.
+
+public class WordBlock implements Resolvable {
+    private final short[] words;
+
+    public WordBlock(short[] words) {
+        this.words = words;
+    }
+
+    @Override
+    public void evaluateLabels(int[] labelValues, int position) {
+    }
+
+    @Override
+    public void addReferences(Collection<Integer> references) {
+    }
+
+    @Override
+    public boolean isPositionDependent() {
+        return false;
+    }
+
+    @Override
+    public int wordCount() {
+        return words.length;
+    }
+
+    @Override
+    public void writeTo(WordWriter out)
+        throws IOException {
+        for(short word : words) {
+            out.writeWord(word & 0xffff);
+        }
+    }
+}
@@ -2,26 +2,47 @@ package com.minesnap.dcpu.assembler;
 
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 public class WordWriter {
+    // Exactly one of these is set.
     private final OutputStream out;
+    private final ByteBuffer buffer;
     private final boolean littleEndian;
 
     private long wordsWritten;
 
+    private static final int CHUNK_SIZE = 8192;
+
     public WordWriter(OutputStream out, boolean littleEndian) {
         this.out = out;
+        this.buffer = null;
         this.littleEndian = littleEndian;
         wordsWritten = 0;
     }
 
+    // Encodes words into the buffer in the buffer's byte order,
+    // starting at its position.
+    public WordWriter(ByteBuffer buffer) {
+        this.out = null;
+        this.buffer = buffer;
+        this.littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        wordsWritten = 0;
+    }
+
     public void writeWord(int word)
         throws IOException {
         if((word & 0xffff) != word) {
             throw new IllegalArgumentException("Argument is not a 16 bit word: "+word);
         }
 
-        if(littleEndian) {
+        if(buffer != null) {
+            if(buffer.remaining() < 2)
+                throw new IOException("Program is larger than its output buffer");
+            buffer.putShort((short)word);
+        } else if(littleEndian) {
             out.write(word & 0x00ff);
             out.write((word & 0xff00) >> 8);
         } else {
@@ -31,12 +52,59 @@ public class WordWriter {
         wordsWritten++;
     }
 
+    // Writes all of the remaining bytes of the buffer as words in the
+    // given byte order, swapping them in bulk if it isn't this
+    // writer's order.
+    public void writeWords(ByteBuffer words, boolean wordsLittleEndian)
+        throws IOException {
+        int length = words.remaining();
+        if(length % 2 != 0) {
+            throw new IllegalArgumentException("Buffer does not hold a whole number of words");
+        }
+        boolean swap = wordsLittleEndian != littleEndian;
+
+        if(buffer != null) {
+            if(buffer.remaining() < length)
+                throw new IOException("Program is larger than its output buffer");
+            if(swap) {
+                ShortBuffer source = words.duplicate()
+                    .order(wordsLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN)
+                    .asShortBuffer();
+                buffer.asShortBuffer().put(source);
+                buffer.position(buffer.position()+length);
+                words.position(words.limit());
+            } else {
+                buffer.put(words);
+            }
+        } else {
+            byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+            while(words.hasRemaining()) {
+                int count = Math.min(words.remaining(), chunk.length);
+                words.get(chunk, 0, count);
+                if(swap) {
+                    for(int i=0; i<count; i+=2) {
+                        byte b = chunk[i];
+                        chunk[i] = chunk[i+1];
+                        chunk[i+1] = b;
+                    }
+                }
+                out.write(chunk, 0, count);
+            }
+        }
+        wordsWritten += length/2;
+    }
+
+    public boolean isLittleEndian() {
+        return littleEndian;
+    }
+
     public long getWordsWritten() {
         return wordsWritten;
     }
 
     public void close()
         throws IOException {
-        out.close();
+        if(out != null)
+            out.close();
     }
 }
@@ -0,0 +1,673 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.OpcodeType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes the class file for a translated block: a subclass of
+// TranslatedBlock whose run method does what the interpreter would do
+// for each instruction of the block in turn. The words after each
+// instruction's first are part of the block, so they're written into
+// the class as constants.
+//
+// The class files are of version 49, which the JVM checks without
+// needing stack map frames.
+
+class BlockCompiler {
+    private static final String SUPERCLASS = "com/minesnap/dcpu/emulator/TranslatedBlock";
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PROTECTED = 0x0004;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int IALOAD = 0x2e;
+    private static final int CALOAD = 0x34;
+    private static final int ISTORE = 0x36;
+    private static final int IASTORE = 0x4f;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int IINC = 0x84;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFGE = 0x9c;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    // The local variables of the run method.
+    private static final int THIS = 0;
+    private static final int RAM = 1;
+    private static final int STATE = 2;
+    private static final int CYCLES = 3;
+    private static final int COUNT = 4;
+    private static final int SP = 5;
+    private static final int O = 6;
+    private static final int A_VALUE = 7;
+    private static final int B_VALUE = 8;
+    private static final int A_ADDRESS = 9;
+    private static final int RESULT = 10;
+    private static final int NEXT_PC = 11;
+    private static final int LAST = 12;
+    private static final int STORE_HIT = 13;
+    private static final int LOCALS = 14;
+    private static final int MAX_STACK = 6;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code();
+    private final Label exit = new Label();
+    private final char[] ram;
+
+    private BlockCompiler(char[] ram) {
+        this.ram = ram;
+    }
+
+    // Returns the class file for the instructions at the given
+    // addresses, which Translator has checked make up a block.
+    public static byte[] compile(String className, int[] addresses, int[] entries, int count,
+                                 int end, char[] ram) {
+        return new BlockCompiler(ram).compileBlock(className, addresses, entries, count, end);
+    }
+
+    private byte[] compileBlock(String className, int[] addresses, int[] entries, int count, int end) {
+        for(int local : new int[] {CYCLES, COUNT, A_VALUE, B_VALUE, A_ADDRESS, RESULT, NEXT_PC, LAST, STORE_HIT}) {
+            code.constant(0);
+            code.local(ISTORE, local);
+        }
+        loadState(Emulator.STATE_SP, SP);
+        loadState(Emulator.STATE_O, O);
+
+        for(int i=0; i<count; i++) {
+            OpcodeType type = Emulator.TYPES[entries[i] & Emulator.TYPE_MASK];
+            if(isConditional(type)) {
+                conditional(addresses[i], entries[i], type, addresses[i+1], entries[i+1]);
+                i++;
+            } else {
+                instruction(addresses[i], entries[i], type);
+            }
+        }
+        if(code.reachable) {
+            code.constant(end & 0xffff);
+            code.local(ISTORE, NEXT_PC);
+            code.constant(-1);
+            code.local(ISTORE, LAST);
+        }
+        code.mark(exit);
+        storeState(Emulator.STATE_SP, SP);
+        storeState(Emulator.STATE_O, O);
+        storeState(Emulator.STATE_PC, NEXT_PC);
+        storeState(Emulator.STATE_INSTRUCTIONS, COUNT);
+        storeState(Emulator.STATE_LAST, LAST);
+        code.local(ILOAD, CYCLES);
+        code.op(IRETURN);
+
+        return classFile(className.replace('.', '/'));
+    }
+
+    static boolean isConditional(OpcodeType type) {
+        return type == OpcodeType.IFE || type == OpcodeType.IFN
+            || type == OpcodeType.IFG || type == OpcodeType.IFB;
+    }
+
+    private void loadState(int index, int local) {
+        code.local(ALOAD, STATE);
+        code.constant(index);
+        code.op(IALOAD);
+        code.local(ISTORE, local);
+    }
+
+    private void storeState(int index, int local) {
+        code.local(ALOAD, STATE);
+        code.constant(index);
+        code.local(ILOAD, local);
+        code.op(IASTORE);
+    }
+
+    // An IF instruction and the one it may skip.
+    private void conditional(int address, int entry, OpcodeType type, int nextAddress, int nextEntry) {
+        int a = (entry >>> Emulator.A_SHIFT) & Emulator.VALUE_MASK;
+        int b = (entry >>> Emulator.B_SHIFT) & Emulator.VALUE_MASK;
+        int word = address+1;
+        int aWord = Emulator.NEXT_WORD[a] ? ram[word++] : 0;
+        int bWord = Emulator.NEXT_WORD[b] ? ram[word++] : 0;
+        count(entry);
+        read(a, aWord, address+1+(Emulator.NEXT_WORD[a] ? 1 : 0), A_VALUE);
+        read(b, bWord, word & 0xffff, B_VALUE);
+
+        Label taken = new Label();
+        Label after = new Label();
+        code.local(ILOAD, A_VALUE);
+        code.local(ILOAD, B_VALUE);
+        switch(type) {
+        case IFE:
+            code.branch(IF_ICMPEQ, taken);
+            break;
+        case IFN:
+            code.branch(IF_ICMPNE, taken);
+            break;
+        case IFG:
+            code.branch(IF_ICMPGT, taken);
+            break;
+        default:
+            code.op(IAND);
+            code.branch(IFNE, taken);
+            break;
+        }
+        // Skipping the next instruction costs a cycle.
+        code.iinc(CYCLES, 1);
+        code.branch(GOTO, after);
+        code.mark(taken);
+        instruction(nextAddress, nextEntry, Emulator.TYPES[nextEntry & Emulator.TYPE_MASK]);
+        code.mark(after);
+    }
+
+    private void instruction(int address, int entry, OpcodeType type) {
+        int a = (entry >>> Emulator.A_SHIFT) & Emulator.VALUE_MASK;
+        int b = (entry >>> Emulator.B_SHIFT) & Emulator.VALUE_MASK;
+        int length = (entry >>> Emulator.LENGTH_SHIFT) & Emulator.LENGTH_MASK;
+        int next = (address + length) & 0xffff;
+        int word = address+1;
+        int aWord = Emulator.NEXT_WORD[a] ? ram[word++] : 0;
+        count(entry);
+        read(a, aWord, address+1+(Emulator.NEXT_WORD[a] ? 1 : 0), A_VALUE);
+
+        if(type == OpcodeType.JSR) {
+            push(next);
+            code.local(ILOAD, A_VALUE);
+            code.local(ISTORE, NEXT_PC);
+            jumpExit(address);
+            return;
+        }
+
+        int bWord = Emulator.NEXT_WORD[b] ? ram[word] : 0;
+        read(b, bWord, next, B_VALUE);
+        switch(type) {
+        case SET:
+            code.local(ILOAD, B_VALUE);
+            break;
+        case ADD:
+            operands();
+            code.op(IADD);
+            break;
+        case SUB:
+            operands();
+            code.op(ISUB);
+            break;
+        case MUL:
+            operands();
+            code.op(IMUL);
+            break;
+        case DIV:
+            helper("div");
+            break;
+        case MOD:
+            helper("mod");
+            break;
+        case SHL:
+            helper("shl");
+            break;
+        case SHR:
+            helper("shr");
+            break;
+        case AND:
+            operands();
+            code.op(IAND);
+            break;
+        case BOR:
+            operands();
+            code.op(IOR);
+            break;
+        case XOR:
+            operands();
+            code.op(IXOR);
+            break;
+        default:
+            throw new IllegalArgumentException("Can't translate "+type);
+        }
+        code.local(ISTORE, RESULT);
+        boolean stored = write(a);
+
+        switch(type) {
+        case ADD:
+        case MUL:
+            code.local(ILOAD, RESULT);
+            code.constant(16);
+            code.op(IUSHR);
+            code.local(ISTORE, O);
+            break;
+        case SUB:
+        {
+            Label noBorrow = new Label();
+            Label done = new Label();
+            code.local(ILOAD, RESULT);
+            code.branch(IFGE, noBorrow);
+            code.constant(0xffff);
+            code.local(ISTORE, O);
+            code.branch(GOTO, done);
+            code.mark(noBorrow);
+            code.constant(0);
+            code.local(ISTORE, O);
+            code.mark(done);
+            break;
+        }
+        case DIV:
+            helper("divOverflow");
+            code.local(ISTORE, O);
+            break;
+        case SHL:
+            helper("shlOverflow");
+            code.local(ISTORE, O);
+            break;
+        case SHR:
+            helper("shrOverflow");
+            code.local(ISTORE, O);
+            break;
+        default:
+            break;
+        }
+
+        if(a == Emulator.PC) {
+            jumpExit(address);
+        } else if(stored) {
+            // Leave once the block has written over its own code.
+            Label unchanged = new Label();
+            code.local(ILOAD, STORE_HIT);
+            code.branch(IFEQ, unchanged);
+            code.constant(next);
+            code.local(ISTORE, NEXT_PC);
+            code.constant(-1);
+            code.local(ISTORE, LAST);
+            code.branch(GOTO, exit);
+            code.mark(unchanged);
+        }
+    }
+
+    private void count(int entry) {
+        code.iinc(CYCLES, (entry >>> Emulator.CYCLES_SHIFT) & Emulator.CYCLES_MASK);
+        code.iinc(COUNT, 1);
+    }
+
+    private void operands() {
+        code.local(ILOAD, A_VALUE);
+        code.local(ILOAD, B_VALUE);
+    }
+
+    private void helper(String name) {
+        operands();
+        code.op(INVOKESTATIC);
+        code.u2(pool.method(SUPERCLASS, name, "(II)I"));
+    }
+
+    // Leaves the block after a jump, which ends the program if it's
+    // to the jump itself.
+    private void jumpExit(int address) {
+        code.constant(address);
+        code.local(ISTORE, LAST);
+        code.branch(GOTO, exit);
+    }
+
+    private void mask() {
+        code.constant(0xffff);
+        code.op(IAND);
+    }
+
+    // Reads a value into the local, leaving its address in A_ADDRESS
+    // if it's in memory and the local is A_VALUE.
+    private void read(int value, int word, int pc, int local) {
+        boolean keepAddress = local == A_VALUE;
+        if(value < Emulator.DEREFERENCE_VALUES) {
+            code.local(ALOAD, STATE);
+            code.constant(value - Emulator.REGISTER_VALUES);
+            code.op(IALOAD);
+            code.local(ISTORE, local);
+            return;
+        }
+        if(value >= Emulator.SHORT_LITERALS) {
+            code.constant(value - Emulator.SHORT_LITERALS);
+            code.local(ISTORE, local);
+            return;
+        }
+        if(value == Emulator.SP || value == Emulator.O) {
+            code.local(ILOAD, value == Emulator.SP ? SP : O);
+            code.local(ISTORE, local);
+            return;
+        }
+        if(value == Emulator.PC) {
+            code.constant(pc & 0xffff);
+            code.local(ISTORE, local);
+            return;
+        }
+        if(value > Emulator.DEREFERENCE_NEXT) {
+            code.constant(word);
+            code.local(ISTORE, local);
+            return;
+        }
+
+        if(value == Emulator.PUSH) {
+            code.local(ILOAD, SP);
+            code.constant(1);
+            code.op(ISUB);
+            mask();
+            code.local(ISTORE, SP);
+        }
+        code.local(ALOAD, RAM);
+        if(value < Emulator.DEREFERENCE_NEXT_PLUS_VALUES) {
+            code.local(ALOAD, STATE);
+            code.constant(value - Emulator.DEREFERENCE_VALUES);
+            code.op(IALOAD);
+        } else if(value < Emulator.POP) {
+            code.local(ALOAD, STATE);
+            code.constant(value - Emulator.DEREFERENCE_NEXT_PLUS_VALUES);
+            code.op(IALOAD);
+            code.constant(word);
+            code.op(IADD);
+            mask();
+        } else if(value == Emulator.DEREFERENCE_NEXT) {
+            code.constant(word);
+        } else {
+            code.local(ILOAD, SP);
+        }
+        if(keepAddress) {
+            code.op(DUP);
+            code.local(ISTORE, A_ADDRESS);
+        }
+        code.op(CALOAD);
+        code.local(ISTORE, local);
+        if(value == Emulator.POP) {
+            code.local(ILOAD, SP);
+            code.constant(1);
+            code.op(IADD);
+            mask();
+            code.local(ISTORE, SP);
+        }
+    }
+
+    // Writes RESULT to where the a value was read from, and returns
+    // true if that was memory.
+    private boolean write(int value) {
+        if(value < Emulator.DEREFERENCE_VALUES) {
+            code.local(ALOAD, STATE);
+            code.constant(value - Emulator.REGISTER_VALUES);
+            code.local(ILOAD, RESULT);
+            mask();
+            code.op(IASTORE);
+            return false;
+        }
+        if(value == Emulator.SP || value == Emulator.PC || value == Emulator.O) {
+            code.local(ILOAD, RESULT);
+            mask();
+            code.local(ISTORE, value == Emulator.SP ? SP : value == Emulator.PC ? NEXT_PC : O);
+            return false;
+        }
+        // Assigning to a literal does nothing.
+        if(value > Emulator.DEREFERENCE_NEXT)
+            return false;
+        code.local(ALOAD, THIS);
+        code.local(ILOAD, A_ADDRESS);
+        code.local(ILOAD, RESULT);
+        mask();
+        store();
+        return true;
+    }
+
+    // Pushes the return address of a JSR.
+    private void push(int returnAddress) {
+        code.local(ILOAD, SP);
+        code.constant(1);
+        code.op(ISUB);
+        mask();
+        code.local(ISTORE, SP);
+        code.local(ALOAD, THIS);
+        code.local(ILOAD, SP);
+        code.constant(returnAddress);
+        store();
+    }
+
+    private void store() {
+        code.op(INVOKEVIRTUAL);
+        code.u2(pool.method(SUPERCLASS, "store", "(II)Z"));
+        code.local(ISTORE, STORE_HIT);
+    }
+
+    private byte[] classFile(String className) {
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef(SUPERCLASS);
+        int init = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int superInit = pool.method(SUPERCLASS, "<init>", "()V");
+        int run = pool.utf8("run");
+        int runType = pool.utf8("([C[I)I");
+        int codeName = pool.utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(2);
+
+            Code constructor = new Code();
+            constructor.local(ALOAD, THIS);
+            constructor.op(INVOKESPECIAL);
+            constructor.u2(superInit);
+            constructor.op(RETURN);
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(init);
+            out.writeShort(initType);
+            writeCode(out, codeName, constructor, 1, 1);
+
+            out.writeShort(ACC_PROTECTED);
+            out.writeShort(run);
+            out.writeShort(runType);
+            writeCode(out, codeName, code, MAX_STACK, LOCALS);
+
+            out.writeShort(0);
+        } catch (IOException e) {
+            // Not from a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeCode(DataOutputStream out, int codeName, Code code, int maxStack, int maxLocals)
+        throws IOException {
+        byte[] bytecode = code.toByteArray();
+        // The method's only attribute.
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + bytecode.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private class Label {
+        int position = -1;
+        final List<Integer> branches = new ArrayList<Integer>();
+    }
+
+    // A method's bytecode. Branches are filled in as their labels are
+    // marked, since every label is marked after the branches to it.
+    private class Code {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        // False after a GOTO, until a label is marked.
+        boolean reachable = true;
+
+        public void op(int op) {
+            if(length == bytes.length) {
+                byte[] grown = new byte[bytes.length*2];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            bytes[length++] = (byte)op;
+        }
+
+        public void u2(int value) {
+            op(value >> 8);
+            op(value);
+        }
+
+        public void local(int op, int local) {
+            op(op);
+            op(local);
+        }
+
+        public void iinc(int local, int amount) {
+            op(IINC);
+            op(local);
+            op(amount);
+        }
+
+        public void constant(int value) {
+            if(value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                op(value);
+            } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                op(LDC_W);
+                u2(pool.integer(value));
+            }
+        }
+
+        public void branch(int op, Label label) {
+            label.branches.add(length);
+            op(op);
+            u2(0);
+            if(op == GOTO)
+                reachable = false;
+        }
+
+        public void mark(Label label) {
+            label.position = length;
+            for(int branch : label.branches) {
+                int offset = length - branch;
+                bytes[branch+1] = (byte)(offset >> 8);
+                bytes[branch+2] = (byte)offset;
+            }
+            reachable = true;
+        }
+
+        public byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, 0, result, 0, length);
+            return result;
+        }
+    }
+
+    private class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private int count = 1;
+
+        public int utf8(String value) {
+            Integer index = indexes.get("utf8 "+value);
+            if(index != null)
+                return index;
+            try {
+                out.writeByte(1);
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return add("utf8 "+value);
+        }
+
+        public int classRef(String name) {
+            Integer index = indexes.get("class "+name);
+            if(index != null)
+                return index;
+            int nameIndex = utf8(name);
+            write(7, nameIndex);
+            return add("class "+name);
+        }
+
+        public int method(String owner, String name, String type) {
+            String key = "method "+owner+"."+name+type;
+            Integer index = indexes.get(key);
+            if(index != null)
+                return index;
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            write(12, nameIndex, typeIndex);
+            int nameAndType = add("nameandtype "+name+type);
+            write(10, ownerIndex, nameAndType);
+            return add(key);
+        }
+
+        public int integer(int value) {
+            Integer index = indexes.get("int "+value);
+            if(index != null)
+                return index;
+            try {
+                out.writeByte(3);
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return add("int "+value);
+        }
+
+        private void write(int tag, int... indexes) {
+            try {
+                out.writeByte(tag);
+                for(int index : indexes)
+                    out.writeShort(index);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int add(String key) {
+            int index = count++;
+            indexes.put(key, index);
+            return index;
+        }
+
+        public void writeTo(DataOutputStream classOut)
+            throws IOException {
+            classOut.writeShort(count);
+            bytes.writeTo(classOut);
+        }
+    }
+}
@@ -0,0 +1,697 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.OpcodeType;
+import com.minesnap.dcpu.assembler.ValueType;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+// Runs DCPU-16 v1.1 programs, counting cycles as the specification
+// does. Every instruction is fully defined by its first word, so the
+// first time an address is run, its word is decoded once into an entry
+// of a dispatch array holding the opcode, both values, the length of
+// the instruction and the cycles it costs. Writing to an address
+// clears its entry, so code that's changed is decoded again, and the
+// words an instruction reads after its first are always read fresh.
+// The dispatch array is split into pages that are only made once code
+// in them runs, since most programs only run a small part of memory.
+//
+// The emulator keeps track of which pages of memory were written since
+// its last snapshot or restore, so that those are the only ones a
+// snapshot has to copy.
+//
+// The a value of an instruction is handled before the b value, and its
+// current value is read right away, before b can move PC or SP. That's
+// what the assembler assumes when it turns a JMP into ADD PC or SUB PC.
+
+public class Emulator {
+    public static final int MEMORY_SIZE = 0x10000;
+
+    // An entry of the dispatch array is the opcode's index in TYPES,
+    // the two values, the instruction's length in words and its cost
+    // in cycles. An entry is never 0, which marks addresses that need
+    // to be decoded.
+    static final int TYPE_MASK = 0x1f;
+    static final int A_SHIFT = 5;
+    static final int B_SHIFT = 11;
+    static final int VALUE_MASK = 0x3f;
+    static final int LENGTH_SHIFT = 17;
+    static final int LENGTH_MASK = 0x3;
+    static final int CYCLES_SHIFT = 19;
+    static final int CYCLES_MASK = 0xf;
+
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    static final OpcodeType[] TYPES = OpcodeType.values();
+    // The basic opcodes by their four bit code.
+    private static final OpcodeType[] BASIC = new OpcodeType[16];
+    private static final int JSR_NUMBER = OpcodeType.JSR.getCode() >> 4;
+    // The values that read the next word.
+    static final boolean[] NEXT_WORD = new boolean[64];
+
+    // The ranges of value codes, as the specification lays them out.
+    static final int REGISTER_VALUES = ValueType.A.getCode();
+    static final int DEREFERENCE_VALUES = ValueType.D_A.getCode();
+    static final int DEREFERENCE_NEXT_PLUS_VALUES = ValueType.DPN_A.getCode();
+    static final int POP = ValueType.POP.getCode();
+    static final int PEEK = ValueType.PEEK.getCode();
+    static final int PUSH = ValueType.PUSH.getCode();
+    static final int SP = ValueType.SP.getCode();
+    static final int PC = ValueType.PC.getCode();
+    static final int O = ValueType.O.getCode();
+    static final int DEREFERENCE_NEXT = ValueType.DN.getCode();
+    static final int SHORT_LITERALS = 0x20;
+
+    // Where a value lives once it's been located: an address in
+    // memory, or one of these.
+    private static final int LOCATION_REGISTERS = MEMORY_SIZE;
+    private static final int LOCATION_SP = LOCATION_REGISTERS+8;
+    private static final int LOCATION_PC = LOCATION_SP+1;
+    private static final int LOCATION_O = LOCATION_SP+2;
+    private static final int LOCATION_LITERAL = LOCATION_SP+3;
+
+    // Translated blocks share the registers array, which holds these
+    // after A to J while a block runs.
+    static final int STATE_SP = 8;
+    static final int STATE_PC = 9;
+    static final int STATE_O = 10;
+    // The number of instructions the block ran.
+    static final int STATE_INSTRUCTIONS = 11;
+    // The address of the jump the block ended with, or -1.
+    static final int STATE_LAST = 12;
+
+    static {
+        for(OpcodeType type : TYPES) {
+            Integer code = type.getCode();
+            if(code != null && code > 0 && code < 0x10)
+                BASIC[code] = type;
+        }
+        for(ValueType value : ValueType.values()) {
+            if(value.hasLiteral())
+                NEXT_WORD[value.getCode()] = true;
+        }
+    }
+
+    private final char[] ram;
+    private final int[][] decoded = new int[MEMORY_SIZE >>> PAGE_SHIFT][];
+    private final int[] registers = new int[STATE_LAST+1];
+    private int pc = 0;
+    private int sp = 0;
+    private int o = 0;
+    // The value of the last literal that was located.
+    private int literal;
+    private long cycles = 0;
+    private long instructions = 0;
+    private boolean halted = false;
+    private Translator translator = null;
+    private Profiler profiler = null;
+    // The state memory was last saved to or restored from, and the
+    // MachineState pages written since then, one bit each.
+    private MachineState base = null;
+    private long dirty = -1;
+
+    public Emulator() {
+        this(new char[MEMORY_SIZE]);
+    }
+
+    // Uses the given array, which must be MEMORY_SIZE long, as memory
+    // without clearing it.
+    Emulator(char[] ram) {
+        if(ram.length != MEMORY_SIZE)
+            throw new IllegalArgumentException("Memory must be "+MEMORY_SIZE+" words long");
+        this.ram = ram;
+    }
+
+    char[] getMemory() {
+        return ram;
+    }
+
+    // Copies the program into memory starting at address 0.
+    public void load(ShortBuffer program) {
+        ShortBuffer words = program.duplicate();
+        int address = 0;
+        while(words.hasRemaining())
+            write(address++, words.get());
+    }
+
+    public void load(short[] words, int address) {
+        for(short word : words)
+            write(address++, word);
+    }
+
+    public int read(int address) {
+        return ram[address & 0xffff];
+    }
+
+    public void write(int address, int value) {
+        address &= 0xffff;
+        ram[address] = (char)value;
+        invalidate(address);
+    }
+
+    // Zeroes all of memory.
+    public void clearMemory() {
+        Arrays.fill(ram, (char)0);
+        Arrays.fill(decoded, null);
+        if(translator != null)
+            translator.clear();
+        base = null;
+        dirty = -1;
+    }
+
+    private void invalidate(int address) {
+        dirty |= 1L << (address >>> MachineState.PAGE_SHIFT);
+        int[] page = decoded[address >>> PAGE_SHIFT];
+        if(page != null)
+            page[address & PAGE_MASK] = 0;
+        if(translator != null)
+            translator.written(address);
+    }
+
+    // Saves memory and the registers. Only the pages of memory written
+    // since the last snapshot or restore are copied; the rest are
+    // shared with that state.
+    public MachineState snapshot() {
+        char[][] pages = new char[MachineState.PAGES][];
+        for(int i=0; i<MachineState.PAGES; i++) {
+            if(base != null && (dirty & 1L << i) == 0) {
+                pages[i] = base.pages[i];
+            } else {
+                pages[i] = new char[MachineState.PAGE_WORDS];
+                System.arraycopy(ram, i << MachineState.PAGE_SHIFT, pages[i], 0, MachineState.PAGE_WORDS);
+            }
+        }
+        int[] savedRegisters = new int[8];
+        System.arraycopy(registers, 0, savedRegisters, 0, 8);
+        base = new MachineState(pages, savedRegisters, pc, sp, o, cycles, instructions);
+        dirty = 0;
+        return base;
+    }
+
+    // Puts memory and the registers back as they were in the state.
+    // Only the pages that differ from what the emulator has are copied,
+    // so going back to a recent snapshot is cheap.
+    public void restore(MachineState state) {
+        for(int i=0; i<MachineState.PAGES; i++) {
+            if(base != null && (dirty & 1L << i) == 0 && base.pages[i] == state.pages[i])
+                continue;
+            int start = i << MachineState.PAGE_SHIFT;
+            char[] words = state.pages[i];
+            if(translator != null)
+                translator.restoring(start, words);
+            // Only the words that differ lose their decoded entries, so
+            // that code that didn't change doesn't have to be decoded
+            // again.
+            for(int j=0; j<MachineState.PAGE_WORDS; j++) {
+                int address = start + j;
+                if(ram[address] == words[j])
+                    continue;
+                ram[address] = words[j];
+                int[] page = decoded[address >>> PAGE_SHIFT];
+                if(page != null)
+                    page[address & PAGE_MASK] = 0;
+            }
+        }
+        System.arraycopy(state.registers, 0, registers, 0, 8);
+        pc = state.pc;
+        sp = state.sp;
+        o = state.o;
+        cycles = state.cycles;
+        instructions = state.instructions;
+        halted = false;
+        base = state;
+        dirty = 0;
+    }
+
+    // Returns a new emulator in the same state as this one, sharing the
+    // pages of memory that neither has changed since in a snapshot.
+    public Emulator fork() {
+        Emulator fork = new Emulator();
+        fork.setTranslating(isTranslating());
+        fork.restore(snapshot());
+        return fork;
+    }
+
+    // Whether run translates code that runs often into JVM classes.
+    // Off by default.
+    public boolean isTranslating() {
+        return translator != null;
+    }
+
+    public void setTranslating(boolean translating) {
+        if(translating && translator == null)
+            translator = new Translator(this);
+        else if(!translating)
+            translator = null;
+    }
+
+    // The number of blocks that have been translated so far.
+    public int getTranslatedBlockCount() {
+        return translator == null ? 0 : translator.getTranslatedCount();
+    }
+
+    // The profiler that counts the cycles of the instructions run, or
+    // null. Code isn't translated while a profiler is set, since
+    // translated blocks don't count their instructions one by one.
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Takes one of the registers A to J.
+    public int getRegister(ValueType register) {
+        return registers[registerIndex(register)];
+    }
+
+    public void setRegister(ValueType register, int value) {
+        registers[registerIndex(register)] = value & 0xffff;
+    }
+
+    private static int registerIndex(ValueType register) {
+        int index = register.getCode() - REGISTER_VALUES;
+        if(index < 0 || index >= 8)
+            throw new IllegalArgumentException(register+" is not a general purpose register");
+        return index;
+    }
+
+    public int getPC() {
+        return pc;
+    }
+
+    public void setPC(int pc) {
+        this.pc = pc & 0xffff;
+    }
+
+    public int getSP() {
+        return sp;
+    }
+
+    public void setSP(int sp) {
+        this.sp = sp & 0xffff;
+    }
+
+    public int getO() {
+        return o;
+    }
+
+    public void setO(int o) {
+        this.o = o & 0xffff;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    // True if the last run stopped because an instruction jumped to
+    // itself, which is how programs end with BRK.
+    public boolean isHalted() {
+        return halted;
+    }
+
+    // Clears the registers and counters, leaving memory as it is.
+    public void reset() {
+        Arrays.fill(registers, 0);
+        pc = 0;
+        sp = 0;
+        o = 0;
+        cycles = 0;
+        instructions = 0;
+        halted = false;
+    }
+
+    // Runs one instruction and returns the cycles it took.
+    public int step()
+        throws IllegalInstructionException {
+        int cost = profiler != null ? executeProfiled(profiler) : execute();
+        cycles += cost;
+        instructions++;
+        return cost;
+    }
+
+    // Runs until at least the given number of cycles have passed, an
+    // instruction jumps to itself or an illegal instruction is reached.
+    // Returns the number of cycles that were run.
+    public long run(long maxCycles)
+        throws IllegalInstructionException {
+        long start = cycles;
+        long end = start + maxCycles;
+        halted = false;
+        if(profiler != null) {
+            runProfiled(end);
+            return cycles - start;
+        }
+        if(translator != null) {
+            runTranslated(end);
+            return cycles - start;
+        }
+        while(cycles < end) {
+            int address = pc;
+            cycles += execute();
+            instructions++;
+            if(pc == address) {
+                halted = true;
+                break;
+            }
+        }
+        return cycles - start;
+    }
+
+    private void runTranslated(long end)
+        throws IllegalInstructionException {
+        Translator translator = this.translator;
+        int[] registers = this.registers;
+        while(cycles < end) {
+            int address = pc;
+            TranslatedBlock block = translator.find(address);
+            // A block is only run if it will end by the last cycle, so
+            // that the run stops after the same instruction it would
+            // without translation.
+            if(block == null || cycles + block.maxCycles > end) {
+                cycles += execute();
+                instructions++;
+                if(pc == address) {
+                    halted = true;
+                    return;
+                }
+                continue;
+            }
+            registers[STATE_SP] = sp;
+            registers[STATE_O] = o;
+            cycles += block.run(ram, registers);
+            instructions += registers[STATE_INSTRUCTIONS];
+            sp = registers[STATE_SP];
+            o = registers[STATE_O];
+            pc = registers[STATE_PC];
+            if(pc == registers[STATE_LAST]) {
+                halted = true;
+                return;
+            }
+        }
+    }
+
+    private void runProfiled(long end)
+        throws IllegalInstructionException {
+        Profiler profiler = this.profiler;
+        while(cycles < end) {
+            int address = pc;
+            cycles += executeProfiled(profiler);
+            instructions++;
+            if(pc == address) {
+                halted = true;
+                return;
+            }
+        }
+    }
+
+    private int executeProfiled(Profiler profiler)
+        throws IllegalInstructionException {
+        int address = pc;
+        int entry = entryAt(address);
+        int cost = execute();
+        profiler.count(address, cost);
+        OpcodeType type = TYPES[entry & TYPE_MASK];
+        if(type == OpcodeType.JSR)
+            profiler.call(pc);
+        else if(type == OpcodeType.SET && ((entry >>> A_SHIFT) & VALUE_MASK) == PC
+                && ((entry >>> B_SHIFT) & VALUE_MASK) == POP)
+            profiler.ret();
+        return cost;
+    }
+
+    // Returns the dispatch array entry for the instruction at the
+    // address, decoding it if needed.
+    int entryAt(int address) {
+        int[] page = decoded[address >>> PAGE_SHIFT];
+        int entry = page == null ? 0 : page[address & PAGE_MASK];
+        if(entry == 0)
+            entry = decode(address);
+        return entry;
+    }
+
+    private int execute()
+        throws IllegalInstructionException {
+        int start = pc;
+        int[] page = decoded[start >>> PAGE_SHIFT];
+        int entry = page == null ? 0 : page[start & PAGE_MASK];
+        if(entry == 0)
+            entry = decode(start);
+        pc = (start + 1) & 0xffff;
+        int cost = (entry >>> CYCLES_SHIFT) & CYCLES_MASK;
+        OpcodeType type = TYPES[entry & TYPE_MASK];
+        if(type == OpcodeType.CUSTOM) {
+            pc = start;
+            throw new IllegalInstructionException(start, ram[start]);
+        }
+        int aLocation = locate((entry >>> A_SHIFT) & VALUE_MASK);
+        int a = get(aLocation);
+        if(type == OpcodeType.JSR) {
+            sp = (sp - 1) & 0xffff;
+            write(sp, pc);
+            pc = a;
+            return cost;
+        }
+
+        int b = get(locate((entry >>> B_SHIFT) & VALUE_MASK));
+        switch(type) {
+        case SET:
+            set(aLocation, b);
+            break;
+        case ADD:
+        {
+            int result = a + b;
+            set(aLocation, result);
+            o = result >>> 16;
+            break;
+        }
+        case SUB:
+        {
+            int result = a - b;
+            set(aLocation, result);
+            o = result < 0 ? 0xffff : 0;
+            break;
+        }
+        case MUL:
+        {
+            int result = a * b;
+            set(aLocation, result);
+            o = result >>> 16;
+            break;
+        }
+        case DIV:
+            if(b == 0) {
+                set(aLocation, 0);
+                o = 0;
+            } else {
+                set(aLocation, a / b);
+                o = (int)(((long)a << 16) / b) & 0xffff;
+            }
+            break;
+        case MOD:
+            set(aLocation, b == 0 ? 0 : a % b);
+            break;
+        case SHL:
+            // Java only shifts by the low bits of the count.
+            if(b >= 32) {
+                set(aLocation, 0);
+                o = 0;
+            } else {
+                long result = (long)a << b;
+                set(aLocation, (int)result);
+                o = (int)(result >>> 16) & 0xffff;
+            }
+            break;
+        case SHR:
+            if(b >= 32) {
+                set(aLocation, 0);
+                o = 0;
+            } else {
+                set(aLocation, a >>> b);
+                o = (int)(((long)a << 16) >>> b) & 0xffff;
+            }
+            break;
+        case AND:
+            set(aLocation, a & b);
+            break;
+        case BOR:
+            set(aLocation, a | b);
+            break;
+        case XOR:
+            set(aLocation, a ^ b);
+            break;
+        case IFE:
+            if(a != b)
+                cost += skip();
+            break;
+        case IFN:
+            if(a == b)
+                cost += skip();
+            break;
+        case IFG:
+            if(a <= b)
+                cost += skip();
+            break;
+        case IFB:
+            if((a & b) == 0)
+                cost += skip();
+            break;
+        default:
+            throw new IllegalStateException("Can't run "+type);
+        }
+        return cost;
+    }
+
+    // Moves PC past the next instruction without running it, which
+    // costs a cycle.
+    private int skip() {
+        int[] page = decoded[pc >>> PAGE_SHIFT];
+        int entry = page == null ? 0 : page[pc & PAGE_MASK];
+        if(entry == 0)
+            entry = decode(pc);
+        pc = (pc + ((entry >>> LENGTH_SHIFT) & LENGTH_MASK)) & 0xffff;
+        return 1;
+    }
+
+    private int decode(int address) {
+        int word = ram[address];
+        int opcode = word & 0xf;
+        OpcodeType type;
+        int a, b;
+        int length = 1;
+        if(opcode != 0) {
+            type = BASIC[opcode];
+            a = (word >>> 4) & VALUE_MASK;
+            b = (word >>> 10) & VALUE_MASK;
+            if(NEXT_WORD[b])
+                length++;
+        } else {
+            type = ((word >>> 4) & VALUE_MASK) == JSR_NUMBER ? OpcodeType.JSR : OpcodeType.CUSTOM;
+            a = (word >>> 10) & VALUE_MASK;
+            b = SHORT_LITERALS;
+        }
+        if(NEXT_WORD[a])
+            length++;
+        // Every value that reads a word takes a cycle to look it up.
+        int cycles = baseCycles(type) + length - 1;
+        int entry = type.ordinal()
+            | a << A_SHIFT
+            | b << B_SHIFT
+            | length << LENGTH_SHIFT
+            | cycles << CYCLES_SHIFT;
+        int[] page = decoded[address >>> PAGE_SHIFT];
+        if(page == null) {
+            page = new int[PAGE_MASK+1];
+            decoded[address >>> PAGE_SHIFT] = page;
+        }
+        page[address & PAGE_MASK] = entry;
+        return entry;
+    }
+
+    private static int baseCycles(OpcodeType type) {
+        switch(type) {
+        case SET:
+        case AND:
+        case BOR:
+        case XOR:
+            return 1;
+        case ADD:
+        case SUB:
+        case MUL:
+        case SHR:
+        case SHL:
+        case IFE:
+        case IFN:
+        case IFG:
+        case IFB:
+        case JSR:
+            return 2;
+        case DIV:
+        case MOD:
+            return 3;
+        default:
+            return 0;
+        }
+    }
+
+    // Returns where the value is, reading the next word and moving SP
+    // as the value requires.
+    private int locate(int code) {
+        if(code < DEREFERENCE_VALUES)
+            return LOCATION_REGISTERS + code - REGISTER_VALUES;
+        if(code < DEREFERENCE_NEXT_PLUS_VALUES)
+            return registers[code - DEREFERENCE_VALUES];
+        if(code < POP) {
+            int address = (ram[pc] + registers[code - DEREFERENCE_NEXT_PLUS_VALUES]) & 0xffff;
+            pc = (pc + 1) & 0xffff;
+            return address;
+        }
+        if(code >= SHORT_LITERALS) {
+            literal = code - SHORT_LITERALS;
+            return LOCATION_LITERAL;
+        }
+        if(code == POP) {
+            int address = sp;
+            sp = (sp + 1) & 0xffff;
+            return address;
+        }
+        if(code == PEEK)
+            return sp;
+        if(code == PUSH) {
+            sp = (sp - 1) & 0xffff;
+            return sp;
+        }
+        if(code == SP)
+            return LOCATION_SP;
+        if(code == PC)
+            return LOCATION_PC;
+        if(code == O)
+            return LOCATION_O;
+        int word = ram[pc];
+        pc = (pc + 1) & 0xffff;
+        if(code == DEREFERENCE_NEXT)
+            return word;
+        literal = word;
+        return LOCATION_LITERAL;
+    }
+
+    private int get(int location) {
+        if(location < LOCATION_REGISTERS)
+            return ram[location];
+        if(location < LOCATION_SP)
+            return registers[location - LOCATION_REGISTERS];
+        switch(location) {
+        case LOCATION_SP:
+            return sp;
+        case LOCATION_PC:
+            return pc;
+        case LOCATION_O:
+            return o;
+        default:
+            return literal;
+        }
+    }
+
+    // Assigning to a literal does nothing.
+    private void set(int location, int value) {
+        value &= 0xffff;
+        if(location < LOCATION_REGISTERS) {
+            ram[location] = (char)value;
+            invalidate(location);
+        } else if(location < LOCATION_SP) {
+            registers[location - LOCATION_REGISTERS] = value;
+        } else if(location == LOCATION_SP) {
+            sp = value;
+        } else if(location == LOCATION_PC) {
+            pc = value;
+        } else if(location == LOCATION_O) {
+            o = value;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.Assembler;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs many DCPU-16 machines at once on a few threads. Each thread has
+// a queue of machines to run. A thread takes machines from the front
+// of its own queue, and puts each back at the end once it has run its
+// quota of cycles. A thread whose queue is empty takes machines from
+// the back of the others' queues, so no thread sits idle while another
+// has a line.
+//
+// For machines on different threads to get the same share for their
+// quotas, every queue has to hold about as many cycles of work. New
+// machines go to the queue with the fewest, and a machine that has run
+// its slice goes back to the lighter of its own queue and another.
+//
+// A machine's memory is only its words and the parts of the dispatch
+// array for the code it has run. The memory of removed machines is
+// kept and given to new ones.
+
+public class EmulatorRuntime {
+    // A tenth of a second at the DCPU-16's 100kHz.
+    public static final int DEFAULT_QUOTA = 10000;
+
+    private final Worker[] workers;
+    private final int defaultQuota;
+    private final ConcurrentMap<Integer, Machine> machines = new ConcurrentHashMap<Integer, Machine>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ArrayDeque<char[]> freeMemory = new ArrayDeque<char[]>();
+    // The number of machines waiting in all the queues.
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong steals = new AtomicLong();
+    private final Object idleLock = new Object();
+    private volatile int idleWorkers = 0;
+    private volatile boolean shutdown = false;
+
+    public EmulatorRuntime() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUOTA);
+    }
+
+    public EmulatorRuntime(int threads, int defaultQuota) {
+        if(threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+        if(defaultQuota <= 0)
+            throw new IllegalArgumentException("Quota must be positive");
+        this.defaultQuota = defaultQuota;
+        workers = new Worker[threads];
+        for(int i=0; i<threads; i++)
+            workers[i] = new Worker(i);
+        for(Worker worker : workers)
+            worker.start();
+    }
+
+    // Makes a paused machine with the assembled program loaded at
+    // address 0.
+    public Machine create(Assembler assembler)
+        throws IOException {
+        return create(assembler.getImage());
+    }
+
+    public Machine create(ShortBuffer program) {
+        if(program.remaining() > Emulator.MEMORY_SIZE)
+            throw new IllegalArgumentException("Program is larger than memory");
+        Emulator emulator = new Emulator(allocateMemory());
+        emulator.load(program);
+        return add(emulator);
+    }
+
+    private Machine add(Emulator emulator) {
+        int id = nextId.getAndIncrement();
+        Machine machine = new Machine(this, id, emulator, defaultQuota);
+        machines.put(id, machine);
+        return machine;
+    }
+
+    // Makes a paused machine in the given state.
+    public Machine create(MachineState state) {
+        Emulator emulator = new Emulator(allocateMemory());
+        emulator.restore(state);
+        return add(emulator);
+    }
+
+    public Machine getMachine(int id) {
+        return machines.get(id);
+    }
+
+    public Collection<Machine> getMachines() {
+        return Collections.unmodifiableCollection(machines.values());
+    }
+
+    public int getMachineCount() {
+        return machines.size();
+    }
+
+    // Stops the machine for good, waiting for the slice it's running to
+    // end, and frees its memory.
+    public void remove(Machine machine) {
+        if(machines.remove(machine.getId()) != machine)
+            return;
+        machine.remove();
+        char[] ram = machine.takeMemory();
+        synchronized(freeMemory) {
+            freeMemory.push(ram);
+        }
+    }
+
+    private char[] allocateMemory() {
+        char[] ram;
+        synchronized(freeMemory) {
+            ram = freeMemory.poll();
+        }
+        if(ram == null)
+            return new char[Emulator.MEMORY_SIZE];
+        Arrays.fill(ram, (char)0);
+        return ram;
+    }
+
+    // The number of times a thread took a machine from another's queue.
+    public long getStealCount() {
+        return steals.get();
+    }
+
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    // Stops the threads once their slices end. The machines keep their
+    // states but won't run again.
+    public void shutdown() {
+        shutdown = true;
+        synchronized(idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+
+    // Queues a machine that's ready to run.
+    void submit(Machine machine) {
+        Worker lightest = workers[0];
+        for(Worker worker : workers) {
+            if(worker.pending.get() < lightest.pending.get())
+                lightest = worker;
+        }
+        enqueue(lightest, machine);
+    }
+
+    private void enqueue(Worker worker, Machine machine) {
+        int quota = machine.getQuota();
+        machine.queuedQuota = quota;
+        worker.pending.addAndGet(quota);
+        worker.queue.offerLast(machine);
+        queued.incrementAndGet();
+        if(idleWorkers != 0) {
+            synchronized(idleLock) {
+                idleLock.notify();
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        private final int index;
+        private final LinkedBlockingDeque<Machine> queue = new LinkedBlockingDeque<Machine>();
+        // The quotas of the machines in the queue.
+        private final AtomicLong pending = new AtomicLong();
+        // Which other queue to compare with next.
+        private int rotation = 0;
+
+        public Worker(int index) {
+            super("emulator-worker-"+index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(!shutdown) {
+                Machine machine = take();
+                if(machine == null)
+                    continue;
+                if(machine.runSlice())
+                    enqueue(lighter(), machine);
+            }
+        }
+
+        private Worker lighter() {
+            if(workers.length == 1)
+                return this;
+            rotation = (rotation + 1) % (workers.length - 1);
+            Worker other = workers[(index + 1 + rotation) % workers.length];
+            return other.pending.get() < pending.get() ? other : this;
+        }
+
+        // Returns the next machine to run, or null if there was none.
+        private Machine take() {
+            Machine machine = queue.pollFirst();
+            if(machine != null) {
+                pending.addAndGet(-machine.queuedQuota);
+                queued.decrementAndGet();
+                return machine;
+            }
+            for(int i=1; i<workers.length; i++) {
+                Worker victim = workers[(index+i) % workers.length];
+                machine = victim.queue.pollLast();
+                if(machine != null) {
+                    victim.pending.addAndGet(-machine.queuedQuota);
+                    queued.decrementAndGet();
+                    steals.incrementAndGet();
+                    return machine;
+                }
+            }
+            synchronized(idleLock) {
+                idleWorkers++;
+                try {
+                    // Counted before looking, so a machine queued from
+                    // now on will wake this thread.
+                    if(queued.get() == 0 && !shutdown)
+                        idleLock.wait();
+                } catch (InterruptedException e) {
+                    // Only shutdown should stop a worker.
+                } finally {
+                    idleWorkers--;
+                }
+            }
+            return null;
+        }
+    }
+}
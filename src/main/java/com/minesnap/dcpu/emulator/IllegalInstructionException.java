@@ -0,0 +1,23 @@
+package com.minesnap.dcpu.emulator;
+
+// Thrown when the emulator reaches one of the reserved non-basic
+// opcodes. PC is left pointing at the instruction.
+
+public class IllegalInstructionException extends Exception {
+    private final int address;
+    private final int word;
+
+    public IllegalInstructionException(int address, int word) {
+        super(String.format("Illegal instruction %04x at %04x", word, address));
+        this.address = address;
+        this.word = word;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getWord() {
+        return word;
+    }
+}
@@ -0,0 +1,192 @@
+package com.minesnap.dcpu.emulator;
+
+// One DCPU-16 run by an EmulatorRuntime. It runs in slices of its
+// quota of cycles, after which it goes to the back of the line, so
+// machines that are running share the runtime's threads in proportion
+// to their quotas. Only one thread runs a machine at a time.
+//
+// The counters are updated after every slice and may be read at any
+// time. The emulator itself may only be looked at or changed while the
+// machine isn't running.
+
+public class Machine {
+    public enum State {
+        RUNNING, PAUSED, HALTED, FAULTED, REMOVED
+    }
+
+    private final EmulatorRuntime runtime;
+    private final int id;
+    private Emulator emulator;
+    private volatile int quota;
+    private State state = State.PAUSED;
+    // True while the machine is waiting in a queue or running.
+    private boolean scheduled = false;
+    // True while a slice is running.
+    private boolean running = false;
+    private Throwable fault = null;
+    // The quota counted for the machine in the queue it's waiting in.
+    int queuedQuota;
+
+    private volatile long cycles = 0;
+    private volatile long instructions = 0;
+    private volatile long slices = 0;
+    private volatile long runNanos = 0;
+
+    Machine(EmulatorRuntime runtime, int id, Emulator emulator, int quota) {
+        this.runtime = runtime;
+        this.id = id;
+        this.emulator = emulator;
+        this.quota = quota;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    // The number of cycles the machine runs before letting another
+    // one have a turn.
+    public int getQuota() {
+        return quota;
+    }
+
+    public void setQuota(int quota) {
+        if(quota <= 0)
+            throw new IllegalArgumentException("Quota must be positive");
+        this.quota = quota;
+    }
+
+    // Fails if the machine is running or has been removed.
+    public synchronized Emulator getEmulator() {
+        if(state == State.RUNNING || running)
+            throw new IllegalStateException("Machine "+id+" is running");
+        if(state == State.REMOVED)
+            throw new IllegalStateException("Machine "+id+" has been removed");
+        return emulator;
+    }
+
+    // What stopped the machine, if it's FAULTED. That's usually an
+    // IllegalInstructionException, but anything else thrown while it
+    // ran stops it too.
+    public synchronized Throwable getFault() {
+        return fault;
+    }
+
+    // Starts the machine running again, from wherever it stopped.
+    public synchronized void resume() {
+        if(state == State.REMOVED)
+            throw new IllegalStateException("Machine "+id+" has been removed");
+        state = State.RUNNING;
+        fault = null;
+        if(!scheduled) {
+            scheduled = true;
+            runtime.submit(this);
+        }
+    }
+
+    // Stops the machine, waiting for the slice it's running to end.
+    public synchronized void pause() {
+        if(state == State.RUNNING)
+            state = State.PAUSED;
+        awaitSlice();
+    }
+
+    synchronized void remove() {
+        state = State.REMOVED;
+        awaitSlice();
+    }
+
+    // Takes the memory back from a removed machine.
+    synchronized char[] takeMemory() {
+        char[] ram = emulator.getMemory();
+        emulator = null;
+        return ram;
+    }
+
+    private void awaitSlice() {
+        boolean interrupted = false;
+        while(running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Runs one slice on the calling thread, and returns whether the
+    // machine should be queued again.
+    boolean runSlice() {
+        Emulator emulator;
+        synchronized(this) {
+            if(state != State.RUNNING) {
+                scheduled = false;
+                return false;
+            }
+            running = true;
+            emulator = this.emulator;
+        }
+        Throwable fault = null;
+        boolean again = false;
+        long startCycles = emulator.getCycles();
+        long startInstructions = emulator.getInstructionCount();
+        long start = System.nanoTime();
+        try {
+            emulator.run(quota);
+        } catch (Throwable e) {
+            // Even a bug in the emulator or a translated block only
+            // stops this machine, and the thread goes on to the others.
+            fault = e;
+        } finally {
+            runNanos += System.nanoTime() - start;
+            cycles += emulator.getCycles() - startCycles;
+            instructions += emulator.getInstructionCount() - startInstructions;
+            slices++;
+            synchronized(this) {
+                running = false;
+                // A machine that was paused as it faulted can't go on
+                // from where it stopped either.
+                if(fault != null && state != State.REMOVED) {
+                    state = State.FAULTED;
+                    this.fault = fault;
+                } else if(state == State.RUNNING && emulator.isHalted()) {
+                    state = State.HALTED;
+                }
+                notifyAll();
+                again = state == State.RUNNING;
+                if(!again)
+                    scheduled = false;
+            }
+        }
+        return again;
+    }
+
+    // The cycles and instructions the machine has run, counted since it
+    // was made.
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    public long getSliceCount() {
+        return slices;
+    }
+
+    // How long the machine's slices took in all.
+    public long getRunNanos() {
+        return runNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Machine "+id+" ("+getState()+")";
+    }
+}
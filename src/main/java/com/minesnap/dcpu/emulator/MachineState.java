@@ -0,0 +1,210 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.assembler.ValueType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+// The memory and registers of a DCPU-16 at one moment. Memory is kept
+// in pages that are never changed once made, so states share the
+// pages they have in common: a snapshot only copies the pages that
+// were written since the emulator's last snapshot or restore, and
+// restoring only copies the pages that differ from what the emulator
+// has.
+//
+// A state made from a program image is a good base for many machines
+// running the same program, since they all share its pages.
+
+public final class MachineState {
+    public static final int PAGE_SHIFT = 10;
+    public static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+    public static final int PAGES = Emulator.MEMORY_SIZE >>> PAGE_SHIFT;
+
+    private static final int MAGIC = 0x44435331;
+    private static final int VERSION = 1;
+    // The magic number, version, registers, PC, SP, O, the cycle and
+    // instruction counts and the map of stored pages.
+    private static final int HEADER_SIZE = 4 + 4 + 8*4 + 3*4 + 8 + 8 + 8;
+
+    // Shared by every page of zeroes that's read or loaded.
+    static final char[] ZERO_PAGE = new char[PAGE_WORDS];
+
+    final char[][] pages;
+    final int[] registers;
+    final int pc;
+    final int sp;
+    final int o;
+    final long cycles;
+    final long instructions;
+
+    MachineState(char[][] pages, int[] registers, int pc, int sp, int o, long cycles, long instructions) {
+        this.pages = pages;
+        this.registers = registers;
+        this.pc = pc;
+        this.sp = sp;
+        this.o = o;
+        this.cycles = cycles;
+        this.instructions = instructions;
+    }
+
+    // A state with the program at address 0, and everything else zero.
+    public static MachineState fromImage(ShortBuffer program) {
+        ShortBuffer words = program.duplicate();
+        if(words.remaining() > Emulator.MEMORY_SIZE)
+            throw new IllegalArgumentException("Program is larger than memory");
+        char[][] pages = new char[PAGES][];
+        for(int i=0; i<PAGES; i++) {
+            if(!words.hasRemaining()) {
+                pages[i] = ZERO_PAGE;
+                continue;
+            }
+            char[] page = new char[PAGE_WORDS];
+            for(int j=0; j<PAGE_WORDS && words.hasRemaining(); j++)
+                page[j] = (char)words.get();
+            pages[i] = page;
+        }
+        return new MachineState(pages, new int[8], 0, 0, 0, 0, 0);
+    }
+
+    public static MachineState fromImage(Assembler assembler)
+        throws IOException {
+        return fromImage(assembler.getImage());
+    }
+
+    public int read(int address) {
+        address &= 0xffff;
+        return pages[address >>> PAGE_SHIFT][address & (PAGE_WORDS-1)];
+    }
+
+    // Takes one of the registers A to J.
+    public int getRegister(ValueType register) {
+        int index = register.getCode() - Emulator.REGISTER_VALUES;
+        if(index < 0 || index >= 8)
+            throw new IllegalArgumentException(register+" is not a general purpose register");
+        return registers[index];
+    }
+
+    public int getPC() {
+        return pc;
+    }
+
+    public int getSP() {
+        return sp;
+    }
+
+    public int getO() {
+        return o;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    // The number of pages this state has in common with another, which
+    // restoring one over the other doesn't need to copy.
+    public int getSharedPageCount(MachineState other) {
+        int count = 0;
+        for(int i=0; i<PAGES; i++) {
+            if(pages[i] == other.pages[i])
+                count++;
+        }
+        return count;
+    }
+
+    // Writes the state to a file through a memory mapping. Pages of
+    // zeroes aren't stored.
+    public void write(File file)
+        throws IOException {
+        long stored = 0;
+        int storedCount = 0;
+        for(int i=0; i<PAGES; i++) {
+            if(!isZero(pages[i])) {
+                stored |= 1L << i;
+                storedCount++;
+            }
+        }
+        int size = HEADER_SIZE + storedCount*PAGE_WORDS*2;
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(size);
+            MappedByteBuffer mapped = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapped.putInt(MAGIC);
+            mapped.putInt(VERSION);
+            for(int register : registers)
+                mapped.putInt(register);
+            mapped.putInt(pc);
+            mapped.putInt(sp);
+            mapped.putInt(o);
+            mapped.putLong(cycles);
+            mapped.putLong(instructions);
+            mapped.putLong(stored);
+            CharBuffer words = mapped.asCharBuffer();
+            for(int i=0; i<PAGES; i++) {
+                if((stored & 1L << i) != 0)
+                    words.put(pages[i]);
+            }
+            mapped.force();
+        } finally {
+            out.close();
+        }
+    }
+
+    public static MachineState read(File file)
+        throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long size = in.length();
+            if(size < HEADER_SIZE)
+                throw new IOException("Not a machine state file: "+file);
+            MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(mapped.getInt() != MAGIC)
+                throw new IOException("Not a machine state file: "+file);
+            if(mapped.getInt() != VERSION)
+                throw new IOException("Unsupported machine state file version: "+file);
+            int[] registers = new int[8];
+            for(int i=0; i<8; i++)
+                registers[i] = mapped.getInt() & 0xffff;
+            int pc = mapped.getInt() & 0xffff;
+            int sp = mapped.getInt() & 0xffff;
+            int o = mapped.getInt() & 0xffff;
+            long cycles = mapped.getLong();
+            long instructions = mapped.getLong();
+            long stored = mapped.getLong();
+            if(size != HEADER_SIZE + (long)Long.bitCount(stored)*PAGE_WORDS*2)
+                throw new IOException("Truncated machine state file: "+file);
+            CharBuffer words = mapped.asCharBuffer();
+            char[][] pages = new char[PAGES][];
+            for(int i=0; i<PAGES; i++) {
+                if((stored & 1L << i) == 0) {
+                    pages[i] = ZERO_PAGE;
+                } else {
+                    pages[i] = new char[PAGE_WORDS];
+                    words.get(pages[i]);
+                }
+            }
+            return new MachineState(pages, registers, pc, sp, o, cycles, instructions);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isZero(char[] page) {
+        if(page == ZERO_PAGE)
+            return true;
+        for(char word : page) {
+            if(word != 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.SourceMap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reports what a Profiler counted in terms of the program's source,
+// using the assembler's SourceMap:
+//
+// - by source line, with the text of each line when its file can be
+//   read,
+// - by label, counting each address against the label before it,
+// - as a call graph of the subroutines JSR called, and
+// - as collapsed stacks, one line per chain of calls with the cycles
+//   spent at its end, which flamegraph.pl and similar tools read.
+//
+// Addresses that aren't part of the program, or whose source isn't
+// known, are counted together as "(unknown)".
+
+public class ProfileReport {
+    private static final String UNKNOWN = "(unknown)";
+    // The name of the code that wasn't called by a JSR.
+    private static final String TOP = "(top)";
+
+    private final Profiler profiler;
+    private final SourceMap sourceMap;
+    private final Map<File, List<String>> sourceLines = new HashMap<File, List<String>>();
+
+    public ProfileReport(Profiler profiler, SourceMap sourceMap) {
+        this.profiler = profiler;
+        this.sourceMap = sourceMap;
+    }
+
+    private static class Count {
+        private final String name;
+        private final File path;
+        private final int line;
+        private long cycles = 0;
+        private long hits = 0;
+
+        public Count(String name, File path, int line) {
+            this.name = name;
+            this.path = path;
+            this.line = line;
+        }
+    }
+
+    private static final Comparator<Count> BY_CYCLES = new Comparator<Count>() {
+            public int compare(Count a, Count b) {
+                if(a.cycles != b.cycles)
+                    return a.cycles > b.cycles ? -1 : 1;
+                return 0;
+            }
+        };
+
+    // The source lines that took cycles, most first.
+    public void writeLines(PrintStream out) {
+        Map<String, Count> counts = new LinkedHashMap<String, Count>();
+        for(int address=0; address<Emulator.MEMORY_SIZE; address++) {
+            long cycles = profiler.getCycles(address);
+            if(cycles == 0)
+                continue;
+            String file = sourceMap.getFile(address);
+            int line = sourceMap.getLine(address);
+            String name = file == null ? UNKNOWN : file+":"+line;
+            Count count = counts.get(name);
+            if(count == null) {
+                count = new Count(name, file == null ? null : sourceMap.getPath(address), line);
+                counts.put(name, count);
+            }
+            count.cycles += cycles;
+            count.hits += profiler.getHits(address);
+        }
+        out.printf("%12s %7s %12s  %s\n", "cycles", "", "hits", "line");
+        for(Count count : sorted(counts)) {
+            String text = count.path == null ? null : sourceLine(count.path, count.line);
+            out.printf("%12d %6.2f%% %12d  %s", count.cycles, percent(count.cycles), count.hits, count.name);
+            if(text != null)
+                out.print("  "+text.trim());
+            out.print('\n');
+        }
+    }
+
+    // The labels whose code took cycles, most first.
+    public void writeLabels(PrintStream out) {
+        Map<String, Count> counts = new LinkedHashMap<String, Count>();
+        for(int address=0; address<Emulator.MEMORY_SIZE; address++) {
+            long cycles = profiler.getCycles(address);
+            if(cycles == 0)
+                continue;
+            String label = sourceMap.getLabel(address);
+            String name = label == null ? UNKNOWN : label;
+            Count count = counts.get(name);
+            if(count == null) {
+                count = new Count(name, null, 0);
+                counts.put(name, count);
+            }
+            count.cycles += cycles;
+            count.hits += profiler.getHits(address);
+        }
+        out.printf("%12s %7s %12s  %s\n", "cycles", "", "hits", "label");
+        for(Count count : sorted(counts))
+            out.printf("%12d %6.2f%% %12d  %s\n", count.cycles, percent(count.cycles), count.hits, count.name);
+    }
+
+    // Every chain of calls, indented under its caller, with the cycles
+    // it took including and not including its callees.
+    public void writeCallGraph(PrintStream out) {
+        out.printf("%12s %7s %12s %10s  %s\n", "total", "", "self", "calls", "subroutine");
+        writeCall(out, profiler.getRoot(), "");
+    }
+
+    private void writeCall(PrintStream out, Profiler.Call call, String indent) {
+        long total = call.getTotalCycles();
+        out.printf("%12d %6.2f%% %12d %10d  %s%s\n", total, percent(total), call.getSelfCycles(),
+                   call.getCount(), indent, name(call));
+        for(Profiler.Call callee : byTotalCycles(call.getCallees()))
+            writeCall(out, callee, indent+"  ");
+    }
+
+    // The collapsed stacks, like "(top);main;draw 1234".
+    public void writeCollapsed(PrintStream out) {
+        writeCollapsed(out, profiler.getRoot(), name(profiler.getRoot()));
+    }
+
+    private void writeCollapsed(PrintStream out, Profiler.Call call, String stack) {
+        if(call.getSelfCycles() != 0)
+            out.print(stack+" "+call.getSelfCycles()+"\n");
+        for(Profiler.Call callee : byTotalCycles(call.getCallees()))
+            writeCollapsed(out, callee, stack+";"+name(callee));
+    }
+
+    // Names a subroutine by its label, or by the label before it and
+    // how far past that it is.
+    private String name(Profiler.Call call) {
+        int address = call.getAddress();
+        if(address == -1)
+            return TOP;
+        String label = sourceMap.getLabel(address);
+        if(label == null)
+            return String.format("0x%04x", address);
+        int offset = address - sourceMap.getLabelAddress(address);
+        return offset == 0 ? label : label+"+"+offset;
+    }
+
+    private double percent(long cycles) {
+        long total = profiler.getTotalCycles();
+        return total == 0 ? 0 : cycles*100.0/total;
+    }
+
+    private static List<Count> sorted(Map<String, Count> counts) {
+        List<Count> list = new ArrayList<Count>(counts.values());
+        Collections.sort(list, BY_CYCLES);
+        return list;
+    }
+
+    private static List<Profiler.Call> byTotalCycles(List<Profiler.Call> calls) {
+        final Map<Profiler.Call, Long> totals = new HashMap<Profiler.Call, Long>();
+        for(Profiler.Call call : calls)
+            totals.put(call, call.getTotalCycles());
+        Collections.sort(calls, new Comparator<Profiler.Call>() {
+                public int compare(Profiler.Call a, Profiler.Call b) {
+                    return totals.get(b).compareTo(totals.get(a));
+                }
+            });
+        return calls;
+    }
+
+    // The text of the line, or null if the file can't be read.
+    private String sourceLine(File path, int line) {
+        List<String> lines = sourceLines.get(path);
+        if(lines == null) {
+            lines = new ArrayList<String>();
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+                try {
+                    String text;
+                    while((text = in.readLine()) != null)
+                        lines.add(text);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                lines.clear();
+            }
+            sourceLines.put(path, lines);
+        }
+        if(line < 1 || line > lines.size())
+            return null;
+        return lines.get(line-1);
+    }
+}
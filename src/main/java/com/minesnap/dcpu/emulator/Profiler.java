@@ -0,0 +1,142 @@
+package com.minesnap.dcpu.emulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Counts where an Emulator spends its cycles. Every instruction that
+// runs adds its cycles and a hit to its address, and its cycles to the
+// subroutine it's in. Subroutines are followed by their calls and
+// returns: JSR calls its target, and SET PC, POP returns to the
+// caller. Programs that return some other way leave the calls they
+// made open, and a return with no call open is ignored.
+//
+// ProfileReport turns the counts into reports by source line, label
+// and call.
+
+public class Profiler {
+    // Calls nested deeper than this, like runaway recursion, are
+    // counted against the deepest subroutine that's followed.
+    public static final int MAX_DEPTH = 256;
+
+    private final long[] cycles = new long[Emulator.MEMORY_SIZE];
+    private final long[] hits = new long[Emulator.MEMORY_SIZE];
+    private long totalCycles = 0;
+    private Call root = new Call(null, -1);
+    private Call current = root;
+    private int depth = 0;
+    // Calls made past MAX_DEPTH that haven't returned yet.
+    private int untracked = 0;
+
+    // A subroutine as it was reached by one chain of calls. The same
+    // subroutine called from two places is two Calls.
+    public static class Call {
+        private final Call caller;
+        private final int address;
+        private final Map<Integer, Call> callees = new HashMap<Integer, Call>(4);
+        private long selfCycles = 0;
+        private long count = 0;
+
+        Call(Call caller, int address) {
+            this.caller = caller;
+            this.address = address;
+        }
+
+        // The caller, or null for the code that wasn't called.
+        public Call getCaller() {
+            return caller;
+        }
+
+        // The subroutine's address, or -1 for the code that wasn't
+        // called.
+        public int getAddress() {
+            return address;
+        }
+
+        // The number of times the subroutine was called this way.
+        public long getCount() {
+            return count;
+        }
+
+        // The cycles spent in the subroutine itself, not counting the
+        // subroutines it called.
+        public long getSelfCycles() {
+            return selfCycles;
+        }
+
+        public long getTotalCycles() {
+            long total = selfCycles;
+            for(Call callee : callees.values())
+                total += callee.getTotalCycles();
+            return total;
+        }
+
+        public List<Call> getCallees() {
+            return new ArrayList<Call>(callees.values());
+        }
+    }
+
+    void count(int address, int cost) {
+        cycles[address] += cost;
+        hits[address]++;
+        totalCycles += cost;
+        current.selfCycles += cost;
+    }
+
+    void call(int target) {
+        if(depth == MAX_DEPTH) {
+            untracked++;
+            return;
+        }
+        Call callee = current.callees.get(target);
+        if(callee == null) {
+            callee = new Call(current, target);
+            current.callees.put(target, callee);
+        }
+        callee.count++;
+        current = callee;
+        depth++;
+    }
+
+    void ret() {
+        if(untracked > 0) {
+            untracked--;
+        } else if(depth > 0) {
+            current = current.caller;
+            depth--;
+        }
+    }
+
+    // The cycles spent running the instruction at the address.
+    public long getCycles(int address) {
+        return cycles[address & 0xffff];
+    }
+
+    // The number of times the instruction at the address was run.
+    public long getHits(int address) {
+        return hits[address & 0xffff];
+    }
+
+    public long getTotalCycles() {
+        return totalCycles;
+    }
+
+    // The code that ran outside of any call, whose callees are the
+    // subroutines it called.
+    public Call getRoot() {
+        return root;
+    }
+
+    // Forgets all counts and open calls.
+    public void reset() {
+        Arrays.fill(cycles, 0);
+        Arrays.fill(hits, 0);
+        totalCycles = 0;
+        root = new Call(null, -1);
+        current = root;
+        depth = 0;
+        untracked = 0;
+    }
+}
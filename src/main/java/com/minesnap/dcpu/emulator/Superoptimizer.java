@@ -0,0 +1,750 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.Assembler;
+import com.minesnap.dcpu.assembler.CompileError;
+import com.minesnap.dcpu.assembler.Instruction;
+import com.minesnap.dcpu.assembler.Opcode;
+import com.minesnap.dcpu.assembler.OpcodeType;
+import com.minesnap.dcpu.assembler.RewriteDatabase;
+import com.minesnap.dcpu.assembler.UnresolvedData;
+import com.minesnap.dcpu.assembler.Value;
+import com.minesnap.dcpu.assembler.ValueType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+// Searches for the cheapest run of instructions that does the same as
+// a short window of code, trying every run of SET to XOR instructions
+// over the window's registers, O and small literals, shortest first.
+//
+// The window is given with the registers and O that it reads (live in)
+// and that are read after it (live out). A candidate only has to leave
+// the live out ones as the window would. Candidates are first run on a
+// few inputs by a quick evaluator of their own, and the ones that pass
+// are checked with the Emulator: on every value of the live in
+// register when there's only one, and otherwise on random values and
+// every pair of edge values like 0 and 0xffff. Registers that aren't
+// live in are given random values, so candidates that depend on them
+// don't pass.
+//
+// Found rewrites can be kept in a RewriteDatabase, which the assembler
+// applies when they hold for every register.
+
+public class Superoptimizer {
+    public static final int DEFAULT_MAX_LENGTH = 3;
+    // The random inputs a candidate is checked on when there are too
+    // many to try them all.
+    public static final int RANDOM_CHECKS = 1 << 16;
+    private static final int QUICK_TESTS = 32;
+    private static final int[] EDGE_VALUES = { 0, 1, 2, 0x1f, 0x20, 0x7fff, 0x8000, 0xfffe, 0xffff };
+
+    // Locations are registers A to J and then O, and literals are
+    // values above them.
+    private static final int O = 8;
+    private static final int LOCATIONS = 9;
+    private static final int LITERAL = 0x10000;
+    private static final ValueType[] REGISTERS = {
+        ValueType.A, ValueType.B, ValueType.C, ValueType.X,
+        ValueType.Y, ValueType.Z, ValueType.I, ValueType.J
+    };
+    private static final OpcodeType[] BASIC = new OpcodeType[OpcodeType.XOR.getCode()+1];
+
+    static {
+        for(OpcodeType type : OpcodeType.values()) {
+            Integer code = type.getCode();
+            if(code != null && code > 0 && code < BASIC.length)
+                BASIC[code] = type;
+        }
+    }
+
+    private int maxLength = DEFAULT_MAX_LENGTH;
+    private long seed = 1;
+
+    // A run of instructions, each as its opcode, a and b.
+    private static class Code {
+        private final int[] ops;
+        private final int[] as;
+        private final int[] bs;
+
+        public Code(int[] ops, int[] as, int[] bs) {
+            this.ops = ops;
+            this.as = as;
+            this.bs = bs;
+        }
+
+        public int length() {
+            return ops.length;
+        }
+
+        public int cycles() {
+            int cycles = 0;
+            for(int i=0; i<ops.length; i++)
+                cycles += Superoptimizer.cycles(ops[i], bs[i]);
+            return cycles;
+        }
+
+        public int words() {
+            int words = 0;
+            for(int i=0; i<ops.length; i++)
+                words += longLiteral(bs[i]) ? 2 : 1;
+            return words;
+        }
+    }
+
+    // The longest run of instructions to search. Runs longer than two
+    // only use the window's literals and 0, 1 and 0xffff, since there
+    // are too many with every small literal.
+    public void setMaxLength(int maxLength) {
+        if(maxLength < 0)
+            throw new IllegalArgumentException("The length can't be negative");
+        this.maxLength = maxLength;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    // Returns the cheapest replacement for the window, taking fewer
+    // cycles or as many in fewer words, or null if there's none. If
+    // liveIn is null, it's the registers and O the window reads before
+    // writing them. If liveOut is null, every register and O is live.
+    public List<Instruction> optimize(List<Instruction> window, Collection<ValueType> liveIn,
+                                      Collection<ValueType> liveOut) {
+        Code original = encode(window);
+        if(original == null)
+            throw new IllegalArgumentException("Only SET to XOR with registers, O and literals can be optimized");
+        boolean[] live = liveOut == null ? all() : locations(liveOut);
+        int[] inputs = liveIn == null ? readBeforeWritten(original) : indexes(locations(liveIn));
+
+        // The registers candidates may use.
+        Set<Integer> registers = new LinkedHashSet<Integer>();
+        for(int i=0; i<original.length(); i++) {
+            if(original.as[i] < O)
+                registers.add(original.as[i]);
+            if(original.bs[i] < O)
+                registers.add(original.bs[i]);
+        }
+        for(int input : inputs) {
+            if(input < O)
+                registers.add(input);
+        }
+        if(liveOut != null) {
+            for(int location : indexes(live)) {
+                if(location < O)
+                    registers.add(location);
+            }
+        }
+        Set<Integer> literals = new LinkedHashSet<Integer>();
+        for(int i=0; i<original.length(); i++) {
+            if(original.bs[i] >= LITERAL)
+                literals.add(original.bs[i] & 0xffff);
+        }
+        Set<Integer> fewLiterals = new LinkedHashSet<Integer>(literals);
+        fewLiterals.add(0);
+        fewLiterals.add(1);
+        fewLiterals.add(0xffff);
+        for(int i=0; i<0x20; i++)
+            literals.add(i);
+        literals.add(0x8000);
+        literals.add(0xffff);
+
+        Search search = new Search(original, live, inputs);
+        for(int length=0; length<=maxLength && length<original.length()+1; length++) {
+            if(length*cost(1, 1) >= search.bestCost)
+                break;
+            search.run(length, instructions(registers, length <= 2 ? literals : fewLiterals));
+        }
+        return search.best == null ? null : decode(search.best);
+    }
+
+    // Whether the replacement leaves every register and O as the
+    // window does, checked as optimize checks its candidates.
+    public boolean isExact(List<Instruction> window, List<Instruction> replacement) {
+        Code original = encode(window);
+        Code candidate = encode(replacement);
+        if(original == null || candidate == null)
+            throw new IllegalArgumentException("Only SET to XOR with registers, O and literals can be checked");
+        return new Search(original, all(), readBeforeWritten(original)).verify(candidate);
+    }
+
+    public static int cycles(List<Instruction> instructions) {
+        Code code = encode(instructions);
+        if(code == null)
+            throw new IllegalArgumentException("Only SET to XOR with registers, O and literals can be counted");
+        return code.cycles();
+    }
+
+    private class Search {
+        private final Code original;
+        private final boolean[] live;
+        private final int[] inputs;
+        private final int[][] tests;
+        private final int[][] expected;
+        private final Random random = new Random(seed);
+        private Code best = null;
+        private int bestCost;
+
+        // The candidate being built, with the state of the first test
+        // after each of its instructions.
+        private int[] ops;
+        private int[] as;
+        private int[] bs;
+        private int[][] states;
+
+        public Search(Code original, boolean[] live, int[] inputs) {
+            this.original = original;
+            this.live = live;
+            this.inputs = inputs;
+            bestCost = cost(original.cycles(), original.words());
+            tests = new int[QUICK_TESTS][];
+            expected = new int[QUICK_TESTS][];
+            for(int i=0; i<QUICK_TESTS; i++) {
+                tests[i] = randomState();
+                // Some tests give the inputs edge values.
+                if(i >= QUICK_TESTS/2) {
+                    for(int input : inputs)
+                        tests[i][input] = EDGE_VALUES[random.nextInt(EDGE_VALUES.length)];
+                }
+                expected[i] = tests[i].clone();
+                Superoptimizer.run(original, expected[i]);
+            }
+        }
+
+        // Tries every run of the length built from the instructions,
+        // which are sorted by cost.
+        public void run(int length, int[][] instructions) {
+            ops = new int[length];
+            as = new int[length];
+            bs = new int[length];
+            states = new int[length+1][];
+            states[0] = tests[0];
+            search(0, 0, instructions);
+        }
+
+        private void search(int depth, int cost, int[][] instructions) {
+            if(depth == ops.length) {
+                if(!matches(states[depth], expected[0]))
+                    return;
+                Code candidate = new Code(ops.clone(), as.clone(), bs.clone());
+                for(int i=1; i<QUICK_TESTS; i++) {
+                    int[] state = tests[i].clone();
+                    Superoptimizer.run(candidate, state);
+                    if(!matches(state, expected[i]))
+                        return;
+                }
+                if(verify(candidate)) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+                return;
+            }
+            int remaining = ops.length - depth - 1;
+            for(int[] instruction : instructions) {
+                int newCost = cost + instruction[3];
+                // The rest are no cheaper.
+                if(newCost + remaining*cost(1, 1) >= bestCost)
+                    break;
+                ops[depth] = instruction[0];
+                as[depth] = instruction[1];
+                bs[depth] = instruction[2];
+                int[] state = states[depth].clone();
+                step(instruction[0], instruction[1], instruction[2], state);
+                states[depth+1] = state;
+                search(depth+1, newCost, instructions);
+            }
+        }
+
+        private boolean matches(int[] state, int[] expected) {
+            for(int i=0; i<LOCATIONS; i++) {
+                if(live[i] && state[i] != expected[i])
+                    return false;
+            }
+            return true;
+        }
+
+        // Checks the candidate against the window in the emulator.
+        public boolean verify(Code candidate) {
+            Emulator originalEmulator = load(original);
+            Emulator candidateEmulator = load(candidate);
+            int length = candidate.length();
+            if(inputs.length <= 1) {
+                // Every value of the input.
+                int count = inputs.length == 0 ? QUICK_TESTS : 0x10000;
+                for(int value=0; value<count; value++) {
+                    int[] state = randomState();
+                    if(inputs.length != 0)
+                        state[inputs[0]] = value;
+                    if(!sameResult(originalEmulator, candidateEmulator, length, state))
+                        return false;
+                }
+                return true;
+            }
+            for(int i=0; i<inputs.length; i++) {
+                for(int j=i+1; j<inputs.length; j++) {
+                    for(int first : EDGE_VALUES) {
+                        for(int second : EDGE_VALUES) {
+                            int[] state = randomState();
+                            state[inputs[i]] = first;
+                            state[inputs[j]] = second;
+                            if(!sameResult(originalEmulator, candidateEmulator, length, state))
+                                return false;
+                        }
+                    }
+                }
+            }
+            for(int i=0; i<RANDOM_CHECKS; i++) {
+                if(!sameResult(originalEmulator, candidateEmulator, length, randomState()))
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean sameResult(Emulator originalEmulator, Emulator candidateEmulator, int length, int[] state) {
+            int[] originalState = runEmulator(originalEmulator, original.length(), state);
+            int[] candidateState = runEmulator(candidateEmulator, length, state);
+            return matches(candidateState, originalState);
+        }
+
+        private int[] randomState() {
+            int[] state = new int[LOCATIONS];
+            for(int i=0; i<LOCATIONS; i++)
+                state[i] = random.nextInt(0x10000);
+            return state;
+        }
+    }
+
+    // An emulator with the code at address 0.
+    private static Emulator load(Code code) {
+        Emulator emulator = new Emulator();
+        int address = 0;
+        for(int i=0; i<code.length(); i++) {
+            int b = code.bs[i];
+            int bCode = b < O ? b : b == O ? ValueType.O.getCode()
+                : longLiteral(b) ? ValueType.LITERAL.getCode() : 0x20 + (b & 0xffff);
+            int aCode = code.as[i] < O ? code.as[i] : ValueType.O.getCode();
+            emulator.write(address++, code.ops[i] | aCode << 4 | bCode << 10);
+            if(longLiteral(b))
+                emulator.write(address++, b & 0xffff);
+        }
+        return emulator;
+    }
+
+    private static int[] runEmulator(Emulator emulator, int length, int[] state) {
+        emulator.reset();
+        for(int i=0; i<O; i++)
+            emulator.setRegister(REGISTERS[i], state[i]);
+        emulator.setO(state[O]);
+        try {
+            for(int i=0; i<length; i++)
+                emulator.step();
+        } catch (IllegalInstructionException e) {
+            throw new IllegalStateException("Only legal instructions should have been tried", e);
+        }
+        int[] result = new int[LOCATIONS];
+        for(int i=0; i<O; i++)
+            result[i] = emulator.getRegister(REGISTERS[i]);
+        result[O] = emulator.getO();
+        return result;
+    }
+
+    // Every instruction over the registers and literals, as opcode, a,
+    // b and cost, cheapest first. Instructions that do nothing aren't
+    // included.
+    private static int[][] instructions(Set<Integer> registers, Set<Integer> literals) {
+        List<Integer> targets = new ArrayList<Integer>(registers);
+        targets.add(O);
+        List<Integer> sources = new ArrayList<Integer>(targets);
+        for(int literal : literals)
+            sources.add(LITERAL | literal);
+        List<int[]> instructions = new ArrayList<int[]>();
+        for(int op=1; op<BASIC.length; op++) {
+            for(int a : targets) {
+                for(int b : sources) {
+                    OpcodeType type = BASIC[op];
+                    if(a == b && (type == OpcodeType.SET || type == OpcodeType.AND || type == OpcodeType.BOR))
+                        continue;
+                    int cost = cost(cycles(op, b), longLiteral(b) ? 2 : 1);
+                    instructions.add(new int[] { op, a, b, cost });
+                }
+            }
+        }
+        int[][] sorted = instructions.toArray(new int[instructions.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+                public int compare(int[] x, int[] y) {
+                    return x[3] - y[3];
+                }
+            });
+        return sorted;
+    }
+
+    // Cycles come first, then words.
+    private static int cost(int cycles, int words) {
+        return cycles*16 + words;
+    }
+
+    private static boolean longLiteral(int value) {
+        return value >= LITERAL && (value & 0xffff) > 0x1f;
+    }
+
+    private static int cycles(int op, int b) {
+        int cycles;
+        switch(BASIC[op]) {
+        case SET:
+        case AND:
+        case BOR:
+        case XOR:
+            cycles = 1;
+            break;
+        case DIV:
+        case MOD:
+            cycles = 3;
+            break;
+        default:
+            cycles = 2;
+        }
+        return longLiteral(b) ? cycles+1 : cycles;
+    }
+
+    private static void run(Code code, int[] state) {
+        for(int i=0; i<code.length(); i++)
+            step(code.ops[i], code.as[i], code.bs[i], state);
+    }
+
+    // Runs one instruction on registers A to J and O, as the Emulator
+    // does.
+    private static void step(int op, int a, int b, int[] state) {
+        int aValue = state[a];
+        int bValue = b >= LITERAL ? b & 0xffff : state[b];
+        int result;
+        int o = -1;
+        switch(BASIC[op]) {
+        case SET:
+            result = bValue;
+            break;
+        case ADD:
+            result = aValue + bValue;
+            o = result >>> 16;
+            break;
+        case SUB:
+            result = aValue - bValue;
+            o = result < 0 ? 0xffff : 0;
+            break;
+        case MUL:
+            result = aValue * bValue;
+            o = result >>> 16;
+            break;
+        case DIV:
+            if(bValue == 0) {
+                result = 0;
+                o = 0;
+            } else {
+                result = aValue / bValue;
+                o = (int)(((long)aValue << 16) / bValue) & 0xffff;
+            }
+            break;
+        case MOD:
+            result = bValue == 0 ? 0 : aValue % bValue;
+            break;
+        case SHL:
+            if(bValue >= 32) {
+                result = 0;
+                o = 0;
+            } else {
+                long shifted = (long)aValue << bValue;
+                result = (int)shifted;
+                o = (int)(shifted >>> 16) & 0xffff;
+            }
+            break;
+        case SHR:
+            if(bValue >= 32) {
+                result = 0;
+                o = 0;
+            } else {
+                result = aValue >>> bValue;
+                o = (int)(((long)aValue << 16) >>> bValue) & 0xffff;
+            }
+            break;
+        case AND:
+            result = aValue & bValue;
+            break;
+        case BOR:
+            result = aValue | bValue;
+            break;
+        default:
+            result = aValue ^ bValue;
+        }
+        state[a] = result & 0xffff;
+        if(o != -1)
+            state[O] = o;
+    }
+
+    private static Code encode(List<Instruction> instructions) {
+        int[] ops = new int[instructions.size()];
+        int[] as = new int[ops.length];
+        int[] bs = new int[ops.length];
+        for(int i=0; i<ops.length; i++) {
+            Instruction instr = instructions.get(i);
+            Integer code = instr.getOpcode().getCode();
+            if(instr.getOpcode().getType() == OpcodeType.CUSTOM || code == null
+               || code <= 0 || code >= BASIC.length)
+                return null;
+            ops[i] = code;
+            as[i] = encodeValue(instr.getValueA());
+            bs[i] = encodeValue(instr.getValueB());
+            if(as[i] == -1 || as[i] >= LITERAL || bs[i] == -1)
+                return null;
+        }
+        return new Code(ops, as, bs);
+    }
+
+    private static int encodeValue(Value value) {
+        ValueType type = value.getType();
+        if(type == ValueType.O)
+            return O;
+        if(type == ValueType.LITERAL) {
+            UnresolvedData data = value.getData();
+            if(data.getClass() != UnresolvedData.class || data.getReference() != null)
+                return -1;
+            return LITERAL | data.getUnresolvedWord();
+        }
+        int code = type.getCode();
+        return code >= 0 && code < O ? code : -1;
+    }
+
+    private static List<Instruction> decode(Code code) {
+        List<Instruction> instructions = new ArrayList<Instruction>(code.length());
+        for(int i=0; i<code.length(); i++) {
+            Instruction instr = new Instruction(Opcode.get(BASIC[code.ops[i]]));
+            instr.setValueA(decodeValue(code.as[i]));
+            instr.setValueB(decodeValue(code.bs[i]));
+            instructions.add(instr);
+        }
+        return instructions;
+    }
+
+    private static Value decodeValue(int value) {
+        if(value >= LITERAL)
+            return new Value(ValueType.LITERAL, new UnresolvedData(null, value & 0xffff));
+        if(value == O)
+            return new Value(ValueType.O);
+        return new Value(REGISTERS[value]);
+    }
+
+    private static boolean[] all() {
+        boolean[] locations = new boolean[LOCATIONS];
+        Arrays.fill(locations, true);
+        return locations;
+    }
+
+    private static boolean[] locations(Collection<ValueType> types) {
+        boolean[] locations = new boolean[LOCATIONS];
+        for(ValueType type : types) {
+            int location = type == ValueType.O ? O : type.getCode();
+            if(location < 0 || location > O)
+                throw new IllegalArgumentException(type+" is not a register or O");
+            locations[location] = true;
+        }
+        return locations;
+    }
+
+    private static int[] indexes(boolean[] locations) {
+        int count = 0;
+        for(boolean location : locations) {
+            if(location)
+                count++;
+        }
+        int[] indexes = new int[count];
+        count = 0;
+        for(int i=0; i<locations.length; i++) {
+            if(locations[i])
+                indexes[count++] = i;
+        }
+        return indexes;
+    }
+
+    private static int[] readBeforeWritten(Code code) {
+        boolean[] read = new boolean[LOCATIONS];
+        boolean[] written = new boolean[LOCATIONS];
+        for(int i=0; i<code.length(); i++) {
+            int a = code.as[i];
+            int b = code.bs[i];
+            if(b < LITERAL && !written[b])
+                read[b] = true;
+            if(BASIC[code.ops[i]] != OpcodeType.SET && !written[a])
+                read[a] = true;
+            written[a] = true;
+        }
+        return indexes(read);
+    }
+
+    // Assembles the lines into instructions, as the superoptimizer
+    // takes them.
+    private static List<Instruction> parse(List<String> lines)
+        throws CompileError, IOException {
+        StringBuilder source = new StringBuilder();
+        for(String line : lines)
+            source.append(line).append('\n');
+        Assembler assembler = new Assembler();
+        assembler.setOptimizations(false);
+        assembler.setIncludeThreads(0);
+        assembler.assemble(source, "window", null);
+        ShortBuffer words = assembler.getImage();
+        List<Instruction> instructions = new ArrayList<Instruction>();
+        while(words.hasRemaining()) {
+            int word = words.get() & 0xffff;
+            int op = word & 0xf;
+            if(op == 0 || op >= BASIC.length)
+                throw new IllegalArgumentException("Only SET to XOR can be optimized");
+            Instruction instr = new Instruction(Opcode.get(BASIC[op]));
+            instr.setValueA(parseValue((word >>> 4) & 0x3f, words));
+            instr.setValueB(parseValue(word >>> 10, words));
+            instructions.add(instr);
+        }
+        return instructions;
+    }
+
+    private static Value parseValue(int code, ShortBuffer words) {
+        if(code < O)
+            return new Value(REGISTERS[code]);
+        if(code == ValueType.O.getCode())
+            return new Value(ValueType.O);
+        if(code == ValueType.LITERAL.getCode())
+            return new Value(ValueType.LITERAL, new UnresolvedData(null, words.get() & 0xffff));
+        if(code >= 0x20)
+            return new Value(ValueType.LITERAL, new UnresolvedData(null, code - 0x20));
+        throw new IllegalArgumentException("Only registers, O and literals can be optimized");
+    }
+
+    private static List<ValueType> parseLocations(String list) {
+        List<ValueType> types = new ArrayList<ValueType>();
+        for(String name : list.split(",")) {
+            name = name.trim().toUpperCase();
+            if(name.length() != 0)
+                types.add(ValueType.valueOf(name));
+        }
+        return types;
+    }
+
+    private static String format(List<Instruction> instructions) {
+        if(instructions.isEmpty())
+            return "(nothing)";
+        StringBuilder sb = new StringBuilder();
+        for(Instruction instr : instructions) {
+            if(sb.length() != 0)
+                sb.append("; ");
+            sb.append(instr.getOpcode().getName());
+            sb.append(' ').append(formatValue(instr.getValueA()));
+            sb.append(", ").append(formatValue(instr.getValueB()));
+        }
+        return sb.toString();
+    }
+
+    private static String formatValue(Value value) {
+        if(value.getType() == ValueType.LITERAL)
+            return "0x"+Integer.toHexString(value.getData().getUnresolvedWord());
+        return value.getType().toString();
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        List<ValueType> liveIn = null;
+        List<ValueType> liveOut = null;
+        String rewritesFile = null;
+        Superoptimizer optimizer = new Superoptimizer();
+        List<String> lines = new ArrayList<String>();
+        try {
+            for(int i=0; i<args.length; i++) {
+                boolean hasArgument = i+1 < args.length;
+                if(args[i].equals("-h") || args[i].equals("--help")) {
+                    usage(out);
+                    return 0;
+                } else if(args[i].equals("--live-in") && hasArgument) {
+                    liveIn = parseLocations(args[++i]);
+                } else if(args[i].equals("--live-out") && hasArgument) {
+                    liveOut = parseLocations(args[++i]);
+                } else if(args[i].equals("--max-length") && hasArgument) {
+                    optimizer.setMaxLength(Integer.parseInt(args[++i]));
+                } else if(args[i].equals("--rewrites") && hasArgument) {
+                    rewritesFile = args[++i];
+                } else if(args[i].startsWith("--")) {
+                    err.println("Not a valid argument: "+args[i]);
+                    usage(out);
+                    return 1;
+                } else {
+                    lines.add(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            err.println("Error: "+e.getMessage());
+            return 1;
+        }
+        if(lines.isEmpty()) {
+            err.println("Wrong number of arguments.");
+            usage(out);
+            return 1;
+        }
+
+        try {
+            List<Instruction> window = parse(lines);
+            if(window.size() > RewriteDatabase.MAX_WINDOW)
+                throw new IllegalArgumentException("At most "+RewriteDatabase.MAX_WINDOW+" instructions can be optimized");
+            out.println("Original:    "+format(window)+" ("+cycles(window)+" cycles)");
+            List<Instruction> replacement = optimizer.optimize(window, liveIn, liveOut);
+            if(replacement == null) {
+                out.println("Nothing cheaper was found.");
+                return 0;
+            }
+            boolean exact = liveOut == null || optimizer.isExact(window, replacement);
+            out.println("Replacement: "+format(replacement)+" ("+cycles(replacement)+" cycles)");
+            if(!exact)
+                out.println("Only registers that are live out are the same afterwards.");
+            if(rewritesFile != null) {
+                File file = new File(rewritesFile);
+                RewriteDatabase rewrites = file.exists() ? RewriteDatabase.read(file) : new RewriteDatabase();
+                rewrites.add(window, replacement, exact ? null : liveOut);
+                rewrites.write(file);
+                out.println("Saved to "+rewritesFile+", which has "+rewrites.size()+" rewrites.");
+            }
+        } catch (CompileError e) {
+            err.println("Compile Error: "+e.getMessage());
+            return 3;
+        } catch (IllegalArgumentException e) {
+            err.println("Error: "+e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            err.println(e);
+            return 5;
+        }
+        return 0;
+    }
+
+    public static void usage(PrintStream out) {
+        out.println("Parameters: [OPTION]... INSTRUCTION...");
+        out.println("Searches for cheaper instructions that do the same as the given ones.");
+        out.println();
+        out.println("Available options:");
+        out.println(" -h, --help    Show this help message.");
+        out.println(" --live-in registers");
+        out.println("               The registers and O the instructions read, separated by");
+        out.println("               commas (default those read before they're written).");
+        out.println(" --live-out registers");
+        out.println("               The registers and O read after the instructions (default all).");
+        out.println(" --max-length n");
+        out.println("               The most instructions to replace them with (default "+DEFAULT_MAX_LENGTH+").");
+        out.println(" --rewrites file");
+        out.println("               Add what's found to the rewrites in file, for the assembler.");
+    }
+}
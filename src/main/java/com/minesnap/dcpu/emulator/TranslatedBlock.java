@@ -0,0 +1,68 @@
+package com.minesnap.dcpu.emulator;
+
+// The superclass of the classes that Translator generates. Each one
+// runs a block of DCPU-16 code: a run of instructions from start to
+// end that can only leave at its last instruction, or at a jump that
+// an IF instruction guards. The block keeps registers in the array it
+// is given, laid out as Emulator's STATE constants say, and returns
+// the number of cycles it took.
+//
+// It's public so that the generated classes, which each have their
+// own class loader, can extend it.
+
+public abstract class TranslatedBlock {
+    Emulator emulator;
+    int start;
+    int end;
+    // The most cycles the block can take.
+    int maxCycles;
+    boolean valid = true;
+
+    protected TranslatedBlock() {
+    }
+
+    protected abstract int run(char[] ram, int[] state);
+
+    // Writes to memory through the emulator, so that the code there is
+    // decoded and translated again, and returns true if that was code
+    // of this block.
+    protected final boolean store(int address, int value) {
+        emulator.write(address, value);
+        return !valid;
+    }
+
+    boolean contains(int address) {
+        return address >= start && address < end;
+    }
+
+    // The operations that take more than a few instructions of
+    // bytecode, done the same way Emulator does them.
+
+    protected static int div(int a, int b) {
+        return b == 0 ? 0 : a / b;
+    }
+
+    protected static int divOverflow(int a, int b) {
+        return b == 0 ? 0 : (int)(((long)a << 16) / b) & 0xffff;
+    }
+
+    protected static int mod(int a, int b) {
+        return b == 0 ? 0 : a % b;
+    }
+
+    protected static int shl(int a, int b) {
+        return b >= 32 ? 0 : (int)((long)a << b);
+    }
+
+    protected static int shlOverflow(int a, int b) {
+        return b >= 32 ? 0 : (int)(((long)a << b) >>> 16) & 0xffff;
+    }
+
+    protected static int shr(int a, int b) {
+        return b >= 32 ? 0 : a >>> b;
+    }
+
+    protected static int shrOverflow(int a, int b) {
+        return b >= 32 ? 0 : (int)(((long)a << 16) >>> b) & 0xffff;
+    }
+}
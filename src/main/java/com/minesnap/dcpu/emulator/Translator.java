@@ -0,0 +1,258 @@
+package com.minesnap.dcpu.emulator;
+
+import com.minesnap.dcpu.assembler.OpcodeType;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Translates the code an Emulator runs often into JVM classes, which
+// the JVM can then compile like any other code.
+//
+// The interpreter counts how many times it runs each address. Once an
+// address has been run HOT_THRESHOLD times, the block of code starting
+// there is translated, and from then on the class runs in place of the
+// interpreter whenever the program gets to that address. A block goes
+// up to the first jump that isn't guarded by an IF, an IF that could
+// skip another IF, or an illegal instruction.
+//
+// Writing to memory that a block was translated from throws the block
+// away. Code at an address whose blocks keep getting thrown away by
+// writes is left to the interpreter, as is code that can't start a
+// block. Restoring a snapshot only throws away the blocks whose code it
+// changes, and doesn't count against them.
+
+class Translator {
+    static final int HOT_THRESHOLD = 1000;
+    static final int MAX_BLOCK_INSTRUCTIONS = 64;
+    static final int MAX_INVALIDATIONS = 4;
+
+    private static final int PAGES = Emulator.MEMORY_SIZE >>> Emulator.PAGE_SHIFT;
+    private static final int PAGE_SIZE = Emulator.PAGE_MASK+1;
+    // The count of an address that won't be translated.
+    private static final int NEVER = -1;
+
+    private final Emulator emulator;
+    // The blocks by their first address.
+    private final TranslatedBlock[][] blocks = new TranslatedBlock[PAGES][];
+    // The blocks that hold code in each page.
+    private final List<List<TranslatedBlock>> pageBlocks = new ArrayList<List<TranslatedBlock>>(PAGES);
+    private final int[][] counts = new int[PAGES][];
+    private final Map<Integer, Integer> invalidations = new HashMap<Integer, Integer>();
+    private int translatedCount = 0;
+
+    public Translator(Emulator emulator) {
+        this.emulator = emulator;
+        for(int i=0; i<PAGES; i++)
+            pageBlocks.add(null);
+    }
+
+    public int getTranslatedCount() {
+        return translatedCount;
+    }
+
+    // Returns the block that starts at the address, translating it if
+    // it has become hot, or null if it should be interpreted.
+    public TranslatedBlock find(int address) {
+        int page = address >>> Emulator.PAGE_SHIFT;
+        int offset = address & Emulator.PAGE_MASK;
+        TranslatedBlock[] pageOfBlocks = blocks[page];
+        if(pageOfBlocks != null && pageOfBlocks[offset] != null)
+            return pageOfBlocks[offset];
+        int[] pageCounts = counts[page];
+        if(pageCounts == null) {
+            pageCounts = new int[PAGE_SIZE];
+            counts[page] = pageCounts;
+        }
+        int count = pageCounts[offset];
+        if(count == NEVER)
+            return null;
+        if(++count < HOT_THRESHOLD) {
+            pageCounts[offset] = count;
+            return null;
+        }
+        TranslatedBlock block = translate(address);
+        pageCounts[offset] = block == null ? NEVER : 0;
+        return block;
+    }
+
+    // Throws away the blocks that hold the address.
+    public void written(int address) {
+        List<TranslatedBlock> list = pageBlocks.get(address >>> Emulator.PAGE_SHIFT);
+        if(list == null)
+            return;
+        // Going backwards, since remove takes blocks out of the list.
+        for(int i=list.size()-1; i>=0; i--) {
+            TranslatedBlock block = list.get(i);
+            if(block.contains(address)) {
+                remove(block);
+                Integer count = invalidations.get(block.start);
+                count = count == null ? 1 : count+1;
+                invalidations.put(block.start, count);
+                if(count >= MAX_INVALIDATIONS)
+                    counts[block.start >>> Emulator.PAGE_SHIFT][block.start & Emulator.PAGE_MASK] = NEVER;
+            }
+        }
+    }
+
+    // Throws away the blocks that hold a word from start on that differs
+    // from the one in words, which are about to be copied over memory.
+    // Unlike writes, this doesn't count toward leaving the code to the
+    // interpreter, since going back to a snapshot doesn't mean the code
+    // changes itself.
+    public void restoring(int start, char[] words) {
+        int end = start + words.length;
+        for(int page = start >>> Emulator.PAGE_SHIFT; page <= (end-1) >>> Emulator.PAGE_SHIFT; page++) {
+            List<TranslatedBlock> list = pageBlocks.get(page);
+            if(list == null)
+                continue;
+            for(int i=list.size()-1; i>=0; i--) {
+                TranslatedBlock block = list.get(i);
+                int from = Math.max(block.start, start);
+                int to = Math.min(block.end, end);
+                for(int address=from; address<to; address++) {
+                    if(emulator.read(address) != words[address - start]) {
+                        remove(block);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for(int page=0; page<PAGES; page++) {
+            List<TranslatedBlock> list = pageBlocks.get(page);
+            if(list != null) {
+                for(TranslatedBlock block : list)
+                    block.valid = false;
+                pageBlocks.set(page, null);
+            }
+            blocks[page] = null;
+            counts[page] = null;
+        }
+        invalidations.clear();
+    }
+
+    private void remove(TranslatedBlock block) {
+        block.valid = false;
+        blocks[block.start >>> Emulator.PAGE_SHIFT][block.start & Emulator.PAGE_MASK] = null;
+        for(int page = block.start >>> Emulator.PAGE_SHIFT; page <= (block.end-1) >>> Emulator.PAGE_SHIFT; page++) {
+            List<TranslatedBlock> list = pageBlocks.get(page);
+            list.remove(block);
+            if(list.isEmpty())
+                pageBlocks.set(page, null);
+        }
+    }
+
+    private TranslatedBlock translate(int start) {
+        int[] addresses = new int[MAX_BLOCK_INSTRUCTIONS];
+        int[] entries = new int[MAX_BLOCK_INSTRUCTIONS];
+        int count = 0;
+        int address = start;
+        while(count < MAX_BLOCK_INSTRUCTIONS && address < Emulator.MEMORY_SIZE) {
+            int entry = emulator.entryAt(address);
+            OpcodeType type = Emulator.TYPES[entry & Emulator.TYPE_MASK];
+            int length = length(entry);
+            if(type == OpcodeType.CUSTOM || address + length > Emulator.MEMORY_SIZE)
+                break;
+            if(BlockCompiler.isConditional(type)) {
+                // The IF and the instruction it may skip go together.
+                int next = address + length;
+                if(count + 2 > MAX_BLOCK_INSTRUCTIONS || next >= Emulator.MEMORY_SIZE)
+                    break;
+                int nextEntry = emulator.entryAt(next);
+                OpcodeType nextType = Emulator.TYPES[nextEntry & Emulator.TYPE_MASK];
+                if(nextType == OpcodeType.CUSTOM || BlockCompiler.isConditional(nextType)
+                   || next + length(nextEntry) > Emulator.MEMORY_SIZE)
+                    break;
+                addresses[count] = address;
+                entries[count++] = entry;
+                addresses[count] = next;
+                entries[count++] = nextEntry;
+                address = next + length(nextEntry);
+                continue;
+            }
+            addresses[count] = address;
+            entries[count++] = entry;
+            address += length;
+            if(jumps(entry))
+                break;
+        }
+        if(count == 0)
+            return null;
+
+        String name = String.format("com.minesnap.dcpu.emulator.translated.Block%04x", start);
+        byte[] classFile = BlockCompiler.compile(name, addresses, entries, count, address, emulator.getMemory());
+        TranslatedBlock block;
+        try {
+            // A class loader of its own lets the class be unloaded once
+            // the block is thrown away.
+            Class<?> blockClass = new BlockLoader().define(name, classFile);
+            block = (TranslatedBlock)blockClass.getDeclaredConstructor().newInstance();
+        } catch (LinkageError e) {
+            return null;
+        } catch (InstantiationException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+        block.emulator = emulator;
+        block.start = start;
+        block.end = address;
+        for(int i=0; i<count; i++) {
+            // Each IF might cost a cycle to skip instead.
+            block.maxCycles += (entries[i] >>> Emulator.CYCLES_SHIFT) & Emulator.CYCLES_MASK;
+            if(BlockCompiler.isConditional(Emulator.TYPES[entries[i] & Emulator.TYPE_MASK]))
+                block.maxCycles++;
+        }
+        add(block);
+        translatedCount++;
+        return block;
+    }
+
+    private void add(TranslatedBlock block) {
+        int startPage = block.start >>> Emulator.PAGE_SHIFT;
+        if(blocks[startPage] == null)
+            blocks[startPage] = new TranslatedBlock[PAGE_SIZE];
+        blocks[startPage][block.start & Emulator.PAGE_MASK] = block;
+        for(int page = startPage; page <= (block.end-1) >>> Emulator.PAGE_SHIFT; page++) {
+            List<TranslatedBlock> list = pageBlocks.get(page);
+            if(list == null) {
+                list = new ArrayList<TranslatedBlock>(2);
+                pageBlocks.set(page, list);
+            }
+            list.add(block);
+        }
+    }
+
+    private static int length(int entry) {
+        return (entry >>> Emulator.LENGTH_SHIFT) & Emulator.LENGTH_MASK;
+    }
+
+    // Whether the instruction sets PC.
+    private static boolean jumps(int entry) {
+        OpcodeType type = Emulator.TYPES[entry & Emulator.TYPE_MASK];
+        if(type == OpcodeType.JSR)
+            return true;
+        return ((entry >>> Emulator.A_SHIFT) & Emulator.VALUE_MASK) == Emulator.PC;
+    }
+
+    private static class BlockLoader extends ClassLoader {
+        public BlockLoader() {
+            super(TranslatedBlock.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}